@@ -11,19 +11,12 @@ package org.ayakaji;
 
 import java.io.IOException;
 import java.net.Inet4Address;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.logging.Logger;
 
 import org.hyperic.sigar.SigarException;
-import org.joda.time.DateTime;
 import org.pcap4j.core.BpfProgram.BpfCompileMode;
 import org.pcap4j.core.NotOpenException;
 import org.pcap4j.core.PacketListener;
@@ -42,8 +35,6 @@ import org.pcap4j.packet.UdpPacket.UdpHeader;
 import org.pcap4j.packet.namednumber.TcpPort;
 import org.pcap4j.packet.namednumber.UdpPort;
 
-import com.alibaba.fastjson.JSONObject;
-
 public final class Agent implements Runnable {
 	private final static Logger logger = Logger.getLogger(Agent.class.getName());
 	private final static List<Agent> agentList = new ArrayList<Agent>(); // all agents
@@ -55,11 +46,16 @@ public final class Agent implements Runnable {
 	private Thread thread = null;
 	private String threadName = null;
 	private PcapNetworkInterface pni = null;
-	private List<LinkedHashMap<String, String>> connTbl = new ArrayList<LinkedHashMap<String, String>>();
+	private ConnTable connTbl = new ConnTable(Integer.getInteger("prism.conn.max", 65536),
+			Integer.getInteger("prism.conn.ttl", 3600) * 1000L); // hard cap and idle seconds
+	private ConnJournal journal = null;
+	private static ListenerMonitor monitor = null; // shared by all agents
 
 	public Agent(String name, PcapNetworkInterface pni) {
 		this.threadName = "Sniffer-" + name;
 		this.pni = pni;
+		this.journal = new ConnJournal(Paths.get(System.getProperty("user.dir")), threadName,
+				Integer.getInteger("prism.conn.compact", 20)); // compact every 20 dumps, 10 minutes
 	}
 
 	/**
@@ -67,92 +63,68 @@ public final class Agent implements Runnable {
 	 * and removing duplicates. Agreement: srcAddr/srcPort stands for client side,
 	 * and dstAddr/dstPort stands for server side
 	 * 
-	 * @param pkt
+	 * @param srcAddr
+	 * @param srcPort
+	 * @param proto
+	 * @param dstAddr
+	 * @param dstPort
 	 */
-	private void collect(Map<String, String> pkt) {
+	private void collect(int srcAddr, int srcPort, int proto, int dstAddr, int dstPort) {
+		long now = System.currentTimeMillis();
 		// Try to match with connection table.
 		// The following two cases are equivalent:
 		// <client ip>:0 <tcp> <server ip>:<listening port>
 		// <server ip>:<listening port> <tcp> <client ip>:0
-		for (LinkedHashMap<String, String> map : connTbl) {
-			if (map.get("dstAddr").equals(pkt.get("srcAddr")) && map.get("dstPort").equals(pkt.get("srcPort"))
-					&& map.get("srcAddr").equals(pkt.get("dstAddr")) && map.get("srcPort").equals("0")
-					&& map.get("proto").equals(pkt.get("proto"))) {
-				return;
-			} else if (map.get("dstAddr").equals(pkt.get("dstAddr")) && map.get("dstPort").equals(pkt.get("dstPort"))
-					&& map.get("srcAddr").equals(pkt.get("srcAddr")) && map.get("srcPort").equals("0")
-					&& map.get("proto").equals(pkt.get("proto"))) {
-				return;
-			}
+		if (connTbl.touch(dstAddr, 0, proto, srcAddr, srcPort, now)
+				|| connTbl.touch(srcAddr, 0, proto, dstAddr, dstPort, now)
+				|| connTbl.touch(srcAddr, srcPort, proto, dstAddr, dstPort, now)) {
+			return;
 		}
 		// If not match, then find the listener side
 		// Bug: Currently, there is no consideration of limiting the remote IP and
 		// remote port
+		ListenerMonitor.Listeners listeners = monitor.listeners(); // a snapshot, no lock
 		boolean localAccess = false;
-		for (LinkedHashMap<String, String> listener : Util.listeners) {
-			if (listener.get("localAddress").equals(pkt.get("srcAddr"))
-					&& listener.get("localPort").equals(pkt.get("srcPort"))
-					&& listener.get("proto").equals(pkt.get("proto"))) {
-				if (listener.get("remoteAddress").equals("0.0.0.0") && listener.get("remotePort").equals("0")) {
-					LinkedHashMap<String, String> map = new LinkedHashMap<String, String>();
-					map.put("srcAddr", pkt.get("dstAddr"));
-					map.put("srcPort", "0");
-					map.put("proto", pkt.get("proto"));
-					map.put("dstAddr", pkt.get("srcAddr"));
-					map.put("dstPort", pkt.get("srcPort"));
-					connTbl.add(map);
-					localAccess = true;
-				}
-			} else if (listener.get("localAddress").equals(pkt.get("dstAddr"))
-					&& listener.get("localPort").equals(pkt.get("dstPort"))
-					&& listener.get("proto").equals(pkt.get("proto"))) {
-				if (listener.get("remoteAddress").equals("0.0.0.0") && listener.get("remotePort").equals("0")) {
-					LinkedHashMap<String, String> map = new LinkedHashMap<String, String>();
-					map.put("srcAddr", pkt.get("srcAddr"));
-					map.put("srcPort", "0");
-					map.put("proto", pkt.get("proto"));
-					map.put("dstAddr", pkt.get("dstAddr"));
-					map.put("dstPort", pkt.get("dstPort"));
-					connTbl.add(map);
-					localAccess = true;
-				}
-			}
+		if (listeners.isListening(proto, srcAddr, srcPort)) {
+			connTbl.add(dstAddr, 0, proto, srcAddr, srcPort, now);
+			localAccess = true;
+		}
+		if (listeners.isListening(proto, dstAddr, dstPort)) {
+			connTbl.add(srcAddr, 0, proto, dstAddr, dstPort, now);
+			localAccess = true;
 		}
 		if (!localAccess) {
-			LinkedHashMap<String, String> map = new LinkedHashMap<String, String>();
-			map.put("srcAddr", pkt.get("srcAddr"));
-			map.put("srcPort", pkt.get("srcPort"));
-			map.put("proto", pkt.get("proto"));
-			map.put("dstAddr", pkt.get("dstAddr"));
-			map.put("dstPort", pkt.get("dstPort"));
-			connTbl.add(map);
+			connTbl.add(srcAddr, srcPort, proto, dstAddr, dstPort, now);
 		}
 	}
 
 	private void dump() {
-		String json = JSONObject.toJSONString(connTbl, true);
-		String appPath = System.getProperty("user.dir");
-		Path dmpPath = Paths.get(appPath, "conn-" + DateTime.now().toString("YYYYMMDDhh24mmss") + ".json");
-		if (!Files.exists(dmpPath)) {
-			try {
-				Files.createFile(dmpPath);
-			} catch (IOException e) {
-				logger.warning(e.getMessage());
-				logger.warning("Cannot dump connection table!");
-				return;
-			}
+		StageProfiler.enter(StageProfiler.DUMP);
+		try {
+			dumpConnections();
+		} finally {
+			StageProfiler.exit(StageProfiler.DUMP);
 		}
+	}
+
+	/**
+	 * Append the connections hit since the last dump, together with those which
+	 * expired or were evicted since then, to the journal. The table is copied
+	 * out in one go, so the capture thread is held up for the copy only.
+	 */
+	private void dumpConnections() {
+		connTbl.expire(System.currentTimeMillis());
 		try {
-			Files.write(dmpPath, json.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE);
+			journal.append(connTbl.drain());
 		} catch (IOException e) {
 			logger.warning(e.getMessage());
 			logger.warning("Cannot dump connection table!");
-			return;
 		}
 	}
 
 	@Override
 	public void run() {
+		StageProfiler.register(StageProfiler.CAPTURE);
 		logger.info("Started " + threadName);
 		PcapHandle hnd = null;
 		try {
@@ -190,17 +162,10 @@ public final class Agent implements Runnable {
 
 				@Override
 				public void gotPacket(Packet packet) {
-					LinkedHashMap<String, String> map = new LinkedHashMap<String, String>() {
-						private static final long serialVersionUID = 1L;
-						{
-							put("srcAddr", "");
-							put("srcPort", "");
-							put("proto", "");
-							put("dstAddr", "");
-							put("dstPort", "");
-						}
-					};
-
+					StageProfiler.packet();
+					int proto = 0;
+					int sPort = 0;
+					int dPort = 0;
 					IpV4Packet ipv4Pkt = packet.get(IpV4Packet.class);
 					if (ipv4Pkt == null) {
 						logger.warning("Violating the rules, TCP or UDP packets must be IP packets!");
@@ -214,17 +179,16 @@ public final class Agent implements Runnable {
 					Inet4Address srcAddr = ipv4Hdr.getSrcAddr();
 					if (srcAddr == null) {
 						logger.warning("Violating the rules, IP packet header must have a source address!");
+						return;
 					}
-					map.put("srcAddr", srcAddr.getHostAddress());
 					Inet4Address dstAddr = ipv4Hdr.getDstAddr();
 					if (dstAddr == null) {
 						logger.warning("Violating the rules, IP packet header must have a destination address!");
 						return;
 					}
-					map.put("dstAddr", dstAddr.getHostAddress());
 					TcpPacket tcpPkt = packet.get(TcpPacket.class);
 					if (tcpPkt != null) { // This must be a TCP packet
-						map.put("proto", "tcp");
+						proto = Util.PROTO_TCP;
 						TcpHeader tcpHdr = tcpPkt.getHeader();
 						if (tcpHdr == null) {
 							logger.warning("Violating the rules, TCP packet must have a header.");
@@ -235,17 +199,17 @@ public final class Agent implements Runnable {
 							logger.warning("Violating the rules, TCP packet header must have a source port.");
 							return;
 						}
-						map.put("srcPort", srcPort.valueAsString());
+						sPort = srcPort.valueAsInt();
 						TcpPort dstPort = tcpHdr.getDstPort();
 						if (dstPort == null) {
 							logger.warning("Violating the rules, TCP packet header must have a destination port.");
 							return;
 						}
-						map.put("dstPort", dstPort.valueAsString());
+						dPort = dstPort.valueAsInt();
 					} else {
 						UdpPacket udpPkt = packet.get(UdpPacket.class);
 						if (udpPkt != null) { // This must be a UDP packet
-							map.put("proto", "udp");
+							proto = Util.PROTO_UDP;
 							UdpHeader udpHdr = udpPkt.getHeader();
 							if (udpHdr == null) {
 								logger.warning("Violating the rules, UDP packet must have a header.");
@@ -256,16 +220,21 @@ public final class Agent implements Runnable {
 								logger.warning("Violating the rules, UDP packet header must have a source port.");
 								return;
 							}
-							map.put("srcPort", srcPort.valueAsString());
+							sPort = srcPort.valueAsInt();
 							UdpPort dstPort = udpHdr.getDstPort();
 							if (dstPort == null) {
 								logger.warning("Violating the rules, UDP packet header must have a destination port.");
 								return;
 							}
-							map.put("dstPort", dstPort.valueAsString());
+							dPort = dstPort.valueAsInt();
 						}
 					}
-					collect(map); // Try to collect this packet
+					if (proto == 0) {
+						return;
+					}
+					StageProfiler.enter(StageProfiler.ANALYSIS);
+					collect(Util.ipToInt(srcAddr), sPort, proto, Util.ipToInt(dstAddr), dPort); // Try to collect this packet
+					StageProfiler.exit(StageProfiler.ANALYSIS);
 				}
 			});
 		} catch (PcapNativeException e) {
@@ -301,7 +270,19 @@ public final class Agent implements Runnable {
 	public static void main(String[] args)
 			throws PcapNativeException, InterruptedException, NotOpenException, SigarException {
 		Util.getLocalAddresses();
-		Util.getListeners();
+		monitor = new ListenerMonitor(Util.localAddresses);
+		if (monitor.available()) { // refreshed from /proc so later listeners are seen
+			try {
+				monitor.refresh();
+			} catch (IOException e) {
+				logger.warning(e.getMessage());
+			}
+			monitor.start();
+		} else { // once at startup through Sigar
+			Util.getListeners();
+			monitor.load(Util.listeners);
+		}
+		StageProfiler.start();
 		List<PcapNetworkInterface> allDevs = Pcaps.findAllDevs();
 		boolean fAny = false;
 		for (PcapNetworkInterface pni : allDevs) {
@@ -6,6 +6,7 @@ package org.ayakaji;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -18,10 +19,23 @@ public class Assigner {
 	public static void main(String[] args)
 			throws ClassNotFoundException, SQLException, PcapNativeException, NotOpenException, InterruptedException {
 		if (args.length == 0 || args[0].equals("-h") || args[0].equals("--h")) {
-			logger.info("Pls provide at least 1 feature option: [ NetPolicyRebuilder, PortSniffer, PolicyImport, CleanTransient ]");
+			logger.info("Pls provide at least 1 feature option: [ NetPolicyRebuilder, SocketPoller, PortSniffer, PolicyImport, PolicyExport, PolicyMerge, PolicyClassify, PolicyAggregate, PolicyDiff, FirewallExport, PolicyConfirm, PolicyCollector, PolicyGraph, MiniHoneypot, CleanTransient ]");
 			logger.info("Usage: java -jar <mvn-target>.jar NetPolicyRebuilder [<?minutes>]");
+			logger.info("Usage: java -jar <mvn-target>.jar SocketPoller [<?minutes>]");
 			logger.info("Usage: java -jar <mvn-target>.jar PortSniffer");
 			logger.info("Usage: java -jar <mvn-target>.jar PolicyImport");
+			logger.info("Usage: java -jar <mvn-target>.jar PolicyExport");
+			logger.info("Usage: java -jar <mvn-target>.jar PolicyMerge [<?dir> ...]");
+			logger.info("Usage: java -jar <mvn-target>.jar PolicyClassify <policy file or dir> <input file> [<?output file>]");
+			logger.info("Usage: java -jar <mvn-target>.jar PolicyAggregate <policy file> [<?output file>]");
+			logger.info("Usage: java -jar <mvn-target>.jar PolicyDiff <old file or dir> <new file or dir> [<?output file>]");
+			logger.info("Usage: java -jar <mvn-target>.jar FirewallExport <policy file> [<?output stem>]");
+			logger.info("Usage: java -jar <mvn-target>.jar PolicyConfirm [<?dir>]");
+			logger.info("Usage: java -jar <mvn-target>.jar PolicyCollector [<?port>]");
+			logger.info("Usage: java -jar <mvn-target>.jar PolicyGraph <policy file or dir> dependents|dependencies <address[:port[/proto]]> [<?output stem>]");
+			logger.info("Usage: java -jar <mvn-target>.jar PolicyGraph <policy file or dir> path <from> <to> [<?output stem>]");
+			logger.info("Usage: java -jar <mvn-target>.jar PolicyGraph <policy file or dir> fan [<?top>] [<?output stem>]");
+			logger.info("Usage: java -jar <mvn-target>.jar MiniHoneypot [<?ports, such as 21,23,8000-8099, or unused>]");
 			logger.info("Usage: java -jar <mvn-target>.jar CleanTransient");
 		} else if (args[0].equals("PortSniffer")) {
 			List<String> params = new ArrayList<String>();
@@ -32,9 +46,32 @@ public class Assigner {
 			PortSniffer.main(subArgs);
 		} else if (args[0].equals("PolicyImport")) {
 			DBUtils.main(new String[] {});
+		} else if (args[0].equals("PolicyExport")) {
+			DBUtils.main(new String[] { "export" });
+		} else if (args[0].equals("PolicyMerge")) {
+			PolicyMerger.main(Arrays.copyOfRange(args, 1, args.length));
+		} else if (args[0].equals("PolicyClassify")) {
+			PolicyClassifier.main(Arrays.copyOfRange(args, 1, args.length));
+		} else if (args[0].equals("PolicyAggregate")) {
+			PolicyAggregator.main(Arrays.copyOfRange(args, 1, args.length));
+		} else if (args[0].equals("PolicyDiff")) {
+			PolicyDiff.main(Arrays.copyOfRange(args, 1, args.length));
+		} else if (args[0].equals("FirewallExport")) {
+			FirewallExporter.main(Arrays.copyOfRange(args, 1, args.length));
+		} else if (args[0].equals("PolicyConfirm")) {
+			PolicyConfirmer.main(Arrays.copyOfRange(args, 1, args.length));
+		} else if (args[0].equals("PolicyCollector")) {
+			PolicyCollector.main(Arrays.copyOfRange(args, 1, args.length));
+		} else if (args[0].equals("PolicyGraph")) {
+			DependencyGraph.main(Arrays.copyOfRange(args, 1, args.length));
+		} else if (args[0].equals("MiniHoneypot")) {
+			MiniHoneypot.main(Arrays.copyOfRange(args, 1, args.length));
 		} else if (args[0].equals("NetPolicyRebuilder")) {
 			if (args.length > 1) NetPolicyRebuilder.main(new String[] { args[1] });
 			else NetPolicyRebuilder.main(new String[] {});
+		} else if (args[0].equals("SocketPoller")) { // NetPolicyRebuilder without capture
+			NetPolicyRebuilder.polling = true;
+			NetPolicyRebuilder.main(Arrays.copyOfRange(args, 1, args.length));
 		} else if (args[0].equals("CleanTransient")) {
 			NetPolicyRebuilder.cleanTransient();
 		} else if (args[0].equals("NetPolicyVerifier")) {
@@ -0,0 +1,246 @@
+/******************************************
+ * Append-only journal of the connection  *
+ * table with periodic compaction into a  *
+ * snapshot                               *
+ *****************************************/
+// Layout, for an agent named <name>:
+//   conn-<name>.snapshot.json   {"seq":<k>,"connections":[...]}, folds journals 1..k
+//   conn-<name>-<seq>.journal   one JSON record per line, hits counted since the previous line
+// Usage
+// java -cp <mvn-target>.jar org.ayakaji.ConnJournal <name> [<dir>]
+package org.ayakaji;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import com.alibaba.fastjson.JSONArray;
+import com.alibaba.fastjson.JSONObject;
+
+public class ConnJournal {
+	private final static Logger logger = Logger.getLogger(ConnJournal.class.getName());
+
+	private final Path dir;
+	private final String name;
+	private final int compactEvery; // number of flushes between two compactions
+	private long seq; // sequence of the journal currently appended to
+	private int flushes = 0;
+
+	/**
+	 * @param dir          directory of the snapshot and journals
+	 * @param name         agent name
+	 * @param compactEvery number of flushes between two compactions
+	 */
+	public ConnJournal(Path dir, String name, int compactEvery) {
+		this.dir = dir;
+		this.name = name;
+		this.compactEvery = compactEvery;
+		TreeMap<Long, Path> journals = journals(dir, name);
+		// Never append to a journal of a previous run, its last line may be torn
+		this.seq = Math.max(journals.isEmpty() ? 0 : journals.lastKey(), snapshotSeq(dir, name)) + 1;
+	}
+
+	private static Path snapshotPath(Path dir, String name) {
+		return dir.resolve("conn-" + name + ".snapshot.json");
+	}
+
+	private static Path journalPath(Path dir, String name, long seq) {
+		return dir.resolve("conn-" + name + "-" + seq + ".journal");
+	}
+
+	/**
+	 * All journals of an agent ordered by sequence
+	 */
+	private static TreeMap<Long, Path> journals(Path dir, String name) {
+		TreeMap<Long, Path> map = new TreeMap<Long, Path>();
+		String prefix = "conn-" + name + "-";
+		File[] files = dir.toFile().listFiles();
+		if (files == null)
+			return map;
+		for (File f : files) {
+			String s = f.getName();
+			if (s.startsWith(prefix) && s.endsWith(".journal")) {
+				String num = s.substring(prefix.length(), s.length() - ".journal".length());
+				if (!num.isEmpty() && Util.isInteger(num))
+					map.put(Long.parseLong(num), f.toPath());
+			}
+		}
+		return map;
+	}
+
+	private static long snapshotSeq(Path dir, String name) {
+		Path path = snapshotPath(dir, name);
+		if (!Files.exists(path))
+			return 0;
+		try {
+			JSONObject obj = JSONObject.parseObject(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+			return obj.getLongValue("seq");
+		} catch (IOException e) {
+			logger.warning(e.getMessage());
+			return 0;
+		}
+	}
+
+	private static String key(JSONObject rec) {
+		return rec.getString("srcAddr") + ":" + rec.getString("srcPort") + "/" + rec.getString("proto") + "/"
+				+ rec.getString("dstAddr") + ":" + rec.getString("dstPort");
+	}
+
+	/**
+	 * Fold one record into the table: first seen is the earliest, last seen the
+	 * latest, hits add up
+	 */
+	private static void merge(LinkedHashMap<String, JSONObject> tbl, JSONObject rec) {
+		String k = key(rec);
+		JSONObject cur = tbl.get(k);
+		if (cur == null) {
+			JSONObject obj = new JSONObject(new LinkedHashMap<String, Object>());
+			obj.put("srcAddr", rec.getString("srcAddr"));
+			obj.put("srcPort", rec.getString("srcPort"));
+			obj.put("proto", rec.getString("proto"));
+			obj.put("dstAddr", rec.getString("dstAddr"));
+			obj.put("dstPort", rec.getString("dstPort"));
+			obj.put("firstSeen", rec.getLongValue("firstSeen"));
+			obj.put("lastSeen", rec.getLongValue("lastSeen"));
+			obj.put("hits", rec.getLongValue("hits"));
+			tbl.put(k, obj);
+			return;
+		}
+		cur.put("firstSeen", Math.min(cur.getLongValue("firstSeen"), rec.getLongValue("firstSeen")));
+		cur.put("lastSeen", Math.max(cur.getLongValue("lastSeen"), rec.getLongValue("lastSeen")));
+		cur.put("hits", cur.getLongValue("hits") + rec.getLongValue("hits"));
+	}
+
+	/**
+	 * Rebuild the table of an agent from its snapshot plus the journals written
+	 * after it
+	 *
+	 * @param dir
+	 * @param name
+	 * @param upTo last journal sequence to apply
+	 * @return
+	 * @throws IOException
+	 */
+	private static Collection<JSONObject> rebuild(Path dir, String name, long upTo) throws IOException {
+		LinkedHashMap<String, JSONObject> tbl = new LinkedHashMap<String, JSONObject>();
+		long from = 0;
+		Path snapshot = snapshotPath(dir, name);
+		if (Files.exists(snapshot)) {
+			JSONObject obj = JSONObject.parseObject(new String(Files.readAllBytes(snapshot), StandardCharsets.UTF_8));
+			from = obj.getLongValue("seq");
+			JSONArray arr = obj.getJSONArray("connections");
+			for (int i = 0; arr != null && i < arr.size(); i++)
+				merge(tbl, arr.getJSONObject(i));
+		}
+		for (Map.Entry<Long, Path> e : journals(dir, name).entrySet()) {
+			if (e.getKey() <= from || e.getKey() > upTo)
+				continue; // already folded into the snapshot, or not closed yet
+			BufferedReader br = Files.newBufferedReader(e.getValue(), StandardCharsets.UTF_8);
+			try {
+				String line;
+				while ((line = br.readLine()) != null) {
+					if (line.isEmpty())
+						continue;
+					try {
+						merge(tbl, JSONObject.parseObject(line));
+					} catch (RuntimeException ex) {
+						// A torn last line after a crash, the rest is still good
+						logger.warning("Skipped a broken journal line in " + e.getValue().getFileName());
+					}
+				}
+			} finally {
+				br.close();
+			}
+		}
+		return tbl.values();
+	}
+
+	public static Collection<JSONObject> rebuild(Path dir, String name) throws IOException {
+		return rebuild(dir, name, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Append the changes of one flush to the current journal, and compact every
+	 * so many flushes
+	 *
+	 * @param changes
+	 * @throws IOException
+	 */
+	public void append(List<ConnTable.Record> changes) throws IOException {
+		if (!changes.isEmpty()) {
+			BufferedWriter bw = Files.newBufferedWriter(journalPath(dir, name, seq), StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+			try {
+				for (ConnTable.Record rec : changes) {
+					bw.write(JSONObject.toJSONString(rec.toMap()));
+					bw.newLine();
+				}
+			} finally {
+				bw.close();
+			}
+		}
+		if (++flushes >= compactEvery) {
+			flushes = 0;
+			compact();
+		}
+	}
+
+	/**
+	 * Close the current journal, fold it and the previous snapshot into a new
+	 * snapshot, then drop the folded journals. The snapshot is renamed into
+	 * place, and it carries the sequence it covers, so a crash at any step
+	 * leaves files a reader still rebuilds correctly.
+	 *
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		long upTo = seq;
+		seq++; // appends go to a fresh journal from now on
+		if (!Files.exists(journalPath(dir, name, upTo)))
+			return;
+		Collection<JSONObject> tbl = rebuild(dir, name, upTo);
+		JSONObject snapshot = new JSONObject(new LinkedHashMap<String, Object>());
+		snapshot.put("seq", upTo);
+		snapshot.put("connections", new ArrayList<JSONObject>(tbl));
+		Path path = snapshotPath(dir, name);
+		Path tmp = dir.resolve(path.getFileName() + ".tmp");
+		Files.write(tmp, JSONObject.toJSONString(snapshot, true).getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		for (Map.Entry<Long, Path> e : journals(dir, name).entrySet()) {
+			if (e.getKey() <= upTo)
+				Files.deleteIfExists(e.getValue());
+		}
+		logger.info("Compacted " + tbl.size() + " connections into " + path.getFileName());
+	}
+
+	/**
+	 * Print the rebuilt connection table of an agent, e.g. "Sniffer-any"
+	 *
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0 || args[0].equals("-h") || args[0].equals("--h")) {
+			logger.info("Usage: ConnJournal <agent-name> [<dir>]");
+			return;
+		}
+		Path dir = args.length > 1 ? Paths.get(args[1]) : Paths.get(System.getProperty("user.dir"));
+		Collection<JSONObject> tbl = rebuild(dir, args[0]);
+		System.out.println(JSONArray.toJSONString(tbl, true));
+		logger.info("Connection Count: " + tbl.size());
+	}
+}
@@ -0,0 +1,114 @@
+/******************************************
+ * Small fixed-size JDBC connection pool  *
+ ******************************************/
+package org.ayakaji;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Logger;
+
+public class ConnPool {
+	private final static Logger logger = Logger.getLogger(ConnPool.class.getName());
+
+	private final String url;
+	private final String user;
+	private final String password;
+	private final BlockingQueue<Connection> idle;
+	private final List<Connection> all = new ArrayList<Connection>();
+
+	/**
+	 * Open all connections up front, so that a wrong url or password fails the
+	 * run at once rather than in every worker
+	 *
+	 * @param driver
+	 * @param url
+	 * @param user
+	 * @param password
+	 * @param size
+	 * @throws ClassNotFoundException
+	 * @throws SQLException
+	 */
+	public ConnPool(String driver, String url, String user, String password, int size)
+			throws ClassNotFoundException, SQLException {
+		Class.forName(driver);
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.idle = new ArrayBlockingQueue<Connection>(size);
+		try {
+			for (int i = 0; i < size; i++) {
+				Connection conn = open();
+				all.add(conn);
+				idle.add(conn);
+			}
+		} catch (SQLException e) {
+			close();
+			throw e;
+		}
+		logger.info("Connection pool of " + size + " opened.");
+	}
+
+	private Connection open() throws SQLException {
+		Connection conn = DriverManager.getConnection(url, user, password);
+		conn.setAutoCommit(false);
+		return conn;
+	}
+
+	/**
+	 * Take an idle connection, waiting for one if all are busy. A connection
+	 * found closed is replaced.
+	 *
+	 * @return
+	 * @throws InterruptedException
+	 * @throws SQLException
+	 */
+	public Connection borrow() throws InterruptedException, SQLException {
+		Connection conn = idle.take();
+		if (conn.isClosed()) {
+			synchronized (all) {
+				all.remove(conn);
+				try {
+					conn = open();
+				} catch (SQLException e) {
+					idle.add(conn); // keep the pool size, the next borrower retries
+					throw e;
+				}
+				all.add(conn);
+			}
+		}
+		return conn;
+	}
+
+	/**
+	 * Give a connection back, rolling back whatever its user left uncommitted
+	 *
+	 * @param conn
+	 */
+	public void release(Connection conn) {
+		try {
+			if (!conn.isClosed())
+				conn.rollback();
+		} catch (SQLException e) {
+			logger.warning(e.getMessage());
+		}
+		idle.add(conn);
+	}
+
+	public void close() {
+		synchronized (all) {
+			for (Connection conn : all) {
+				try {
+					conn.close();
+				} catch (SQLException e) {
+					logger.warning(e.getMessage());
+				}
+			}
+			all.clear();
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/******************************************
+ * Compact connection table of the Agent: *
+ * primitive records in open addressing,  *
+ * idle expiry and a hard cap on entries  *
+ *****************************************/
+package org.ayakaji;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.logging.Logger;
+
+public class ConnTable {
+	private final static Logger logger = Logger.getLogger(ConnTable.class.getName());
+	private final static int minCapacity = 1024;
+
+	/**
+	 * Record columns, a slot is used when its hits is greater than 0. Ports are
+	 * packed as srcPort << 16 | dstPort
+	 */
+	private int[] srcAddrs;
+	private int[] dstAddrs;
+	private int[] ports;
+	private byte[] protos;
+	private long[] firstSeen;
+	private long[] lastSeen;
+	private int[] hits;
+	private int[] flushed; // hits already handed over by the last drain
+	private int mask;
+	private int size = 0;
+
+	private final int maxEntries;
+	private final long ttl; // idle time in milliseconds before a record expires
+
+	/**
+	 * Records which left the table since the last drain, by expiry or eviction,
+	 * with their hits not yet handed over
+	 */
+	private List<Record> evicted = new ArrayList<Record>();
+
+	/**
+	 * Detached copy of one record, used for eviction and dumping only. The hits
+	 * are those counted since the record was last drained, so that successive
+	 * drains can simply be added up
+	 */
+	public final static class Record {
+		public final int srcAddr;
+		public final int srcPort;
+		public final int proto;
+		public final int dstAddr;
+		public final int dstPort;
+		public final long firstSeen;
+		public final long lastSeen;
+		public final int hits;
+
+		private Record(ConnTable t, int i) {
+			srcAddr = t.srcAddrs[i];
+			srcPort = t.ports[i] >>> 16;
+			proto = t.protos[i] & 0xff;
+			dstAddr = t.dstAddrs[i];
+			dstPort = t.ports[i] & 0xffff;
+			firstSeen = t.firstSeen[i];
+			lastSeen = t.lastSeen[i];
+			hits = t.hits[i] - t.flushed[i];
+		}
+
+		public LinkedHashMap<String, Object> toMap() {
+			LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("srcAddr", Util.intToIp(srcAddr));
+			map.put("srcPort", Integer.toString(srcPort));
+			map.put("proto", Util.protoName(proto));
+			map.put("dstAddr", Util.intToIp(dstAddr));
+			map.put("dstPort", Integer.toString(dstPort));
+			map.put("firstSeen", firstSeen);
+			map.put("lastSeen", lastSeen);
+			map.put("hits", hits);
+			return map;
+		}
+	}
+
+	/**
+	 * @param maxEntries hard cap on live records
+	 * @param ttl        idle time in milliseconds after which a record expires
+	 */
+	public ConnTable(int maxEntries, long ttl) {
+		this.maxEntries = maxEntries;
+		this.ttl = ttl;
+		int capacity = minCapacity;
+		while (capacity < maxEntries * 2 && capacity < (1 << 30))
+			capacity <<= 1;
+		srcAddrs = new int[capacity];
+		dstAddrs = new int[capacity];
+		ports = new int[capacity];
+		protos = new byte[capacity];
+		firstSeen = new long[capacity];
+		lastSeen = new long[capacity];
+		hits = new int[capacity];
+		flushed = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	private static int hash(int srcAddr, int srcPort, int proto, int dstAddr, int dstPort) {
+		int h = srcAddr * 0x9e3779b1 + dstAddr;
+		h = h * 0x9e3779b1 + (srcPort << 16 | dstPort);
+		h = h * 0x9e3779b1 + proto;
+		return h ^ h >>> 16;
+	}
+
+	private int find(int srcAddr, int srcPort, int proto, int dstAddr, int dstPort) {
+		int packed = srcPort << 16 | dstPort;
+		int i = hash(srcAddr, srcPort, proto, dstAddr, dstPort) & mask;
+		while (hits[i] != 0) {
+			if (srcAddrs[i] == srcAddr && dstAddrs[i] == dstAddr && ports[i] == packed && protos[i] == (byte) proto)
+				return i;
+			i = i + 1 & mask;
+		}
+		return -1 - i; // free slot where the record would go
+	}
+
+	/**
+	 * Refresh a record if it exists
+	 *
+	 * @return whether the record exists
+	 */
+	public synchronized boolean touch(int srcAddr, int srcPort, int proto, int dstAddr, int dstPort, long now) {
+		int i = find(srcAddr, srcPort, proto, dstAddr, dstPort);
+		if (i < 0)
+			return false;
+		lastSeen[i] = now;
+		if (hits[i] < Integer.MAX_VALUE)
+			hits[i]++;
+		return true;
+	}
+
+	/**
+	 * Insert a record, or refresh it if it already exists. When the table is full
+	 * the idle records are expired first, then the least recently seen ones are
+	 * evicted.
+	 */
+	public synchronized void add(int srcAddr, int srcPort, int proto, int dstAddr, int dstPort, long now) {
+		int i = find(srcAddr, srcPort, proto, dstAddr, dstPort);
+		if (i >= 0) {
+			lastSeen[i] = now;
+			if (hits[i] < Integer.MAX_VALUE)
+				hits[i]++;
+			return;
+		}
+		if (size >= maxEntries) {
+			if (expire(now) == 0)
+				evictOldest();
+			i = find(srcAddr, srcPort, proto, dstAddr, dstPort);
+		}
+		i = -1 - i;
+		srcAddrs[i] = srcAddr;
+		dstAddrs[i] = dstAddr;
+		ports[i] = srcPort << 16 | dstPort;
+		protos[i] = (byte) proto;
+		firstSeen[i] = now;
+		lastSeen[i] = now;
+		hits[i] = 1;
+		flushed[i] = 0;
+		size++;
+	}
+
+	/**
+	 * Remove a slot with backward shift, so that no tombstone is left behind
+	 *
+	 * @param i
+	 */
+	private void remove(int i) {
+		if (hits[i] != flushed[i])
+			evicted.add(new Record(this, i));
+		int hole = i;
+		int j = i;
+		while (true) {
+			j = j + 1 & mask;
+			if (hits[j] == 0)
+				break;
+			int home = hash(srcAddrs[j], ports[j] >>> 16, protos[j] & 0xff, dstAddrs[j], ports[j] & 0xffff) & mask;
+			// Move j into the hole unless its home lies cyclically in (hole, j]
+			if (hole <= j ? (home <= hole || home > j) : (home <= hole && home > j)) {
+				srcAddrs[hole] = srcAddrs[j];
+				dstAddrs[hole] = dstAddrs[j];
+				ports[hole] = ports[j];
+				protos[hole] = protos[j];
+				firstSeen[hole] = firstSeen[j];
+				lastSeen[hole] = lastSeen[j];
+				hits[hole] = hits[j];
+				flushed[hole] = flushed[j];
+				hole = j;
+			}
+		}
+		hits[hole] = 0;
+		size--;
+	}
+
+	/**
+	 * Expire the records idle for longer than the TTL
+	 *
+	 * @param now
+	 * @return number of expired records
+	 */
+	public synchronized int expire(long now) {
+		int cnt = 0;
+		long limit = now - ttl;
+		for (int i = 0; i <= mask; i++) {
+			// A backward shift may move an unvisited record into slot i
+			while (hits[i] != 0 && lastSeen[i] < limit) {
+				remove(i);
+				cnt++;
+			}
+		}
+		if (cnt > 0)
+			logger.info("Expired " + cnt + " idle connections, " + size + " left.");
+		return cnt;
+	}
+
+	/**
+	 * Evict the least recently seen eighth of the table, no more even if many
+	 * records were seen in the same millisecond
+	 */
+	private void evictOldest() {
+		long[] seen = new long[size];
+		int n = 0;
+		for (int i = 0; i <= mask; i++)
+			if (hits[i] != 0)
+				seen[n++] = lastSeen[i];
+		Arrays.sort(seen);
+		int target = Math.max(1, size / 8);
+		long limit = seen[target - 1];
+		int ties = 0; // records seen at the limit to evict
+		for (int k = target - 1; k >= 0 && seen[k] == limit; k--)
+			ties++;
+		int cnt = 0;
+		for (int i = 0; i <= mask && cnt < target; i++) {
+			while (hits[i] != 0 && cnt < target && (lastSeen[i] < limit || lastSeen[i] == limit && ties > 0)) {
+				if (lastSeen[i] == limit)
+					ties--;
+				remove(i);
+				cnt++;
+			}
+		}
+		logger.warning("Connection table is full, evicted " + cnt + " least recently seen connections.");
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Copy out, as one consistent snapshot, the live records hit since the last
+	 * drain plus the records which left the table since then
+	 *
+	 * @return
+	 */
+	public synchronized List<Record> drain() {
+		List<Record> list = evicted;
+		evicted = new ArrayList<Record>();
+		for (int i = 0; i <= mask; i++) {
+			if (hits[i] != 0 && hits[i] != flushed[i]) {
+				list.add(new Record(this, i));
+				flushed[i] = hits[i];
+			}
+		}
+		return list;
+	}
+}
@@ -2,66 +2,99 @@ package org.ayakaji;
 
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
-import org.apache.commons.io.FileUtils;
+import org.joda.time.DateTime;
 
-import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
 
 public class DBUtils {
 	private final static Logger logger = Logger.getLogger(DBUtils.class.getName()); // logger
-	private final static String jsonDir = ".\\plc_unreachable"; // Default directory for json files is current folder
-	private final static int batchSize = 1000; // Data entry for one-time import
-	private final static String jdbcDrv = "oracle.jdbc.driver.OracleDriver"; // jdbc driver
-	private final static String jdbcUrl = "jdbc:oracle:thin:@10.19.195.240:2521/orayy1"; // jdbc url
-	private final static String jdbcUsr = "tbcs"; // username for account
-	private final static String jdbcPsw = "tbcsbcv"; // password for account
-	// the temporary table init sql template
-	private final static String initSql = "CREATE TABLE _table_name_(" + "src_addr VARCHAR2(16), "
-			+ "src_port VARCHAR2(8), " + "proto VARCHAR2(4), " + "dst_addr VARCHAR2(16), " + "dst_port VARCHAR2(8)"
-			+ ")";
-	private final static String idx1Sql = "CREATE INDEX idx_1_table_name_ on _table_name_(src_addr, src_port, proto, dst_addr, dst_port)";
-	private final static String idx2Sql = "CREATE INDEX idx_2_table_name_ on _table_name_(dst_addr, dst_port)";
-	private final static String insertSql = "INSERT INTO _table_name_(src_addr, src_port, proto, dst_addr, dst_port) VALUES (?, ?, ?, ?, ?)";
-	private final static String dropSql = "DROP TABLE _table_name_ PURGE";
-	private final static String tblCntSql = "SELECT COUNT(1) FROM user_tables t WHERE t.table_name = ?";
-	private final static String subRplc = "_table_name_"; // String to be replaced
-	private final static String outboundSql = "SELECT DISTINCT dst_addr, dst_port FROM plc_full t WHERE t.direction = 'outbound' ORDER BY t.dst_addr, t.dst_port";
-	
-	private final static FileFilter ff = new FileFilter() {
-		@Override
-		public boolean accept(File file) {
-			String s = file.getName().toLowerCase();
-			if (s.startsWith("plc_") && s.endsWith(".json")) {
-				return true;
-			}
-			return false;
-		}
-	};
+	// Default directory for json files, -Dprism.import.dir
+	private final static String jsonDir = System.getProperty("prism.import.dir", ".\\plc_unreachable");
+	private final static int batchSize = 1000; // Rows bound to one array insert
+	private final static int commitInterval = Integer.getInteger("prism.import.commit", 10000); // Rows per commit
+	private final static int threads = Integer.getInteger("prism.import.threads", 4); // parallel file imports
+	private final static int fetchSize = Integer.getInteger("prism.export.fetch", 5000); // Rows per round trip
+	// Shard the outbound export by destination network of this prefix length, -Dprism.export.shard, 0 for one file
+	private final static int shardBits = Math.max(0, Math.min(32, Integer.getInteger("prism.export.shard", 0)));
+	private final static int maxShards = 4096; // bound of files, one of them open at a time
+	// Drop the indexes before a load and build them after it, -Dprism.import.rebuildIndexes,
+	// by default only for the initial load into an empty table
+	private final static String rebuildIndexes = System.getProperty("prism.import.rebuildIndexes");
+	// Connection settings, -Dprism.jdbc.driver/url/user/password, e.g. a local
+	// org.hsqldb.jdbcDriver with jdbc:hsqldb:file:prism stands in for Oracle
+	private final static String jdbcDrv = System.getProperty("prism.jdbc.driver", "oracle.jdbc.driver.OracleDriver");
+	private final static String jdbcUrl = System.getProperty("prism.jdbc.url", "jdbc:oracle:thin:@10.19.195.240:2521/orayy1");
+	private final static String jdbcUsr = System.getProperty("prism.jdbc.user", "tbcs"); // username for account
+	private final static String jdbcPsw = System.getProperty("prism.jdbc.password", "tbcsbcv"); // password for account
+	private final static boolean oracle = jdbcUrl.startsWith("jdbc:oracle");
+	// @formatter:off
+	// The consolidated policy table, node_serial is the serial of plc_<serial>[_clean].json,
+	// partitioned by node on Oracle. VARCHAR is understood by both Oracle and HSQL
+	private final static String plcTbl = "plc_policy";
+	private final static String initSql = "CREATE TABLE " + plcTbl + "("
+			+ "node_serial VARCHAR(32), "
+			+ "batch_id VARCHAR(14), "
+			+ "src_addr VARCHAR(16), "
+			+ "src_port VARCHAR(8), "
+			+ "proto VARCHAR(4), "
+			+ "dst_addr VARCHAR(16), "
+			+ "dst_port VARCHAR(8), "
+			+ "direction VARCHAR(8), "
+			+ "row_hash VARCHAR(16)"
+			+ ")" + (oracle ? " PARTITION BY HASH (node_serial) PARTITIONS 16" : "");
+	private final static String[] idxNames = { "idx_plc_node", "idx_plc_policy", "idx_plc_dst" };
+	private final static String[] idxSqls = {
+			"CREATE INDEX idx_plc_node ON " + plcTbl + "(node_serial, row_hash)" + (oracle ? " LOCAL" : ""),
+			"CREATE INDEX idx_plc_policy ON " + plcTbl + "(src_addr, src_port, proto, dst_addr, dst_port)" + (oracle ? " LOCAL" : ""),
+			"CREATE INDEX idx_plc_dst ON " + plcTbl + "(dst_addr, dst_port)" + (oracle ? " LOCAL" : "") };
+	private final static String insertSql = "INSERT INTO " + plcTbl + "(node_serial, batch_id, src_addr, src_port, proto, dst_addr, dst_port, direction, row_hash) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	private final static String hashSql = "SELECT row_hash FROM " + plcTbl + " WHERE node_serial = ?";
+	private final static String deleteSql = "DELETE FROM " + plcTbl + " WHERE node_serial = ? AND row_hash = ?";
+	private final static String nodeSql = "SELECT node_serial FROM " + plcTbl + " WHERE node_serial = ?";
+	private final static String rollbackSql = "DELETE FROM " + plcTbl + " WHERE node_serial = ? AND batch_id = ?";
+	private final static String outboundSql = "SELECT DISTINCT dst_addr, dst_port FROM " + plcTbl + " t WHERE t.direction = 'outbound' ORDER BY t.dst_addr, t.dst_port";
+	// @formatter:on
 
-	private Connection conn = null; // One file, one connection
-	private String tblName = ""; // One file, one table
+	private Connection conn = null; // One worker, one connection
+	private String node = ""; // Node serial of the file being loaded
+	private String batchId = ""; // Import batch, shared by all files of one run
 
-	public DBUtils(String tbl) {
-		if (tbl.length() > 20)
-			tblName = tbl.substring(0, 20);
-		else
-			tblName = tbl;
+	public DBUtils(String node, String batchId) {
+		this.node = node.length() > 32 ? node.substring(0, 32) : node;
+		this.batchId = batchId;
+	}
+
+	/**
+	 * Work on a connection borrowed from a pool
+	 * 
+	 * @param node
+	 * @param batchId
+	 * @param conn
+	 */
+	public DBUtils(String node, String batchId, Connection conn) {
+		this(node, batchId);
+		this.conn = conn;
 	}
 
 	private void getConnection() {
@@ -83,275 +116,568 @@ public class DBUtils {
 		}
 	}
 
-	private void initTbl() {
-		Statement stmt = null;
+	private void closeConnection() {
+		if (conn == null)
+			return;
 		try {
-			stmt = conn.createStatement();
+			conn.close();
 		} catch (SQLException e) {
 			logger.warning(e.getMessage());
-			return;
 		}
-		String sql = initSql.replaceAll(subRplc, tblName);
+	}
+
+	/**
+	 * Create the consolidated table unless it exists, looked up in the catalog
+	 * through JDBC metadata, which works the same on Oracle and HSQL
+	 * 
+	 * @param conn
+	 * @throws SQLException
+	 */
+	private static void initTbl(Connection conn) throws SQLException {
+		ResultSet rs = conn.getMetaData().getTables(null, null, plcTbl.toUpperCase(), new String[] { "TABLE" });
 		try {
-			stmt.executeUpdate(sql);
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
-			return;
+			if (rs.next())
+				return;
+		} finally {
+			rs.close();
 		}
+		Statement stmt = conn.createStatement();
 		try {
+			stmt.executeUpdate(initSql);
+		} finally {
 			stmt.close();
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
-			return;
 		}
-		logger.info("Init table success!");
+		conn.commit();
+		logger.info("Init table " + plcTbl + " success!");
 	}
 
-	private void createIndex() {
-		Statement stmt = null;
-		try {
-			stmt = conn.createStatement();
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
-			return;
-		}
-		String sql = idx1Sql.replaceAll(subRplc, tblName);
+	/**
+	 * Names of the indexes of the consolidated table which exist
+	 * 
+	 * @param conn
+	 * @return
+	 * @throws SQLException
+	 */
+	private static Set<String> indexes(Connection conn) throws SQLException {
+		Set<String> set = new HashSet<String>();
+		ResultSet rs = conn.getMetaData().getIndexInfo(null, null, plcTbl.toUpperCase(), false, false);
 		try {
-			stmt.executeUpdate(sql);
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
-			return;
+			while (rs.next()) {
+				String name = rs.getString("INDEX_NAME");
+				if (name != null)
+					set.add(name.toUpperCase());
+			}
+		} finally {
+			rs.close();
 		}
-		sql = idx2Sql.replaceAll(subRplc, tblName);
+		return set;
+	}
+
+	/**
+	 * Drop the indexes before a bulk load, so that rows are not inserted into
+	 * three B-trees one by one
+	 * 
+	 * @param conn
+	 * @throws SQLException
+	 */
+	private static void dropIndex(Connection conn) throws SQLException {
+		Set<String> existing = indexes(conn);
+		Statement stmt = conn.createStatement();
 		try {
-			stmt.executeUpdate(sql);
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
-			return;
+			for (String name : idxNames) {
+				if (existing.contains(name.toUpperCase()))
+					stmt.executeUpdate("DROP INDEX " + name);
+			}
+		} finally {
+			stmt.close();
 		}
+		conn.commit();
+	}
+
+	/**
+	 * Build the missing indexes once the load is complete
+	 * 
+	 * @param conn
+	 * @throws SQLException
+	 */
+	private static void createIndex(Connection conn) throws SQLException {
+		Set<String> existing = indexes(conn);
+		Statement stmt = conn.createStatement();
 		try {
+			for (int i = 0; i < idxNames.length; i++) {
+				if (!existing.contains(idxNames[i].toUpperCase()))
+					stmt.executeUpdate(idxSqls[i]);
+			}
+		} finally {
 			stmt.close();
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
-			return;
 		}
+		conn.commit();
 		logger.info("Init index success!");
 	}
 
-	private void batchAppend(JSONArray arr) {
-		String sql = insertSql.replaceAll(subRplc, tblName);
-		PreparedStatement ps = null;
+	/**
+	 * Whether the table holds no row, i.e. this is the initial bulk load
+	 * 
+	 * @param conn
+	 * @return
+	 * @throws SQLException
+	 */
+	private static boolean isEmpty(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
 		try {
-			ps = conn.prepareStatement(sql);
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
-			return;
-		}
-		for (int i = 0; i < arr.size(); i++) {
-			JSONObject jsonObj = arr.getJSONObject(i);
+			stmt.setMaxRows(1);
+			ResultSet rs = stmt.executeQuery("SELECT node_serial FROM " + plcTbl);
 			try {
-				ps.setString(1, jsonObj.getString("src_addr"));
-				ps.setString(2, jsonObj.getString("src_port"));
-				ps.setString(3, jsonObj.getString("proto"));
-				ps.setString(4, jsonObj.getString("dst_addr"));
-				ps.setString(5, jsonObj.getString("dst_port"));
-				ps.addBatch();
-			} catch (SQLException e) {
-				logger.warning(e.getMessage());
+				return !rs.next();
+			} finally {
+				rs.close();
 			}
-			if (i % batchSize == 0) {
-				try {
-					ps.executeBatch();
-				} catch (SQLException e) {
-					logger.warning(e.getMessage());
-				}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Hash of a normalized policy, the identity of a row within its node: 64 bit
+	 * FNV-1a of the trimmed fields, proto in lower case, in hex
+	 * 
+	 * @param plc
+	 * @return
+	 */
+	static String rowHash(JSONObject plc) {
+		long h = 0xcbf29ce484222325L;
+		for (String k : new String[] { "src_addr", "src_port", "proto", "dst_addr", "dst_port" }) {
+			String v = plc.getString(k);
+			v = v == null ? "" : k.equals("proto") ? v.trim().toLowerCase() : v.trim();
+			for (int i = 0; i < v.length(); i++) {
+				h ^= v.charAt(i);
+				h *= 0x100000001b3L;
 			}
+			h ^= '|';
+			h *= 0x100000001b3L;
 		}
+		String hex = Long.toHexString(h);
+		return "0000000000000000".substring(hex.length()) + hex;
+	}
+
+	/**
+	 * Whether a node has any row in the table
+	 * 
+	 * @param conn
+	 * @param node
+	 * @return
+	 * @throws SQLException
+	 */
+	private static boolean hasRows(Connection conn, String node) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(nodeSql);
 		try {
-			ps.executeBatch();
+			ps.setMaxRows(1);
+			ps.setString(1, node);
+			ResultSet rs = ps.executeQuery();
+			try {
+				return rs.next();
+			} finally {
+				rs.close();
+			}
+		} finally {
 			ps.close();
-			conn.commit();
-			logger.info("Data imported successfully!");
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
 		}
 	}
 
-	private void closeConnection() {
-		if (conn == null)
-			return;
+	/**
+	 * Hashes of the rows stored for this node
+	 * 
+	 * @return
+	 * @throws SQLException
+	 */
+	private Set<String> storedHashes() throws SQLException {
+		Set<String> set = new HashSet<String>();
+		PreparedStatement ps = conn.prepareStatement(hashSql);
 		try {
-			conn.close();
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
+			ps.setString(1, node);
+			ps.setFetchSize(batchSize);
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next())
+					set.add(rs.getString(1));
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
 		}
+		return set;
 	}
 
 	/**
-	 * Reset the table
+	 * Bring the rows of the node in line with a file: rows whose hash is not
+	 * stored yet are inserted as this batch, stored rows no longer in the file
+	 * are deleted, unchanged rows are not touched. Statements are bound in arrays
+	 * of batchSize rows and committed every commitInterval rows.
+	 * 
+	 * @param f
+	 * @return policies in the file, rows inserted, rows deleted
+	 * @throws Exception
 	 */
-	@SuppressWarnings("unused")
-	private void reset() {
-		String sql = dropSql.replaceAll(subRplc, tblName);
-		PreparedStatement ps = null;
+	private int[] sync(File f) throws Exception {
+		final Set<String> stored = storedHashes();
+		final Set<String> seen = new HashSet<String>();
+		final Set<String> nodeAddrs = PolicyReader.nodeAddresses(f);
+		final int[] cnt = new int[5]; // policies, inserted, deleted, rows not executed, rows not committed
+		final PreparedStatement ps = conn.prepareStatement(insertSql);
 		try {
-			ps = conn.prepareStatement(sql);
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
-			return;
+			cnt[0] = PolicyReader.read(f, new PolicyReader.Handler() {
+				@Override
+				public void policy(JSONObject jsonObj) throws SQLException {
+					String h = rowHash(jsonObj);
+					if (!seen.add(h) || stored.remove(h))
+						return; // repeated in the file, or stored already
+					String srcAddr = jsonObj.getString("src_addr");
+					String dstAddr = jsonObj.getString("dst_addr");
+					ps.setString(1, node);
+					ps.setString(2, batchId);
+					ps.setString(3, srcAddr);
+					ps.setString(4, jsonObj.getString("src_port"));
+					ps.setString(5, jsonObj.getString("proto"));
+					ps.setString(6, dstAddr);
+					ps.setString(7, jsonObj.getString("dst_port"));
+					ps.setString(8, nodeAddrs.contains(srcAddr) ? "outbound" : nodeAddrs.contains(dstAddr) ? "inbound" : null);
+					ps.setString(9, h);
+					ps.addBatch();
+					cnt[1]++;
+					pending(ps, cnt);
+				}
+			});
+			if (cnt[3] > 0)
+				ps.executeBatch();
+		} finally {
+			ps.close();
 		}
+		cnt[3] = 0;
+		PreparedStatement del = conn.prepareStatement(deleteSql);
 		try {
-			ps.executeUpdate();
-			logger.info("Original Table has been dropped!");
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
-			return;
+			for (String h : stored) { // left over, no longer in the file
+				del.setString(1, node);
+				del.setString(2, h);
+				del.addBatch();
+				cnt[2]++;
+				pending(del, cnt);
+			}
+			if (cnt[3] > 0)
+				del.executeBatch();
+		} finally {
+			del.close();
 		}
+		conn.commit();
+		return new int[] { cnt[0], cnt[1], cnt[2] };
 	}
 
-	private boolean tblExists() {
-		String sql = tblCntSql;
-		PreparedStatement ps = null;
-		try {
-			ps = conn.prepareStatement(sql);
-			ps.setString(1, tblName.toUpperCase());
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
-			return false;
+	/**
+	 * Count a statement added to the batch, executing the batch when full and
+	 * committing every commitInterval statements
+	 * 
+	 * @param ps
+	 * @param cnt
+	 * @throws SQLException
+	 */
+	private void pending(PreparedStatement ps, int[] cnt) throws SQLException {
+		if (++cnt[3] == batchSize) {
+			ps.executeBatch();
+			cnt[3] = 0;
 		}
-		ResultSet rs = null;
-		int cnt = 0;
+		if (++cnt[4] == commitInterval) {
+			if (cnt[3] > 0)
+				ps.executeBatch();
+			cnt[3] = 0;
+			conn.commit();
+			cnt[4] = 0;
+		}
+	}
+
+	private void execute(String sql) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(sql);
 		try {
-			rs = ps.executeQuery();
-			if (rs != null && rs.next())
-				cnt = rs.getInt(1);
-			if (cnt > 0) {
-				logger.info("Table already exists!");
-				return true;
-			} else
-				return false;
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
-			return false;
+			ps.setString(1, node);
+			ps.setString(2, batchId);
+			ps.executeUpdate();
+		} finally {
+			ps.close();
 		}
+		conn.commit();
 	}
 
-	public void unload(JSONArray jsonArr) {
-		getConnection();
-		if (tblExists()) {
-			closeConnection();
-			return;
+	/**
+	 * Import one policy file incrementally against the rows of its node. If the
+	 * import fails the rows it inserted are deleted again; rows it deleted stay
+	 * deleted, they are no longer in the file, and the next run completes it.
+	 * 
+	 * @param f
+	 * @return policies in the file, rows inserted, rows deleted
+	 * @throws Exception
+	 */
+	public int[] unload(File f) throws Exception {
+		try {
+			return sync(f);
+		} catch (Exception e) {
+			conn.rollback();
+			execute(rollbackSql);
+			throw e;
 		}
-//			reset();
-		initTbl();
-		createIndex();
-		batchAppend(jsonArr);
-		closeConnection();
 	}
 
 	/**
-	 * JSON unified unloading entrance
+	 * JSON unified unloading entrance. All files of a run form one import batch
+	 * of the consolidated table. Files unchanged since their last import into
+	 * this table, as told by the manifest in the state directory, are skipped
+	 * without parsing as long as their node still has rows; the others are
+	 * imported incrementally, in parallel by a bounded pool of workers
+	 * sharing a small connection pool. For the initial load the indexes are
+	 * dropped during the load and built once at the end. A file which fails is
+	 * reported, left out of the manifest, and the others go on. Delete the
+	 * manifest to import all files again.
 	 */
 	private static void unload() {
 		File folder = new File(jsonDir);
-		File[] files = folder.listFiles(ff);
-		if (files.length == 0) {
+		File[] all = folder.listFiles(PolicyReader.ff);
+		if (all == null || all.length == 0) {
 			logger.warning("No json file found in the current directory!");
 			return;
 		}
-		for (File f : files) {
-			if (!f.isDirectory()) {
-				String json = null;
-				try {
-					json = FileUtils.readFileToString(f, "UTF-8");
-				} catch (IOException e) {
-					logger.warning(e.getMessage());
-				}
-				if (json == null || json.equals("")) {
-					logger.warning("JSON Format is not valid!");
-					return;
-				}
-				String tbl = f.getName().split("\\.")[0]; // the target table name
-				JSONArray jsonArr = JSONArray.parseArray(json); // policy data
-				DBUtils dbUtil = new DBUtils(tbl);
-				dbUtil.unload(jsonArr);
+		// One file a node, its rows are replaced by the file: plc_<node>_clean.json over plc_<node>.json
+		Map<String, File> byNode = new TreeMap<String, File>();
+		for (File f : all) {
+			String node = PolicyReader.serial(f);
+			File other = byNode.get(node);
+			if (other == null) {
+				byNode.put(node, f);
+				continue;
 			}
+			File raw = f.getName().endsWith("_clean.json") ? other : f;
+			if (raw == other)
+				byNode.put(node, f);
+			logger.warning("Skipped " + raw.getName() + ", node " + node + " is imported from its cleaned file.");
 		}
-	}
-	
-	private void loadOutPlc2JSON() {
-		PreparedStatement ps = null;
+		File[] files = byNode.values().toArray(new File[0]);
+		final int total = files.length;
+		final ImportManifest manifest = new ImportManifest(jdbcUrl + " " + jdbcUsr + " " + plcTbl);
+		final String batchId = DateTime.now().toString("yyyyMMddHHmmss");
+		int workers = Math.max(1, Math.min(threads, total));
+		final ConnPool pool;
 		try {
-			ps = conn.prepareStatement(outboundSql);
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
+			pool = new ConnPool(jdbcDrv, jdbcUrl, jdbcUsr, jdbcPsw, workers);
+		} catch (ClassNotFoundException | SQLException e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot connect to the database!");
+			return;
+		}
+		Connection conn = null;
+		try {
+			conn = pool.borrow();
+			initTbl(conn);
+			if (rebuildIndexes == null ? isEmpty(conn) : Boolean.parseBoolean(rebuildIndexes))
+				dropIndex(conn);
+		} catch (InterruptedException | SQLException e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot prepare table " + plcTbl + "!");
+			pool.close();
 			return;
+		} finally {
+			if (conn != null)
+				pool.release(conn);
 		}
-		
-		JSONArray jsonArr = new JSONArray();
+		final AtomicInteger done = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicInteger skipped = new AtomicInteger();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong inserted = new AtomicLong();
+		final AtomicLong deleted = new AtomicLong();
+		long begin = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		for (final File f : files) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					long start = System.currentTimeMillis();
+					String node = PolicyReader.serial(f);
+					Connection conn = null;
+					String result;
+					try {
+						conn = pool.borrow();
+						if (manifest.unchanged(node, f) && hasRows(conn, node)) {
+							skipped.incrementAndGet();
+							logger.fine("[" + done.incrementAndGet() + "/" + total + "] " + f.getName() + ": unchanged");
+							return;
+						}
+						// Taken before the import reads the file, a file rewritten meanwhile is imported again next time
+						ImportManifest.Entry stamp = ImportManifest.stamp(f);
+						int[] cnt = new DBUtils(node, batchId, conn).unload(f);
+						if (cnt[0] == 0)
+							logger.warning(f.getName() + " holds no policy!");
+						manifest.record(node, stamp);
+						rows.addAndGet(cnt[0]);
+						inserted.addAndGet(cnt[1]);
+						deleted.addAndGet(cnt[2]);
+						result = cnt[0] + " policies, " + cnt[1] + " inserted, " + cnt[2] + " deleted in "
+								+ (System.currentTimeMillis() - start) + "ms";
+					} catch (Exception e) {
+						manifest.forget(node);
+						failed.incrementAndGet();
+						result = "FAILED: " + e.getMessage();
+					} finally {
+						if (conn != null)
+							pool.release(conn);
+					}
+					logger.info("[" + done.incrementAndGet() + "/" + total + "] " + f.getName() + ": " + result);
+				}
+			});
+		}
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+				logger.info("Importing ... " + done.get() + "/" + total + " files done.");
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+		}
+		logger.info("Imported " + rows.get() + " policies from " + (total - skipped.get() - failed.get()) + "/" + total
+				+ " files in " + (System.currentTimeMillis() - begin) + "ms, " + inserted.get() + " rows inserted, "
+				+ deleted.get() + " deleted, " + skipped.get() + " files unchanged, " + failed.get() + " failed, batch "
+				+ batchId + ".");
+		try {
+			manifest.save();
+		} catch (IOException e) {
+			logger.warning(e.getMessage());
+			logger.warning("Cannot save " + ImportManifest.fileName + "!");
+		}
+		conn = null;
+		try {
+			conn = pool.borrow();
+			long start = System.currentTimeMillis();
+			createIndex(conn);
+			logger.info("Indexes built in " + (System.currentTimeMillis() - start) + "ms.");
+		} catch (InterruptedException | SQLException e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot build indexes of " + plcTbl + "!");
+		} finally {
+			if (conn != null)
+				pool.release(conn);
+		}
+		pool.close();
+	}
+
+	/**
+	 * Shard file of an address, plc_outbound_[network]_[bits].json
+	 * 
+	 * @param addr
+	 * @return
+	 */
+	private static String shardName(int addr) {
+		return "plc_outbound_" + Util.intToIp(addr & -1 << 32 - shardBits) + "_" + shardBits + ".json";
+	}
+
+	/**
+	 * Stream the outbound policies into plc_outbound_full.json, or with
+	 * -Dprism.export.shard=[bits] into one file per destination network of that
+	 * prefix length, so that each verifier can pick up its own slice. Rows are
+	 * fetched fetchSize at a time and written straight through; every file is
+	 * written aside and moved into place once complete, a failed export leaves
+	 * the previous files as they were. Rows come ordered by address, so only the
+	 * shard being written is open, the others are suspended; addresses ordered
+	 * as text keep a shard together for whole octets only, a shard met again
+	 * is resumed.
+	 */
+	private void loadOutPlc2JSON() {
+		String appPath = System.getProperty("user.dir");
+		Map<String, PolicyWriter> writers = new TreeMap<String, PolicyWriter>();
+		PolicyWriter current = null;
+		PreparedStatement ps = null;
 		ResultSet rs = null;
+		int cnt = 0;
+		long start = System.currentTimeMillis();
 		try {
+			ps = conn.prepareStatement(outboundSql);
+			ps.setFetchSize(fetchSize);
 			rs = ps.executeQuery();
+			if (shardBits == 0)
+				writers.put("plc_outbound_full.json", new PolicyWriter(Paths.get(appPath, "plc_outbound_full.json")));
 			while (rs.next()) {
-				JSONObject obj = new JSONObject(new LinkedHashMap<String, Object>());
-				obj.put("dst_addr", rs.getString(1));
+				String dstAddr = rs.getString(1);
+				String name = "plc_outbound_full.json";
+				if (shardBits > 0) {
+					try {
+						name = shardName(Util.ipToInt(dstAddr));
+					} catch (IllegalArgumentException e) {
+						logger.warning(e.getMessage());
+						continue;
+					}
+				}
+				if (current == null || !current.path().getFileName().toString().equals(name)) {
+					if (current != null)
+						current.suspend();
+					current = writers.get(name);
+					if (current == null) {
+						if (writers.size() == maxShards)
+							throw new IOException("More than " + maxShards + " shards, use a shorter prefix!");
+						current = new PolicyWriter(Paths.get(appPath, name));
+						writers.put(name, current);
+					}
+				}
+				Map<String, Object> obj = new LinkedHashMap<String, Object>();
+				obj.put("dst_addr", dstAddr);
 				obj.put("dst_port", rs.getString(2));
-				jsonArr.add(obj);
+				current.write(obj);
+				cnt++;
 			}
-		} catch (SQLException e) {
+			for (PolicyWriter w : writers.values())
+				w.commit();
+		} catch (SQLException | IOException e) {
 			logger.warning(e.getMessage());
+			logger.warning("Cannot dump outbound policies!");
 			return;
-		}
-		try {
-			ps.close();
-			conn.commit();
-			logger.info("Data imported successfully!");
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
-		}
-		
-		String appPath = System.getProperty("user.dir");
-		Path dmpPath = Paths.get(appPath, "plc_outbound_full.json");
-		if (!Files.exists(dmpPath)) {
-			try {
-				Files.createFile(dmpPath);
-			} catch (IOException e) {
-				logger.warning(e.getMessage());
-				logger.warning("Cannot create file!");
-				return;
+		} finally {
+			for (PolicyWriter w : writers.values()) {
+				try {
+					w.close();
+				} catch (IOException e) {
+					logger.warning(e.getMessage());
+				}
 			}
-		} else { // Reset this file
-			File f = new File(dmpPath.toString());
-			FileWriter fw = null;
 			try {
-				fw = new FileWriter(f);
-				fw.write("");
-				fw.flush();
-				fw.close();
-			} catch (IOException e) {
-				logger.severe("File emptying failed!");
+				if (rs != null)
+					rs.close();
+				if (ps != null)
+					ps.close();
+			} catch (SQLException e) {
+				logger.warning(e.getMessage());
 			}
 		}
-		
-		String json = JSONObject.toJSONString(jsonArr, true);
-		try {
-			Files.write(dmpPath, json.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE);
-		} catch (IOException e) {
-			logger.warning(e.getMessage());
-			logger.warning("Cannot dump outbound policies!");
-			return;
+		if (shardBits > 0) { // shards of the previous export which have no policy any more
+			final String suffix = "_" + shardBits + ".json";
+			File[] stale = new File(appPath).listFiles(new FileFilter() {
+				@Override
+				public boolean accept(File file) {
+					return file.getName().startsWith("plc_outbound_") && file.getName().endsWith(suffix);
+				}
+			});
+			for (File f : stale == null ? new File[0] : stale) {
+				if (!writers.containsKey(f.getName()) && f.delete())
+					logger.info("Removed stale shard " + f.getName());
+			}
 		}
+		logger.info("Dumped " + cnt + " outbound policies into " + writers.size() + " file(s) in "
+				+ (System.currentTimeMillis() - start) + "ms.");
 	}
-	
+
 	public static void loadOutPlc() {
-		DBUtils dbUtil = new DBUtils("");
+		DBUtils dbUtil = new DBUtils("", "");
 		dbUtil.getConnection();
 		dbUtil.loadOutPlc2JSON();
 		dbUtil.closeConnection();
 	}
 
 	public static void main(String[] args) {
-		unload();
-//		loadOutPlc();
+		if (args.length > 0 && args[0].equals("export"))
+			loadOutPlc();
+		else
+			unload();
 	}
 }
@@ -0,0 +1,510 @@
+/******************************************
+ * Service dependency graph of policy     *
+ * files in compressed sparse rows, with  *
+ * parallel reachability, fan-in/out and  *
+ * shortest path queries                  *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.logging.Logger;
+
+import com.alibaba.fastjson.JSONObject;
+
+// @formatter:off
+/**
+ * Vertices are hosts, an address, and services, an address, port and proto.
+ * A client host has an edge to every service it calls, a service an edge to
+ * its host, so what a host calls is what its services depend on:
+ *  dependencies of x  everything x reaches, forward
+ *  dependents of x    everything reaching x, backward, its blast radius
+ */
+// @formatter:on
+public class DependencyGraph {
+	private final static Logger logger = Logger.getLogger(DependencyGraph.class.getName());
+	private final static int parallelFrontier = 4096; // smaller levels are searched by one thread
+	private final static int chunk = 1024; // frontier vertices of a task
+
+	private final KeySet vertices = new KeySet(); // host: address, 0, 0 / service: address, port, proto
+	private long[] edges = new long[1024]; // from << 32 | to, until built
+	private int edgeCount = 0;
+	private int[] outOff; // forward rows
+	private int[] outAdj;
+	private int[] inOff; // backward rows
+	private int[] inAdj;
+	private int policies = 0;
+	private int invalid = 0;
+	private final ExecutorService pool;
+	private final int threads;
+
+	public DependencyGraph() {
+		threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Graph");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private int host(int addr) {
+		return vertices.add(PolicyReader.packHi(addr, 0, 0), 0);
+	}
+
+	private int service(int addr, int port, int proto) {
+		return vertices.add(PolicyReader.packHi(addr, port, proto), 1);
+	}
+
+	private void edge(int from, int to) {
+		if (edgeCount == edges.length)
+			edges = Arrays.copyOf(edges, edgeCount * 2);
+		edges[edgeCount++] = (long) from << 32 | to;
+	}
+
+	/**
+	 * Add the policies of a file, or of all files of a directory
+	 *
+	 * @param f
+	 * @throws Exception
+	 */
+	public void load(File f) throws Exception {
+		if (f.isDirectory()) {
+			File[] fs = f.listFiles(PolicyReader.ff);
+			if (fs == null)
+				return;
+			Arrays.sort(fs);
+			for (File g : fs)
+				load(g);
+			return;
+		}
+		final int[] p = new int[5];
+		PolicyReader.read(f, new PolicyReader.Handler() {
+			@Override
+			public void policy(JSONObject plc) {
+				if (!PolicyReader.parse(plc, p)) {
+					invalid++;
+					return;
+				}
+				int s = service(p[3], p[4], p[2]);
+				edge(host(p[0]), s);
+				edge(s, host(p[3]));
+				policies++;
+			}
+		});
+	}
+
+	/**
+	 * Rows of the edges, duplicates dropped
+	 *
+	 * @param sorted edges, row vertex << 32 | column vertex
+	 * @param n     edges
+	 * @param off   row offsets to fill, vertices + 1
+	 * @return the column vertices
+	 */
+	private static int[] rows(long[] sorted, int n, int[] off) {
+		int[] adj = new int[n];
+		for (int i = 0; i < n; i++)
+			off[(int) (sorted[i] >>> 32) + 1]++;
+		for (int v = 0; v + 1 < off.length; v++)
+			off[v + 1] += off[v];
+		int[] fill = Arrays.copyOf(off, off.length - 1);
+		for (int i = 0; i < n; i++)
+			adj[fill[(int) (sorted[i] >>> 32)]++] = (int) sorted[i];
+		return adj;
+	}
+
+	/**
+	 * Turn the edges loaded into the forward and backward rows
+	 */
+	public void build() {
+		long[] e = Arrays.copyOf(edges, edgeCount);
+		edges = null;
+		Arrays.parallelSort(e);
+		int n = 0;
+		for (int i = 0; i < e.length; i++)
+			if (n == 0 || e[i] != e[n - 1])
+				e[n++] = e[i];
+		int v = vertices.size();
+		outOff = new int[v + 1];
+		outAdj = rows(e, n, outOff);
+		for (int i = 0; i < n; i++) // to << 32 | from
+			e[i] = e[i] << 32 | e[i] >>> 32;
+		Arrays.parallelSort(e, 0, n);
+		inOff = new int[v + 1];
+		inAdj = rows(e, n, inOff);
+		edgeCount = n;
+	}
+
+	public int vertexCount() {
+		return vertices.size();
+	}
+
+	public int edgeCount() {
+		return edgeCount;
+	}
+
+	public boolean isService(int v) {
+		return vertices.lo(v) == 1;
+	}
+
+	/**
+	 * Name of a vertex, address for a host, address:port/proto for a service
+	 *
+	 * @param v
+	 * @return
+	 */
+	public String name(int v) {
+		long hi = vertices.hi(v);
+		String addr = Util.intToIp((int) (hi >>> 32));
+		return isService(v) ? addr + ":" + ((int) hi >>> 8 & 0xffff) + "/" + Util.protoName((int) hi & 0xff) : addr;
+	}
+
+	/**
+	 * Vertices of an endpoint: address, address:port for the services of both
+	 * protos, or address:port/proto
+	 *
+	 * @param endpoint
+	 * @return none if not in the graph
+	 * @throws IllegalArgumentException if not valid
+	 */
+	public int[] find(String endpoint) {
+		String s = endpoint.trim();
+		int proto = 0;
+		int slash = s.indexOf('/');
+		if (slash >= 0) {
+			proto = Util.protoNum(s.substring(slash + 1));
+			if (proto < 0)
+				throw new IllegalArgumentException("Invalid proto: " + endpoint);
+			s = s.substring(0, slash);
+		}
+		int colon = s.indexOf(':');
+		int addr = Util.ipToInt(colon < 0 ? s : s.substring(0, colon));
+		if (colon < 0) {
+			int v = vertices.find(PolicyReader.packHi(addr, 0, 0), 0);
+			return v < 0 ? new int[0] : new int[] { v };
+		}
+		int port = Integer.parseInt(s.substring(colon + 1));
+		if (port < 0 || port > 65535)
+			throw new IllegalArgumentException("Invalid port: " + endpoint);
+		int[] found = new int[2];
+		int n = 0;
+		for (int p : new int[] { Util.PROTO_TCP, Util.PROTO_UDP }) {
+			if (proto != 0 && p != proto)
+				continue;
+			int v = vertices.find(PolicyReader.packHi(addr, port, p), 1);
+			if (v >= 0)
+				found[n++] = v;
+		}
+		return Arrays.copyOf(found, n);
+	}
+
+	public int fanOut(int v) {
+		return outOff[v + 1] - outOff[v];
+	}
+
+	public int fanIn(int v) {
+		return inOff[v + 1] - inOff[v];
+	}
+
+	/**
+	 * Neighbours of a part of a frontier not reached yet, claimed by this task
+	 */
+	private static int[] expand(int[] off, int[] adj, int[] frontier, int from, int to, int level,
+			AtomicIntegerArray hops, int[] parent) {
+		int[] next = new int[16];
+		int n = 0;
+		for (int i = from; i < to; i++) {
+			int u = frontier[i];
+			for (int k = off[u]; k < off[u + 1]; k++) {
+				int w = adj[k];
+				if (hops.get(w) >= 0 || !hops.compareAndSet(w, -1, level))
+					continue;
+				parent[w] = u;
+				if (n == next.length)
+					next = Arrays.copyOf(next, n * 2);
+				next[n++] = w;
+			}
+		}
+		return Arrays.copyOf(next, n);
+	}
+
+	/**
+	 * Breadth first search, level by level, a large level spread over the
+	 * threads, a vertex claimed by whichever thread reaches it first
+	 *
+	 * @param forward or backward
+	 * @param sources
+	 * @param target  to stop at once reached, -1 for none
+	 * @param parent  vertex each one was reached from, filled
+	 * @return hops of every vertex from the sources, -1 if not reached
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	public int[] bfs(boolean forward, int[] sources, int target, final int[] parent)
+			throws InterruptedException, ExecutionException {
+		final int[] off = forward ? outOff : inOff;
+		final int[] adj = forward ? outAdj : inAdj;
+		int[] unreached = new int[vertices.size()];
+		Arrays.fill(unreached, -1);
+		Arrays.fill(parent, -1);
+		final AtomicIntegerArray hops = new AtomicIntegerArray(unreached);
+		int[] frontier = sources.clone();
+		for (int s : sources)
+			hops.set(s, 0);
+		for (int level = 1; frontier.length > 0 && (target < 0 || hops.get(target) < 0); level++) {
+			if (frontier.length < parallelFrontier) {
+				frontier = expand(off, adj, frontier, 0, frontier.length, level, hops, parent);
+				continue;
+			}
+			List<Callable<int[]>> tasks = new ArrayList<Callable<int[]>>();
+			final int[] f = frontier;
+			final int l = level;
+			for (int from = 0; from < f.length; from += chunk) {
+				final int a = from;
+				final int b = Math.min(f.length, from + chunk);
+				tasks.add(new Callable<int[]>() {
+					@Override
+					public int[] call() {
+						return expand(off, adj, f, a, b, l, hops, parent);
+					}
+				});
+			}
+			List<Future<int[]>> parts = pool.invokeAll(tasks);
+			int n = 0;
+			for (Future<int[]> part : parts)
+				n += part.get().length;
+			frontier = new int[n];
+			n = 0;
+			for (Future<int[]> part : parts) {
+				int[] p = part.get();
+				System.arraycopy(p, 0, frontier, n, p.length);
+				n += p.length;
+			}
+		}
+		for (int v = 0; v < unreached.length; v++)
+			unreached[v] = hops.get(v);
+		return unreached;
+	}
+
+	private Map<String, Object> vertex(int v) {
+		Map<String, Object> m = new LinkedHashMap<String, Object>();
+		m.put("id", name(v));
+		m.put("kind", isService(v) ? "service" : "host");
+		m.put("fan_in", fanIn(v));
+		m.put("fan_out", fanOut(v));
+		return m;
+	}
+
+	/**
+	 * Everything an endpoint reaches or is reached by, by hops, with the vertex
+	 * each one was reached through
+	 *
+	 * @param endpoint
+	 * @param forward  dependencies, else dependents
+	 * @param dot      the search tree in DOT, filled
+	 * @return
+	 * @throws Exception
+	 */
+	public JSONObject reach(String endpoint, boolean forward, StringBuilder dot) throws Exception {
+		int[] sources = find(endpoint);
+		int[] parent = new int[vertices.size()];
+		long start = System.nanoTime();
+		int[] hops = bfs(forward, sources, -1, parent);
+		long micros = (System.nanoTime() - start) / 1000;
+		int[] byHops = new int[hops.length + 1]; // counting sort, nearest first
+		for (int v = 0; v < hops.length; v++)
+			if (hops[v] > 0)
+				byHops[hops[v]]++;
+		for (int i = 1; i < byHops.length; i++)
+			byHops[i] += byHops[i - 1];
+		int[] reached = new int[byHops[byHops.length - 1]];
+		for (int v = hops.length - 1; v >= 0; v--)
+			if (hops[v] > 0)
+				reached[--byHops[hops[v]]] = v;
+		int hosts = 0;
+		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+		dot.append("digraph \"").append(forward ? "dependencies" : "dependents").append(" of ").append(endpoint)
+				.append("\" {\n\trankdir=LR;\n");
+		for (int s : sources)
+			dot.append("\t\"").append(name(s)).append("\" [style=filled, fillcolor=orange];\n");
+		for (int v : reached) {
+			Map<String, Object> m = vertex(v);
+			m.put("hops", hops[v]);
+			m.put("via", name(parent[v]));
+			list.add(m);
+			if (!isService(v))
+				hosts++;
+			dot.append("\t\"").append(forward ? name(parent[v]) : name(v)).append("\" -> \"")
+					.append(forward ? name(v) : name(parent[v])).append("\";\n");
+		}
+		dot.append("}\n");
+		JSONObject obj = new JSONObject(new LinkedHashMap<String, Object>());
+		obj.put("query", endpoint);
+		obj.put("direction", forward ? "dependencies" : "dependents");
+		obj.put("found", sources.length > 0);
+		obj.put("hosts", hosts);
+		obj.put("services", reached.length - hosts);
+		obj.put("micros", micros);
+		obj.put("vertices", list);
+		logger.info((forward ? "Dependencies" : "Dependents") + " of " + endpoint + ": " + hosts + " hosts, "
+				+ (reached.length - hosts) + " services in " + micros + "us.");
+		return obj;
+	}
+
+	/**
+	 * Shortest dependency chain from one endpoint to another
+	 *
+	 * @param from
+	 * @param to
+	 * @param dot  the path in DOT, filled
+	 * @return
+	 * @throws Exception
+	 */
+	public JSONObject path(String from, String to, StringBuilder dot) throws Exception {
+		int[] sources = find(from);
+		int[] targets = find(to);
+		int[] parent = new int[vertices.size()];
+		List<String> path = new ArrayList<String>();
+		long start = System.nanoTime();
+		if (targets.length > 0) {
+			int[] hops = bfs(true, sources, targets[0], parent);
+			int t = targets[0];
+			for (int c : targets) // the nearer proto
+				if (hops[c] >= 0 && (hops[t] < 0 || hops[c] < hops[t]))
+					t = c;
+			if (hops[t] >= 0)
+				for (int v = t; v >= 0; v = parent[v])
+					path.add(0, name(v));
+		}
+		long micros = (System.nanoTime() - start) / 1000;
+		dot.append("digraph \"").append(from).append(" to ").append(to).append("\" {\n\trankdir=LR;\n");
+		for (int i = 0; i + 1 < path.size(); i++)
+			dot.append("\t\"").append(path.get(i)).append("\" -> \"").append(path.get(i + 1)).append("\";\n");
+		dot.append("}\n");
+		JSONObject obj = new JSONObject(new LinkedHashMap<String, Object>());
+		obj.put("from", from);
+		obj.put("to", to);
+		obj.put("hops", path.size() - 1);
+		obj.put("micros", micros);
+		obj.put("path", path);
+		logger.info("Path from " + from + " to " + to + ": "
+				+ (path.isEmpty() ? "none" : (path.size() - 1) + " hops") + " in " + micros + "us.");
+		return obj;
+	}
+
+	/**
+	 * The hosts calling the most services and the services called by the most
+	 * hosts
+	 *
+	 * @param top
+	 * @param dot the stars of the top hosts and services in DOT, filled
+	 * @return
+	 */
+	public JSONObject fan(int top, StringBuilder dot) {
+		List<Integer> hosts = new ArrayList<Integer>();
+		List<Integer> services = new ArrayList<Integer>();
+		for (int v = 0; v < vertices.size(); v++)
+			(isService(v) ? services : hosts).add(v);
+		Collections.sort(hosts, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(fanOut(b), fanOut(a));
+			}
+		});
+		Collections.sort(services, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(fanIn(b), fanIn(a));
+			}
+		});
+		List<Map<String, Object>> fanOut = new ArrayList<Map<String, Object>>();
+		List<Map<String, Object>> fanIn = new ArrayList<Map<String, Object>>();
+		dot.append("digraph fan {\n\trankdir=LR;\n");
+		for (int v : hosts.subList(0, Math.min(top, hosts.size()))) {
+			fanOut.add(vertex(v));
+			dot.append("\t\"").append(name(v)).append("\" [shape=box, label=\"").append(name(v)).append("\\n")
+					.append(fanOut(v)).append(" services\"];\n");
+		}
+		for (int v : services.subList(0, Math.min(top, services.size()))) {
+			fanIn.add(vertex(v));
+			dot.append("\t\"").append(name(v)).append("\" [label=\"").append(name(v)).append("\\n")
+					.append(fanIn(v)).append(" clients\"];\n");
+		}
+		dot.append("}\n");
+		JSONObject obj = new JSONObject(new LinkedHashMap<String, Object>());
+		obj.put("hosts", hosts.size());
+		obj.put("services", services.size());
+		obj.put("edges", edgeCount);
+		obj.put("fan_out", fanOut);
+		obj.put("fan_in", fanIn);
+		return obj;
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 2 || (args[1].equals("dependents") || args[1].equals("dependencies")) && args.length < 3
+				|| args[1].equals("path") && args.length < 4) {
+			logger.warning("Usage: DependencyGraph <policy file or dir> dependents|dependencies <address[:port[/proto]]> "
+					+ "[<output stem>] | path <from> <to> [<output stem>] | fan [<top>] [<output stem>]");
+			return;
+		}
+		String appPath = System.getProperty("user.dir");
+		String cmd = args[1];
+		// fan takes its top count only if one is given, a stem may follow it directly
+		boolean top = cmd.equals("fan") && args.length > 2 && !args[2].isEmpty() && Util.isInteger(args[2]);
+		int stemArg = cmd.equals("path") ? 4 : cmd.equals("fan") && !top ? 2 : 3;
+		String stem = args.length > stemArg ? args[stemArg] : "graph_" + cmd;
+		DependencyGraph g = new DependencyGraph();
+		try {
+			long start = System.currentTimeMillis();
+			g.load(Paths.get(appPath).resolve(args[0]).toFile());
+			g.build();
+			logger.info("Graph of " + g.policies + " policies, " + g.invalid + " invalid: " + g.vertexCount()
+					+ " vertices, " + g.edgeCount() + " edges in " + (System.currentTimeMillis() - start) + "ms.");
+			StringBuilder dot = new StringBuilder();
+			JSONObject obj;
+			if (cmd.equals("dependents") || cmd.equals("dependencies"))
+				obj = g.reach(args[2], cmd.equals("dependencies"), dot);
+			else if (cmd.equals("path"))
+				obj = g.path(args[2], args[3], dot);
+			else if (cmd.equals("fan"))
+				obj = g.fan(top ? Integer.parseInt(args[2]) : 20, dot);
+			else {
+				logger.warning("Unknown graph query: " + cmd);
+				return;
+			}
+			Path json = Paths.get(appPath, stem + ".json");
+			Files.write(json, JSONObject.toJSONString(obj, true).getBytes(StandardCharsets.UTF_8));
+			Files.write(Paths.get(appPath, stem + ".dot"), dot.toString().getBytes(StandardCharsets.UTF_8));
+			logger.info("Written " + json.getFileName() + " and " + stem + ".dot.");
+		} catch (IllegalArgumentException e) {
+			logger.warning(e.getMessage());
+		} catch (IOException e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot write the graph query!");
+		} catch (Exception e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot build the dependency graph!");
+		}
+	}
+}
@@ -0,0 +1,341 @@
+/******************************************
+ * Compiles the policies of a node into   *
+ * ipset restore and iptables-restore     *
+ * input, one hash:net set per port       *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.alibaba.fastjson.JSONObject;
+
+public class FirewallExporter {
+	private final static Logger logger = Logger.getLogger(FirewallExporter.class.getName());
+	private final static String inChain = "PRISM-IN";
+	private final static String outChain = "PRISM-OUT";
+	// Target at the end of both chains, -Dprism.fw.policy, RETURN leaves the rest to the host's own rules
+	private final static String endTarget = System.getProperty("prism.fw.policy", "RETURN");
+	// Addresses of the node, -Dprism.fw.node=a.b.c.d,..., inferred from the policies if not given
+	private final static String nodeAddrs = System.getProperty("prism.fw.node");
+
+	/**
+	 * One rule: the remote addresses allowed to one local address and port
+	 */
+	private final static class Rule {
+		final boolean in;
+		final String proto;
+		final String local; // node address
+		final String sport; // fixed client port or null
+		final String dport; // port or first:last
+		final Set<String> nets = new LinkedHashSet<String>(); // remote addresses and networks
+		String set; // name of the ipset
+		long packets = 0;
+		boolean counted = false; // whether any policy had a packet count
+
+		Rule(boolean in, String proto, String local, String sport, String dport) {
+			this.in = in;
+			this.proto = proto;
+			this.local = local;
+			this.sport = sport;
+			this.dport = dport;
+		}
+	}
+
+	private final Map<String, Rule> rules = new HashMap<String, Rule>();
+	private Set<String> node = null;
+	private int policies = 0;
+	private int skipped = 0;
+
+	/**
+	 * An address or network of a policy, a.b.c.d or a.b.c.d/len. A /0 would let
+	 * every address through, so it is no network to allow
+	 *
+	 * @param s
+	 * @return whether it is valid
+	 */
+	private static boolean isNet(String s) {
+		if (s == null)
+			return false;
+		int slash = s.indexOf('/');
+		try {
+			Util.ipToInt(slash < 0 ? s : s.substring(0, slash));
+			if (slash >= 0) {
+				int len = Integer.parseInt(s.substring(slash + 1));
+				return len >= 1 && len <= 32;
+			}
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * The ports of a policy, a port, or a set as written by PolicyAggregator:
+	 * ports and first-last ranges separated by commas
+	 *
+	 * @param s
+	 * @return ports and first:last ranges, or null if not valid
+	 */
+	private static List<String> ports(String s) {
+		List<String> list = new ArrayList<String>();
+		if (s == null)
+			return null;
+		for (String p : s.split(",")) {
+			p = p.trim();
+			int dash = p.indexOf('-');
+			try {
+				int first = Integer.parseInt(dash < 0 ? p : p.substring(0, dash));
+				int last = dash < 0 ? first : Integer.parseInt(p.substring(dash + 1));
+				if (first < 1 || last > 65535 || first > last)
+					return null;
+				list.add(first == last ? Integer.toString(first) : first + ":" + last);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Add a policy: allowed in if the node is its server, allowed out if the node
+	 * is its client
+	 *
+	 * @param plc
+	 */
+	public void add(JSONObject plc) {
+		policies++;
+		String src = plc.getString("src_addr");
+		String dst = plc.getString("dst_addr");
+		String proto = plc.getString("proto");
+		String sport = plc.getString("src_port");
+		List<String> dports = ports(plc.getString("dst_port"));
+		boolean in = node.contains(dst);
+		if (!isNet(src) || !isNet(dst) || dports == null || Util.protoNum(proto == null ? "" : proto) < 0
+				|| !in && !node.contains(src)) {
+			skipped++;
+			return;
+		}
+		proto = proto.toLowerCase();
+		sport = sport == null || sport.trim().equals("0") ? null : sport.trim();
+		Long packets = plc.getLong("packets");
+		for (String dport : dports) {
+			String local = in ? dst : src;
+			String key = (in ? "in " : "out ") + proto + " " + local + " " + sport + " " + dport;
+			Rule r = rules.get(key);
+			if (r == null) {
+				r = new Rule(in, proto, local, sport, dport);
+				rules.put(key, r);
+			}
+			r.nets.add(in ? src : dst);
+			if (packets != null) {
+				r.packets += packets;
+				r.counted = true;
+			}
+		}
+	}
+
+	/**
+	 * Add all policies of a policy file
+	 *
+	 * @param f
+	 * @throws Exception
+	 */
+	public void load(File f) throws Exception {
+		if (nodeAddrs != null) {
+			node = new LinkedHashSet<String>();
+			for (String a : nodeAddrs.split(","))
+				node.add(a.trim());
+		} else {
+			node = PolicyReader.nodeAddresses(f);
+		}
+		PolicyReader.read(f, new PolicyReader.Handler() {
+			@Override
+			public void policy(JSONObject plc) {
+				add(plc);
+			}
+		});
+	}
+
+	/**
+	 * Rules of a chain, the most hit first when the policies carry packet counts,
+	 * otherwise the largest sets first
+	 *
+	 * @param in
+	 * @return
+	 */
+	private List<Rule> chain(boolean in) {
+		List<Rule> list = new ArrayList<Rule>();
+		for (Rule r : rules.values())
+			if (r.in == in)
+				list.add(r);
+		Collections.sort(list, new Comparator<Rule>() {
+			@Override
+			public int compare(Rule a, Rule b) {
+				int c = Long.compare(b.packets, a.packets);
+				if (c == 0)
+					c = Integer.compare(b.nets.size(), a.nets.size());
+				if (c == 0)
+					c = (a.proto + a.dport + a.local).compareTo(b.proto + b.dport + b.local);
+				return c;
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * Name the set of every rule after its chain, protocol and port, with a suffix
+	 * hashed from its local address and client port, so a name stays with its rule
+	 * from one export to the next. Named in key order, a clash takes the next hash
+	 */
+	private void name() {
+		List<String> keys = new ArrayList<String>(rules.keySet());
+		Collections.sort(keys);
+		Set<String> names = new HashSet<String>();
+		for (String key : keys) {
+			Rule r = rules.get(key);
+			String base = "prism_" + (r.in ? "in" : "out") + "_" + r.proto + "_" + r.dport.replace(':', '-') + "_";
+			// prism_out_udp_10000-10010_abc_n is 31 characters, ipset names are at most 31
+			int len = Math.min(6, 31 - 2 - base.length());
+			long h = (r.local + " " + r.sport).hashCode() & 0xffffffffL;
+			do {
+				String hash = "000000" + Long.toString(h++ & 0xffffffffL, 36);
+				r.set = base + hash.substring(hash.length() - len);
+			} while (!names.add(r.set));
+		}
+	}
+
+	/**
+	 * The sets of an earlier export, the targets of its swaps
+	 *
+	 * @param ipset
+	 * @return
+	 * @throws IOException
+	 */
+	private static Set<String> loaded(Path ipset) throws IOException {
+		Set<String> sets = new LinkedHashSet<String>();
+		if (!Files.exists(ipset))
+			return sets;
+		for (String line : Files.readAllLines(ipset, StandardCharsets.UTF_8)) {
+			String[] f = line.trim().split(" ");
+			if (f.length == 3 && f[0].equals("swap") && f[2].startsWith("prism_"))
+				sets.add(f[2]);
+		}
+		return sets;
+	}
+
+	private static void write(Path path, String content) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		Writer w = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp), StandardCharsets.UTF_8));
+		try {
+			w.write(content);
+		} finally {
+			w.close();
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Write [stem].ipset, [stem].iptables and [stem].cleanup. The sets are filled
+	 * under temporary names and swapped in, so a loaded set is never seen half
+	 * full; the chains are replaced by one iptables-restore commit. The sets of
+	 * the last export no rule matches any more are destroyed once the chains have
+	 * let go of them: ipset restore < [stem].ipset && iptables-restore --noflush <
+	 * [stem].iptables && ipset restore < [stem].cleanup
+	 *
+	 * @param stem
+	 * @throws IOException
+	 */
+	public void export(Path stem) throws IOException {
+		List<Rule> ins = chain(true);
+		List<Rule> outs = chain(false);
+		name();
+		Path ipsetPath = stem.resolveSibling(stem.getFileName() + ".ipset");
+		Set<String> stale = loaded(ipsetPath);
+		StringBuilder ipset = new StringBuilder();
+		StringBuilder ipt = new StringBuilder();
+		ipt.append("# iptables-restore --noflush, hook the chains once with\n");
+		ipt.append("# iptables -I INPUT -j " + inChain + " && iptables -I OUTPUT -j " + outChain + "\n");
+		ipt.append("*filter\n");
+		ipt.append(":" + inChain + " - [0:0]\n");
+		ipt.append(":" + outChain + " - [0:0]\n");
+		ipt.append("-F " + inChain + "\n");
+		ipt.append("-F " + outChain + "\n");
+		ipt.append("-A " + inChain + " -m conntrack --ctstate ESTABLISHED,RELATED -j ACCEPT\n");
+		ipt.append("-A " + outChain + " -m conntrack --ctstate ESTABLISHED,RELATED -j ACCEPT\n");
+		List<Rule> all = new ArrayList<Rule>(ins);
+		all.addAll(outs);
+		for (Rule r : all) {
+			stale.remove(r.set);
+			String tmp = r.set + "_n";
+			ipset.append("create " + r.set + " hash:net family inet -exist\n");
+			ipset.append("create " + tmp + " hash:net family inet -exist\n");
+			ipset.append("flush " + tmp + "\n");
+			for (String net : r.nets)
+				ipset.append("add " + tmp + " " + net + " -exist\n");
+			ipset.append("swap " + tmp + " " + r.set + "\n");
+			ipset.append("destroy " + tmp + "\n");
+			ipt.append("-A " + (r.in ? inChain : outChain) + " " + (r.in ? "-d " : "-s ") + r.local + " -p " + r.proto);
+			if (r.sport != null)
+				ipt.append(" --sport " + r.sport);
+			ipt.append(" --dport " + r.dport + " -m set --match-set " + r.set + (r.in ? " src" : " dst"));
+			if (r.counted)
+				ipt.append(" -m comment --comment \"packets " + r.packets + "\"");
+			ipt.append(" -j ACCEPT\n");
+		}
+		ipt.append("-A " + inChain + " -j " + endTarget + "\n");
+		ipt.append("-A " + outChain + " -j " + endTarget + "\n");
+		ipt.append("COMMIT\n");
+		StringBuilder cleanup = new StringBuilder();
+		for (String set : stale)
+			cleanup.append("destroy " + set + "\n");
+		write(ipsetPath, ipset.toString());
+		write(stem.resolveSibling(stem.getFileName() + ".iptables"), ipt.toString());
+		write(stem.resolveSibling(stem.getFileName() + ".cleanup"), cleanup.toString());
+		logger.info("Compiled " + (policies - skipped) + " policies into " + ins.size() + " inbound and " + outs.size()
+				+ " outbound rules, " + skipped + " skipped, " + stale.size() + " stale sets, node " + node + ".");
+	}
+
+	/**
+	 * Usage: FirewallExporter [policy file] [?output stem], the stem defaults to
+	 * the input name without .json
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			logger.warning("Usage: FirewallExporter <policy file> [<output stem>]");
+			return;
+		}
+		String appPath = System.getProperty("user.dir");
+		File in = Paths.get(appPath).resolve(args[0]).toFile();
+		Path stem = args.length > 1 ? Paths.get(appPath).resolve(args[1])
+				: in.toPath().resolveSibling(in.getName().replaceFirst("(?i)\\.json$", ""));
+		FirewallExporter fe = new FirewallExporter();
+		try {
+			fe.load(in);
+			fe.export(stem);
+		} catch (Exception e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot compile " + in.getName() + "!");
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/******************************************
+ * Bounded table of TCP SYNs waiting for  *
+ * their SYN-ACK or RST, to time the      *
+ * handshakes seen on the wire            *
+ ******************************************/
+package org.ayakaji;
+
+public class HandshakeTable {
+	private final static int ways = 8; // slots of a bucket
+
+	/**
+	 * Three longs a slot: client and server address, client and server port, and
+	 * the capture time of the SYN in microseconds, negative once the SYN was
+	 * sent again, 0 for a free slot
+	 */
+	private final long[] slots;
+	private final int mask; // of the bucket index
+	private final long timeout; // microseconds after which a SYN is given up on
+	private long overflows = 0; // SYNs pushed out before they were answered
+
+	/**
+	 * @param capacity       SYNs pending at most, rounded up to a power of 2
+	 * @param timeoutSeconds
+	 */
+	public HandshakeTable(int capacity, int timeoutSeconds) {
+		int n = ways;
+		while (n < capacity && n < 1 << 24)
+			n <<= 1;
+		slots = new long[n * 3];
+		mask = n / ways - 1;
+		timeout = timeoutSeconds * 1000000L;
+	}
+
+	private int bucket(long addrs, long ports) {
+		long h = (addrs * 0x9e3779b97f4a7c15L ^ ports) * 0xc2b2ae3d27d4eb4fL;
+		return (int) (h >>> 32) & mask;
+	}
+
+	/**
+	 * A SYN from a client. A SYN sent again spoils the sample, the reply cannot
+	 * be told to answer which of them.
+	 *
+	 * @param client
+	 * @param clientPort
+	 * @param server
+	 * @param serverPort
+	 * @param us         capture time in microseconds
+	 */
+	public void syn(int client, int clientPort, int server, int serverPort, long us) {
+		long addrs = (long) client << 32 | server & 0xffffffffL;
+		long ports = (long) clientPort << 16 | serverPort;
+		int first = bucket(addrs, ports) * ways * 3;
+		int victim = -1;
+		long oldest = Long.MAX_VALUE;
+		for (int i = first; i < first + ways * 3; i += 3) {
+			long t = slots[i + 2];
+			if (t != 0 && slots[i] == addrs && slots[i + 1] == ports) {
+				slots[i + 2] = -Math.abs(t);
+				return;
+			}
+			if (t == 0 || us - Math.abs(t) > timeout) {
+				if (oldest != 0) {
+					victim = i;
+					oldest = 0;
+				}
+			} else if (Math.abs(t) < oldest) {
+				victim = i;
+				oldest = Math.abs(t);
+			}
+		}
+		if (oldest != 0)
+			overflows++;
+		slots[victim] = addrs;
+		slots[victim + 1] = ports;
+		slots[victim + 2] = us;
+	}
+
+	/**
+	 * The SYN-ACK or RST of a server, the SYN it answers is done with
+	 *
+	 * @param client
+	 * @param clientPort
+	 * @param server
+	 * @param serverPort
+	 * @param us         capture time in microseconds
+	 * @return capture time of the SYN, 0 if there is none to time it from
+	 */
+	public long answer(int client, int clientPort, int server, int serverPort, long us) {
+		long addrs = (long) client << 32 | server & 0xffffffffL;
+		long ports = (long) clientPort << 16 | serverPort;
+		int first = bucket(addrs, ports) * ways * 3;
+		for (int i = first; i < first + ways * 3; i += 3) {
+			long t = slots[i + 2];
+			if (t != 0 && slots[i] == addrs && slots[i + 1] == ports) {
+				slots[i + 2] = 0;
+				return t > 0 && us >= t && us - t <= timeout ? t : 0;
+			}
+		}
+		return 0;
+	}
+
+	public long overflows() {
+		return overflows;
+	}
+}
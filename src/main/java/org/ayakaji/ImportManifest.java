@@ -0,0 +1,196 @@
+/******************************************
+ * Manifest of imported policy files, so  *
+ * that unchanged files are skipped       *
+ * without being parsed                   *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+
+public class ImportManifest {
+	private final static Logger logger = Logger.getLogger(ImportManifest.class.getName());
+	public final static String fileName = "import_manifest.json";
+	// Where the manifest is kept, away from the policy files, -Dprism.state.dir
+	public final static String stateDir = System.getProperty("prism.state.dir",
+			System.getProperty("user.home") + File.separator + ".prism");
+
+	/**
+	 * What the file of a node looked like when it was imported
+	 */
+	final static class Entry {
+		final String file; // absolute path
+		final long size;
+		final long mtime;
+		final String digest;
+
+		Entry(String file, long size, long mtime, String digest) {
+			this.file = file;
+			this.size = size;
+			this.mtime = mtime;
+			this.digest = digest;
+		}
+	}
+
+	private final Path path;
+	private final String target;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Load the manifest of the state directory, a missing or unreadable manifest
+	 * is an empty one and every file is imported. Entries are kept per target and
+	 * node, so imports into several databases or tables share the manifest
+	 * without one hiding the files of another.
+	 *
+	 * @param target the database and table the files are imported into
+	 */
+	public ImportManifest(String target) {
+		this.path = Paths.get(stateDir, fileName);
+		this.target = target;
+		if (!Files.exists(path))
+			return;
+		try {
+			JSONObject json = JSON.parseObject(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+			for (String key : json.keySet()) {
+				JSONObject e = json.getJSONObject(key);
+				entries.put(key, new Entry(e.getString("file"), e.getLongValue("size"), e.getLongValue("mtime"),
+						e.getString("digest")));
+			}
+		} catch (Exception e) {
+			logger.warning(e.getMessage());
+			logger.warning("Cannot read " + fileName + ", all files will be imported.");
+			entries.clear();
+		}
+	}
+
+	private String key(String node) {
+		return target + " " + node;
+	}
+
+	private static String path(File f) {
+		return f.getAbsoluteFile().toPath().normalize().toString();
+	}
+
+	/**
+	 * Whether the file of a node is the one last imported into the target, as it
+	 * was then. Size and mtime decide at once when they are unchanged; otherwise
+	 * the digest decides, so a file rewritten with the same content is not
+	 * imported again.
+	 *
+	 * @param node
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean unchanged(String node, File f) throws IOException {
+		Entry e = entries.get(key(node));
+		if (e == null || !path(f).equals(e.file) || e.size != f.length())
+			return false;
+		if (e.mtime == f.lastModified())
+			return true;
+		if (!digest(f).equals(e.digest))
+			return false;
+		entries.put(key(node), new Entry(e.file, e.size, f.lastModified(), e.digest));
+		return true;
+	}
+
+	/**
+	 * What a file looks like now, to be taken before it is imported: if it
+	 * changes during the import, it no longer matches its entry
+	 *
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	public static Entry stamp(File f) throws IOException {
+		long size = f.length();
+		long mtime = f.lastModified();
+		return new Entry(path(f), size, mtime, digest(f));
+	}
+
+	/**
+	 * Record the file of a node as imported into the target
+	 *
+	 * @param node
+	 * @param stamp taken before the import
+	 */
+	public void record(String node, Entry stamp) {
+		entries.put(key(node), stamp);
+	}
+
+	/**
+	 * Forget the file of a node, it is imported again next time
+	 *
+	 * @param node
+	 */
+	public void forget(String node) {
+		entries.remove(key(node));
+	}
+
+	/**
+	 * Write the manifest to a temporary file and move it into place, so a crash
+	 * leaves the previous manifest
+	 *
+	 * @throws IOException
+	 */
+	public void save() throws IOException {
+		JSONObject json = new JSONObject(new TreeMap<String, Object>());
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			JSONObject o = new JSONObject(true);
+			o.put("file", e.getValue().file);
+			o.put("size", e.getValue().size);
+			o.put("mtime", e.getValue().mtime);
+			o.put("digest", e.getValue().digest);
+			json.put(e.getKey(), o);
+		}
+		Files.createDirectories(path.getParent());
+		Path tmp = path.resolveSibling(fileName + ".tmp");
+		Files.write(tmp, JSON.toJSONString(json, true).getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * SHA-256 of a file in hex
+	 *
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	public static String digest(File f) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		byte[] buf = new byte[65536];
+		InputStream in = new FileInputStream(f);
+		try {
+			int n;
+			while ((n = in.read(buf)) > 0)
+				md.update(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest())
+			sb.append(Character.forDigit(b >> 4 & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,89 @@
+/******************************************
+ * Open addressing set of packed policy   *
+ * keys, two longs each, kept in their    *
+ * order of insertion                     *
+ ******************************************/
+package org.ayakaji;
+
+import java.util.Arrays;
+
+public class KeySet {
+	private long[] his;
+	private long[] los;
+	private int[] slots; // id + 1 of the key in a slot, 0 when free
+	private int size = 0;
+
+	public KeySet() {
+		this(16);
+	}
+
+	public KeySet(int expected) {
+		int cap = 16;
+		while (cap < expected * 2)
+			cap <<= 1;
+		his = new long[Math.max(16, expected)];
+		los = new long[his.length];
+		slots = new int[cap];
+	}
+
+	private static int hash(long hi, long lo) {
+		long h = hi * 0x9e3779b97f4a7c15L ^ lo;
+		h *= 0xbf58476d1ce4e5b9L;
+		return (int) (h ^ h >>> 31);
+	}
+
+	private int slot(long hi, long lo) {
+		int m = slots.length - 1;
+		int i = hash(hi, lo) & m;
+		while (slots[i] != 0 && (his[slots[i] - 1] != hi || los[slots[i] - 1] != lo))
+			i = i + 1 & m;
+		return i;
+	}
+
+	/**
+	 * Add a key
+	 *
+	 * @param hi
+	 * @param lo
+	 * @return id of the key, the number of keys added before it
+	 */
+	public int add(long hi, long lo) {
+		int i = slot(hi, lo);
+		if (slots[i] != 0)
+			return slots[i] - 1;
+		if (size == his.length) {
+			his = Arrays.copyOf(his, size * 2);
+			los = Arrays.copyOf(los, size * 2);
+		}
+		his[size] = hi;
+		los[size] = lo;
+		slots[i] = ++size;
+		if (size * 2 > slots.length) {
+			slots = new int[slots.length * 2];
+			for (int id = 0; id < size; id++)
+				slots[slot(his[id], los[id])] = id + 1;
+		}
+		return size - 1;
+	}
+
+	/**
+	 * @param hi
+	 * @param lo
+	 * @return id of the key, or -1 if not in the set
+	 */
+	public int find(long hi, long lo) {
+		return slots[slot(hi, lo)] - 1;
+	}
+
+	public long hi(int id) {
+		return his[id];
+	}
+
+	public long lo(int id) {
+		return los[id];
+	}
+
+	public int size() {
+		return size;
+	}
+}
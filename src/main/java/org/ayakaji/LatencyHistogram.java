@@ -0,0 +1,97 @@
+/******************************************
+ * Log-linear histogram of latencies in   *
+ * microseconds: 8 linear buckets per     *
+ * power of 2, within 12.5% everywhere    *
+ ******************************************/
+package org.ayakaji;
+
+public class LatencyHistogram {
+	private final static int subBits = 3; // linear buckets per power of 2 as bits
+	private final static int subCount = 1 << subBits;
+	private final static int buckets = (64 - subBits + 1) * subCount;
+
+	private final int[] counts = new int[buckets];
+	private long max = 0;
+	private volatile long total = 0; // written last, so a reader sees the buckets counted
+
+	private static int bucket(long v) {
+		if (v < subCount)
+			return (int) v;
+		int e = 63 - Long.numberOfLeadingZeros(v); // >= subBits
+		return (e - subBits + 1) * subCount + (int) (v >>> e - subBits) - subCount;
+	}
+
+	/**
+	 * Highest value of a bucket
+	 *
+	 * @param i
+	 * @return
+	 */
+	private static long upper(int i) {
+		if (i < subCount)
+			return i;
+		int e = i / subCount + subBits - 1;
+		long low = (long) (subCount + i % subCount) << e - subBits;
+		return low + (1L << e - subBits) - 1;
+	}
+
+	/**
+	 * Count a latency. Called by the one capture thread only.
+	 *
+	 * @param micros
+	 */
+	public void record(long micros) {
+		if (micros < 0)
+			return;
+		counts[bucket(micros)]++;
+		if (micros > max)
+			max = micros;
+		total++;
+	}
+
+	/**
+	 * A copy as of now, its count the sum of the buckets copied, while the
+	 * capture thread goes on counting
+	 *
+	 * @return
+	 */
+	public LatencyHistogram copy() {
+		LatencyHistogram h = new LatencyHistogram();
+		if (total == 0)
+			return h;
+		long n = 0;
+		for (int i = 0; i < buckets; i++)
+			n += h.counts[i] = counts[i];
+		h.max = max;
+		h.total = n;
+		return h;
+	}
+
+	public long count() {
+		return total;
+	}
+
+	public long max() {
+		return total == 0 ? 0 : max;
+	}
+
+	/**
+	 * Value below which a share of the latencies lie, as the top of its bucket
+	 *
+	 * @param q between 0 and 1
+	 * @return microseconds, 0 if nothing was counted
+	 */
+	public long percentile(double q) {
+		long n = total;
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(q * n));
+		long seen = 0;
+		for (int i = 0; i < buckets; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(upper(i), max);
+		}
+		return max;
+	}
+}
@@ -0,0 +1,285 @@
+/******************************************
+ * Listener table refreshed from the      *
+ * /proc/net socket tables, published as  *
+ * an immutable snapshot                  *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+public class ListenerMonitor implements Runnable {
+	private final static Logger logger = Logger.getLogger(ListenerMonitor.class.getName());
+	// Seconds between two refreshes, -Dprism.listeners.interval
+	private final static int interval = Math.max(1, Integer.getInteger("prism.listeners.interval", 10));
+
+	/**
+	 * An immutable listener table, safe to read from any thread without a lock.
+	 * Address 0 stands for a listener on any local address.
+	 */
+	public final static class Listeners {
+		private final long[] keys; // proto, port and address, sorted
+		private final long[] inodes; // socket inode of each key, -1 if unknown
+		private final int[] locals; // sorted local addresses, null for any address
+
+		private Listeners(long[] keys, long[] inodes, int[] locals) {
+			this.keys = keys;
+			this.inodes = inodes;
+			this.locals = locals;
+		}
+
+		private int find(int proto, int addr, int port) {
+			int i = Arrays.binarySearch(keys, key(proto, addr, port));
+			if (i >= 0 || addr == 0 || locals != null && Arrays.binarySearch(locals, addr) < 0)
+				return i;
+			return Arrays.binarySearch(keys, key(proto, 0, port));
+		}
+
+		/**
+		 * Whether a local address and port listens, itself or through a listener on
+		 * any address
+		 *
+		 * @param proto
+		 * @param addr
+		 * @param port
+		 * @return
+		 */
+		public boolean isListening(int proto, int addr, int port) {
+			return find(proto, addr, port) >= 0;
+		}
+
+		/**
+		 * @param proto
+		 * @param addr
+		 * @param port
+		 * @return socket inode of a listener, -1 if not listening or not known
+		 */
+		public long inode(int proto, int addr, int port) {
+			int i = find(proto, addr, port);
+			return i < 0 ? -1 : inodes[i];
+		}
+
+		public int size() {
+			return keys.length;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (long k : keys)
+				sb.append(sb.length() == 0 ? "" : ", ").append(name(k));
+			return "[" + sb + "]";
+		}
+	}
+
+	private final ProcNet procNet;
+	private final int[] locals;
+	private final AtomicReference<Listeners> current;
+	private long[] scanKeys = new long[256];
+	private long[] scanInodes = new long[256];
+	private int scanned = 0;
+	private final ProcNet.Handler collector = new ProcNet.Handler() {
+		@Override
+		public void socket(int proto, int localAddr, int localPort, int remoteAddr, int remotePort, int state,
+				long inode) {
+			boolean listening = proto == Util.PROTO_TCP ? state == ProcNet.TCP_LISTEN
+					: remoteAddr == 0 && remotePort == 0;
+			if (listening && localPort > 0)
+				scan(key(proto, localAddr, localPort), inode);
+		}
+	};
+	private Thread thread = null;
+
+	/**
+	 * @param root           of the proc file system
+	 * @param localAddresses which a listener on any address stands for, null for
+	 *                       any address at all
+	 */
+	public ListenerMonitor(Path root, Collection<String> localAddresses) {
+		this.procNet = new ProcNet(root);
+		if (localAddresses == null) {
+			locals = null;
+		} else {
+			int[] a = new int[localAddresses.size()];
+			int n = 0;
+			for (String s : localAddresses) {
+				try {
+					a[n] = Util.ipToInt(s);
+					n++;
+				} catch (IllegalArgumentException e) {
+					continue; // IPv6, the packet path is IPv4 only
+				}
+			}
+			locals = Arrays.copyOf(a, n);
+			Arrays.sort(locals);
+		}
+		current = new AtomicReference<Listeners>(new Listeners(new long[0], new long[0], locals));
+	}
+
+	public ListenerMonitor(Collection<String> localAddresses) {
+		this(Paths.get(ProcNet.procRoot), localAddresses);
+	}
+
+	private static long key(int proto, int addr, int port) {
+		return (long) proto << 48 | (long) port << 32 | addr & 0xffffffffL;
+	}
+
+	private static String name(long key) {
+		return Util.protoName((int) (key >>> 48)) + " " + Util.intToIp((int) key) + ":" + (int) (key >>> 32 & 0xffff);
+	}
+
+	/**
+	 * The latest snapshot, never null
+	 *
+	 * @return
+	 */
+	public Listeners listeners() {
+		return current.get();
+	}
+
+	/**
+	 * Whether the tables can be read at all, not on Linux they cannot
+	 *
+	 * @return
+	 */
+	public boolean available() {
+		return procNet.available();
+	}
+
+	private void scan(long key, long inode) {
+		if (scanned == scanKeys.length) {
+			scanKeys = Arrays.copyOf(scanKeys, scanned * 2);
+			scanInodes = Arrays.copyOf(scanInodes, scanned * 2);
+		}
+		scanKeys[scanned] = key;
+		scanInodes[scanned++] = inode;
+	}
+
+	/**
+	 * Publish a new snapshot if the listeners changed, logging what changed
+	 *
+	 * @return whether they changed
+	 */
+	private boolean publish() {
+		long[] keys = Arrays.copyOf(scanKeys, scanned);
+		Arrays.sort(keys);
+		int n = 0;
+		for (int i = 0; i < keys.length; i++)
+			if (n == 0 || keys[n - 1] != keys[i])
+				keys[n++] = keys[i];
+		keys = Arrays.copyOf(keys, n);
+		long[] inodes = new long[n];
+		Arrays.fill(inodes, -1);
+		for (int i = 0; i < scanned; i++) { // the first socket of a key, as listed
+			int k = Arrays.binarySearch(keys, scanKeys[i]);
+			if (inodes[k] < 0)
+				inodes[k] = scanInodes[i];
+		}
+		Listeners old = current.get();
+		if (Arrays.equals(old.keys, keys) && Arrays.equals(old.inodes, inodes))
+			return false;
+		int added = 0;
+		int removed = 0;
+		for (int i = 0, j = 0; i < old.keys.length || j < keys.length;) {
+			if (j == keys.length || i < old.keys.length && old.keys[i] < keys[j]) {
+				logger.info("Listener closed: " + name(old.keys[i++]));
+				removed++;
+			} else if (i == old.keys.length || keys[j] < old.keys[i]) {
+				logger.info("Listener opened: " + name(keys[j++]));
+				added++;
+			} else {
+				i++;
+				j++;
+			}
+		}
+		current.set(new Listeners(keys, inodes, locals));
+		logger.info(n + " listeners, " + added + " opened, " + removed + " closed.");
+		return true;
+	}
+
+	/**
+	 * Re-read the tcp, tcp6, udp and udp6 tables
+	 *
+	 * @return whether the listeners changed
+	 * @throws IOException if not even the tcp table can be read
+	 */
+	public synchronized boolean refresh() throws IOException {
+		scanned = 0;
+		procNet.read(collector);
+		return publish();
+	}
+
+	/**
+	 * Take the listeners Util.getListeners() found through Sigar, once, where
+	 * there is no /proc
+	 *
+	 * @param list
+	 */
+	public synchronized void load(List<LinkedHashMap<String, String>> list) {
+		scanned = 0;
+		for (LinkedHashMap<String, String> l : list) {
+			if (!l.get("remoteAddress").equals("0.0.0.0") || !l.get("remotePort").equals("0"))
+				continue;
+			int proto = Util.protoNum(l.get("proto"));
+			try {
+				if (proto > 0)
+					scan(key(proto, Util.ipToInt(l.get("localAddress")), Integer.parseInt(l.get("localPort"))), -1);
+			} catch (IllegalArgumentException e) {
+				continue;
+			}
+		}
+		publish();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(interval * 1000L);
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				refresh();
+			} catch (IOException e) {
+				logger.warning(e.getMessage());
+				logger.warning("Cannot refresh listeners, keeping the last ones.");
+			}
+		}
+	}
+
+	/**
+	 * Refresh every -Dprism.listeners.interval seconds in a daemon thread
+	 */
+	public void start() {
+		if (thread == null) {
+			thread = new Thread(this, "ListenerMonitor");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Print the listeners once, of -Dprism.proc.root or /proc
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		ListenerMonitor lm = new ListenerMonitor(null);
+		try {
+			lm.refresh();
+		} catch (IOException e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot read listeners!");
+			return;
+		}
+		logger.info(lm.listeners().toString());
+	}
+}
@@ -1,10 +1,392 @@
+/******************************************
+ * Decoy listener on the ports nothing    *
+ * serves, all on one NIO selector: every *
+ * connection is recorded and reset, the  *
+ * attempts dumped as policies            *
+ ******************************************/
 package org.ayakaji;
 
-public class MiniHoneypot {
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
 
-	public static void main(String[] args) {
-		
+import org.joda.time.DateTime;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+// @formatter:off
+/**
+ * Nothing legitimate connects to a port nobody listens on, so every attempt
+ * is worth a look: a scan, a stale configuration, a policy missing. The ports
+ * are a list of ports and ranges, or 'unused' for every port the host does not
+ * listen on, outside its client port range.
+ * Floods cost no thread and no lasting descriptor: a connection is closed with
+ * a reset as soon as accepted, a listener accepts a few at a time, and all
+ * accepting stops for a while when the process runs out of descriptors. The
+ * attempts are kept in tables of fixed capacity, new ones dropped and counted
+ * once full.
+ */
+// @formatter:on
+public class MiniHoneypot implements Runnable {
+	private final static Logger logger = Logger.getLogger(MiniHoneypot.class.getName());
+	// Listeners at most, -Dprism.honeypot.max
+	private final static int maxListeners = Math.max(1, Integer.getInteger("prism.honeypot.max", 4096));
+	// Attempts (source, address, port) and sources kept at most, -Dprism.honeypot.entries
+	private final static int maxEntries = Math.max(1, Integer.getInteger("prism.honeypot.entries", 65536));
+	// Seconds between two dumps if anything came, -Dprism.honeypot.dump
+	private final static int dumpSeconds = Math.max(1, Integer.getInteger("prism.honeypot.dump", 60));
+	private final static String bind = System.getProperty("prism.honeypot.bind", "0.0.0.0");
+	private final static int backlog = 16; // of a listener, floods wait in the kernel, not here
+	private final static int acceptsPerRound = 64; // of a listener, before the others get their turn
+	private final static int reservedFds = 128; // left to the process besides the listeners
+	private final static long pauseMillis = 1000; // of accepting once out of descriptors
+
+	private final Selector selector;
+	private final Path dmpPath;
+	private final KeySet attempts = new KeySet(); // source, 0, tcp / address, port, as a policy
+	private long[] counts = new long[1024];
+	private long[] first = new long[1024];
+	private long[] last = new long[1024];
+	private final KeySet sources = new KeySet(); // source, 0
+	private long[] sourceCounts = new long[1024];
+	private int[] sourcePorts = new int[1024]; // distinct addresses and ports tried
+	private int listeners = 0;
+	private long accepted = 0;
+	private long dropped = 0; // attempts not kept, the tables being full
+	private long pausedUntil = 0;
+	private boolean dirty = false;
+	private volatile boolean running = true;
+
+	/**
+	 * @param ports   to listen on
+	 * @param dmpPath where the attempts go
+	 * @throws IOException
+	 */
+	public MiniHoneypot(BitSet ports, Path dmpPath) throws IOException {
+		this.dmpPath = dmpPath;
+		selector = Selector.open();
+		int max = Math.min(maxListeners, fdHeadroom());
+		int failed = 0;
+		for (int port = ports.nextSetBit(1); port > 0 && port <= 65535; port = ports.nextSetBit(port + 1)) {
+			if (listeners >= max) {
+				logger.warning("Listening on " + max + " ports at most, ports from " + port + " left out.");
+				break;
+			}
+			ServerSocketChannel server = ServerSocketChannel.open();
+			try {
+				server.bind(new InetSocketAddress(bind, port), backlog);
+				server.configureBlocking(false);
+				server.register(selector, SelectionKey.OP_ACCEPT);
+				listeners++;
+			} catch (IOException e) {
+				server.close(); // in use, or privileged
+				failed++;
+			}
+		}
+		if (failed > 0)
+			logger.info(failed + " ports cannot be listened on.");
+	}
+
+	/**
+	 * Descriptors the listeners may take, unlimited if the limit cannot be read
+	 *
+	 * @return
+	 */
+	private static int fdHeadroom() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (!(os instanceof UnixOperatingSystemMXBean))
+			return Integer.MAX_VALUE;
+		UnixOperatingSystemMXBean unix = (UnixOperatingSystemMXBean) os;
+		long free = unix.getMaxFileDescriptorCount() - unix.getOpenFileDescriptorCount() - reservedFds;
+		return (int) Math.max(0, Math.min(Integer.MAX_VALUE, free));
+	}
+
+	public int listeners() {
+		return listeners;
+	}
+
+	@Override
+	public void run() {
+		logger.info("Listening on " + listeners + " decoy ports.");
+		long nextDump = System.currentTimeMillis() + dumpSeconds * 1000L;
+		while (running) {
+			long now = System.currentTimeMillis();
+			try {
+				selector.select(Math.max(1, Math.min(nextDump, pausedUntil > now ? pausedUntil : nextDump) - now));
+			} catch (IOException e) {
+				logger.severe(e.getMessage());
+				break;
+			}
+			now = System.currentTimeMillis();
+			if (pausedUntil != 0 && now >= pausedUntil) {
+				pausedUntil = 0;
+				for (SelectionKey key : selector.keys())
+					if (key.isValid())
+						key.interestOps(SelectionKey.OP_ACCEPT);
+			}
+			for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (key.isValid() && key.isAcceptable() && pausedUntil == 0)
+					accept(key, now);
+			}
+			if (now >= nextDump) {
+				dump();
+				nextDump = System.currentTimeMillis() + dumpSeconds * 1000L;
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				; // closed anyway
+			}
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.warning(e.getMessage());
+		}
+		dump();
+		logger.info("Stopped after " + accepted + " connections, " + attempts.size() + " attempts kept, " + dropped
+				+ " dropped.");
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Take the connections waiting on a listener, a few at most, record and reset
+	 * each of them
+	 *
+	 * @param key
+	 * @param now
+	 */
+	private void accept(SelectionKey key, long now) {
+		ServerSocketChannel server = (ServerSocketChannel) key.channel();
+		for (int i = 0; i < acceptsPerRound; i++) {
+			SocketChannel ch;
+			try {
+				ch = server.accept();
+			} catch (IOException e) { // out of descriptors, let the others close
+				logger.warning(e.getMessage());
+				pausedUntil = now + pauseMillis;
+				for (SelectionKey k : selector.keys())
+					if (k.isValid())
+						k.interestOps(0);
+				return;
+			}
+			if (ch == null)
+				return;
+			accepted++;
+			try {
+				InetAddress peer = ch.socket().getInetAddress();
+				InetAddress local = ch.socket().getLocalAddress();
+				if (peer instanceof Inet4Address && local instanceof Inet4Address)
+					record(Util.ipToInt((Inet4Address) peer), Util.ipToInt((Inet4Address) local),
+							ch.socket().getLocalPort(), now);
+				ch.socket().setSoLinger(true, 0); // a reset, no TIME_WAIT left behind
+			} catch (IOException e) {
+				; // gone already
+			} finally {
+				try {
+					ch.close();
+				} catch (IOException e) {
+					; // closed anyway
+				}
+			}
+		}
+	}
+
+	/**
+	 * Count an attempt of a source on an address and port
+	 *
+	 * @param src
+	 * @param dst
+	 * @param port
+	 * @param now
+	 */
+	private void record(int src, int dst, int port, long now) {
+		long hi = PolicyReader.packHi(src, 0, Util.PROTO_TCP);
+		long lo = PolicyReader.packLo(dst, port);
+		int id = attempts.find(hi, lo);
+		if (id < 0) {
+			if (attempts.size() >= maxEntries) {
+				dropped++;
+				return;
+			}
+			id = attempts.add(hi, lo);
+			if (id == counts.length) {
+				counts = Arrays.copyOf(counts, id * 2);
+				first = Arrays.copyOf(first, id * 2);
+				last = Arrays.copyOf(last, id * 2);
+			}
+			first[id] = now;
+			int s = sources.add(src & 0xffffffffL, 0);
+			if (s == sourceCounts.length) {
+				sourceCounts = Arrays.copyOf(sourceCounts, s * 2);
+				sourcePorts = Arrays.copyOf(sourcePorts, s * 2);
+			}
+			sourcePorts[s]++;
+		}
+		counts[id]++;
+		last[id] = now;
+		sourceCounts[sources.find(src & 0xffffffffL, 0)]++;
+		dirty = true;
+	}
+
+	/**
+	 * An attempt in the format of the policy json file, with its counts and those
+	 * of its source
+	 *
+	 * @param id
+	 * @return
+	 */
+	private Map<String, Object> policy(int id) {
+		Map<String, Object> plc = PolicyReader.unpack(attempts.hi(id), attempts.lo(id));
+		int s = sources.find(attempts.hi(id) >>> 32, 0);
+		plc.put("first_seen", new DateTime(first[id]).toString("yyyy/MM/dd HH:mm:ss"));
+		plc.put("last_seen", new DateTime(last[id]).toString("yyyy/MM/dd HH:mm:ss"));
+		plc.put("attempts", Long.toString(counts[id]));
+		plc.put("source_attempts", Long.toString(sourceCounts[s]));
+		plc.put("source_ports", Integer.toString(sourcePorts[s]));
+		return plc;
+	}
 
+	private void dump() {
+		if (!dirty)
+			return;
+		dirty = false;
+		PolicyWriter w = null;
+		try {
+			w = new PolicyWriter(dmpPath);
+			for (int id = 0; id < attempts.size(); id++)
+				w.write(policy(id));
+			w.commit();
+			logger.info("Dumped " + attempts.size() + " attempts of " + sources.size() + " sources, " + dropped
+					+ " dropped.");
+		} catch (IOException e) {
+			logger.warning(e.getMessage());
+			logger.warning("Cannot dump decoy attempts!");
+			dirty = true;
+			try {
+				if (w != null)
+					w.close();
+			} catch (IOException e2) {
+				; // the temporary file is left behind
+			}
+		}
 	}
 
+	/**
+	 * Ports of a list such as 21,23,8000-8099
+	 *
+	 * @param list
+	 * @return
+	 * @throws IllegalArgumentException if not valid
+	 */
+	static BitSet parsePorts(String list) {
+		BitSet ports = new BitSet(65536);
+		for (String item : list.split(",")) {
+			String s = item.trim();
+			if (s.isEmpty())
+				continue;
+			int dash = s.indexOf('-');
+			String from = dash < 0 ? s : s.substring(0, dash).trim();
+			String to = dash < 0 ? s : s.substring(dash + 1).trim();
+			if (!Util.isInteger(from) || !Util.isInteger(to) || from.isEmpty() || to.isEmpty())
+				throw new IllegalArgumentException("Invalid ports: " + s);
+			int lo = Integer.parseInt(from);
+			int hi = Integer.parseInt(to);
+			if (lo < 1 || hi > 65535 || lo > hi)
+				throw new IllegalArgumentException("Invalid ports: " + s);
+			ports.set(lo, hi + 1);
+		}
+		return ports;
+	}
+
+	/**
+	 * Every port the host neither listens on nor picks its client ports from
+	 *
+	 * @return
+	 * @throws IOException if the listener table cannot be read
+	 */
+	static BitSet unusedPorts() throws IOException {
+		final BitSet ports = new BitSet(65536);
+		ports.set(1, 65536);
+		ProcNet net = new ProcNet();
+		try {
+			net.read(new ProcNet.Handler() {
+				@Override
+				public void socket(int proto, int localAddr, int localPort, int remoteAddr, int remotePort, int state,
+						long inode) {
+					if (proto == Util.PROTO_TCP && state == ProcNet.TCP_LISTEN)
+						ports.clear(localPort);
+				}
+			});
+			int[] range = net.localPortRange();
+			if (range != null)
+				ports.clear(range[0], range[1] + 1);
+		} finally {
+			net.close();
+		}
+		return ports;
+	}
+
+	public static void main(String[] args) {
+		String spec = args.length > 0 ? args[0] : "unused";
+		BitSet ports;
+		try {
+			ports = spec.equals("unused") ? unusedPorts() : parsePorts(spec);
+		} catch (IllegalArgumentException e) {
+			logger.info("You can provide 1 parameter of the ports to listen on, such as 21,23,8000-8099, or unused!");
+			return;
+		} catch (IOException e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot read the listener table!");
+			return;
+		}
+		String appPath = System.getProperty("user.dir");
+		final MiniHoneypot honeypot;
+		try {
+			honeypot = new MiniHoneypot(ports,
+					Paths.get(appPath, "plc_" + PortSniffer.getSerNum() + "_honeypot.json"));
+		} catch (IOException e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot open the selector!");
+			return;
+		}
+		if (honeypot.listeners() == 0) {
+			logger.warning("No port to listen on!");
+			return;
+		}
+		final Thread thread = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				honeypot.stop();
+				try {
+					thread.join(10000);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+		honeypot.run();
+	}
 }
@@ -2,6 +2,7 @@ package org.ayakaji;
 
 import java.io.File;
 import java.io.FileWriter;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.SocketException;
@@ -9,20 +10,18 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.FileUtils;
 import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
 import org.pcap4j.core.BpfProgram.BpfCompileMode;
 import org.pcap4j.core.NotOpenException;
 import org.pcap4j.core.PacketListener;
@@ -48,13 +47,23 @@ public class NetPolicyRebuilder implements Runnable {
 
 	/**
 	 * In order to improve writing efficiency and avoid dependence on external
-	 * databases, all strategies are temporarily stored in the memory library
+	 * databases, all strategies are temporarily stored in the memory store. The
+	 * store hands out consistent snapshots without stopping the capture, which
+	 * are exported every prism.export.minutes minutes (default 10, 0 disables),
+	 * the last prism.export.keep exports are kept (default 144, a day)
 	 */
-	private final static String hsqlDriver = "org.hsqldb.jdbcDriver";
-	private final static String hsqlUrl = "jdbc:hsqldb:mem:prism";
-	private final static String hsqlUser = "sa";
-	private final static String hsqlPass = "";
-	private static Connection conn = null;
+	private final static PolicyStore store = new PolicyStore();
+	private final static int exportMinutes = Integer.getInteger("prism.export.minutes", 10);
+	private final static int exportKeep = Math.max(1, Integer.getInteger("prism.export.keep", 144));
+	private static String serNum = null; // serial number of this node, resolved once
+	private static int stableEpochs = 0; // consecutive exported epochs without change
+	// Transient cleanup: a policy seen in as many windows of -Dprism.policy.window
+	// seconds is recurrent, -Dprism.clean.windows; one seen only within as many
+	// seconds, and not for as long since, is transient, -Dprism.clean.age; whether
+	// the rest is probed, -Dprism.clean.probe
+	private final static int cleanWindows = Integer.getInteger("prism.clean.windows", 2);
+	private final static int cleanAge = Integer.getInteger("prism.clean.age", 300);
+	private final static boolean cleanProbe = Boolean.parseBoolean(System.getProperty("prism.clean.probe", "true"));
 
 	/**
 	 * Traffic analysis program uses threads for scheduling
@@ -75,12 +84,91 @@ public class NetPolicyRebuilder implements Runnable {
 	private final static int STATUS_INIT_STRATEGY = 4; // new strategy
 
 	/**
-	 * The custom packet filter, 10.233.0.0/18 is k8s's service subnet,
-	 * 10.222.64.0/18 is k8s's pods' addresses
+	 * Networks left out of the capture, 10.233.0.0/18 is k8s's service subnet,
+	 * 10.222.64.0/18 is k8s's pods' addresses. Both the packet filter and
+	 * filtered(), for polled sessions, are made of this one list.
 	 */
-	private final static String filter = "not net 10.233.0.0/18 and not net 10.222.64.0/18 and not net 224.0.0.0/24 and not ( ip[20+12:1]=10 and ip[20+13:1]=222 and ip[20+16:1]=10 and ip[20+17:1]=222 ) and not host 255.255.255.255 and not host 127.0.0.1 and not arp and not icmp and not icmp6";
+	private final static String[] excludedNets = { "10.233.0.0/18", "10.222.64.0/18", "224.0.0.0/24",
+			"255.255.255.255/32", "127.0.0.1/32" };
+	private final static int[] excludedAddrs = new int[excludedNets.length];
+	private final static int[] excludedMasks = new int[excludedNets.length];
+
+	/**
+	 * The custom packet filter: the excluded networks, traffic between two
+	 * addresses of 10.222.0.0/16, arp and icmp
+	 */
+	private final static String filter;
+	static {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < excludedNets.length; i++) {
+			String[] net = excludedNets[i].split("/");
+			excludedMasks[i] = -1 << 32 - Integer.parseInt(net[1]);
+			excludedAddrs[i] = Util.ipToInt(net[0]) & excludedMasks[i];
+			sb.append("not net ").append(excludedNets[i]).append(" and ");
+		}
+		filter = sb.append("not ( ip[20+12:1]=10 and ip[20+13:1]=222 and ip[20+16:1]=10 and ip[20+17:1]=222 )")
+				.append(" and not arp and not icmp and not icmp6").toString();
+	}
 	private static PcapHandle ph = null; // handler of pcap4j
 
+	/**
+	 * Where capture is not allowed, sessions can be polled from the socket tables
+	 * instead, -Dprism.rebuild.poll=true or the SocketPoller feature
+	 */
+	static boolean polling = Boolean.getBoolean("prism.rebuild.poll");
+	private static SocketPoller poller = null; // set in polling mode
+
+	/**
+	 * New policies are tagged with the pid and name of the local process owning
+	 * their socket, -Dprism.rebuild.owner=false to skip
+	 */
+	private final static boolean tagOwners = Boolean.parseBoolean(System.getProperty("prism.rebuild.owner", "true"));
+	private static ProcessIndex processes = null; // set if tagging and /proc is there
+
+	/**
+	 * An initial strategy converges once as many distinct client ports are seen,
+	 * -Dprism.converge.ports; one whose client port is in the ephemeral range of
+	 * this host converges at once, -Dprism.converge.ephemeral=false to wait for
+	 * the second port. The range of this host stands for that of remote clients
+	 * as well, most of them have the same default.
+	 */
+	private final static int convergePorts = Math.max(2, Integer.getInteger("prism.converge.ports", 2));
+	private final static boolean convergeEphemeral = Boolean
+			.parseBoolean(System.getProperty("prism.converge.ephemeral", "true"));
+	private static int[] ephemeral = null; // lowest and highest ephemeral port, set if converging on it
+
+	/**
+	 * Captured packets and bytes are counted per policy, and per flow in a
+	 * bounded sketch whose heaviest flows are dumped to plc_[serial]_top.json,
+	 * -Dprism.sketch.top=0 to skip the sketch. Polled sessions carry no volume.
+	 */
+	private final static TrafficSketch sketch = TrafficSketch.enabled() ? new TrafficSketch() : null;
+
+	/**
+	 * Captured TCP handshakes are timed per policy, SYN to SYN-ACK and SYN to RST,
+	 * with at most -Dprism.handshake.pending SYNs waiting for an answer for
+	 * -Dprism.handshake.timeout seconds, 0 pending to skip
+	 */
+	private final static int handshakePending = Integer.getInteger("prism.handshake.pending", 16384);
+	private final static HandshakeTable handshakes = handshakePending > 0
+			? new HandshakeTable(handshakePending, Integer.getInteger("prism.handshake.timeout", 10))
+			: null;
+	private final static int TCP_SYN = 0x02; // flags as on the wire
+	private final static int TCP_RST = 0x04;
+	private final static int TCP_ACK = 0x10;
+
+	/**
+	 * Every exported or dumped snapshot is pushed to the policy collector at
+	 * -Dprism.collector=host[:port], if one is given
+	 */
+	private static PolicyUploader uploader = null;
+
+	/**
+	 * The store answers queries over HTTP while it is rebuilt, on
+	 * -Dprism.query.port of -Dprism.query.bind (default 127.0.0.1), 0 for none
+	 */
+	private final static int queryPort = Integer.getInteger("prism.query.port", 0);
+
 	/**
 	 * The effective interface address and mask of the current node
 	 */
@@ -94,36 +182,6 @@ public class NetPolicyRebuilder implements Runnable {
 		}
 	}
 
-	/**
-	 * Database initialization
-	 * 
-	 * @throws ClassNotFoundException
-	 * @throws SQLException
-	 */
-	private static void initDB() throws ClassNotFoundException, SQLException {
-		Class.forName(hsqlDriver);
-		conn = DriverManager.getConnection(hsqlUrl, hsqlUser, hsqlPass);
-		conn.setAutoCommit(true);
-		Statement stmt = conn.createStatement();
-		// @formatter:off
-		stmt.execute(""
-				+ "create table network_policy("
-				+ "  src_addr varchar not null, "
-				+ "  src_port varchar not null, "
-				+ "  proto varchar not null, "
-				+ "  dst_addr varchar not null, "
-				+ "  dst_port varchar not null"
-				+ ")");
-		stmt.execute(""
-				+ "create index idx on network_policy("
-				+ "  src_addr, src_port, proto, dst_addr, dst_port"
-				+ ")");
-		// @formatter:on
-		stmt.close();
-		stmt = null;
-		logger.info("HSQL initialized successfully!");
-	}
-
 	/**
 	 * Packet capture core
 	 * 
@@ -157,6 +215,7 @@ public class NetPolicyRebuilder implements Runnable {
 		ph.loop(-1, new PacketListener() {
 			@Override
 			public void gotPacket(Packet packet) {
+				StageProfiler.packet();
 				IpV4Packet ipv4Pkt = packet.get(IpV4Packet.class);
 				if (ipv4Pkt == null)
 					return;
@@ -196,7 +255,11 @@ public class NetPolicyRebuilder implements Runnable {
 					dstPort = tcpDstPort.valueAsString();
 					if (dstPort == null || dstPort.equals(""))
 						return;
-					analyze(srcAddr, srcPort, proto, dstAddr, dstPort);
+					StageProfiler.enter(StageProfiler.ANALYSIS);
+					analyze(srcAddr, srcPort, proto, dstAddr, dstPort, micros(ph.getTimestamp()),
+							ipv4Hdr.getTotalLengthAsInt(), (tcpHdr.getSyn() ? TCP_SYN : 0)
+									| (tcpHdr.getAck() ? TCP_ACK : 0) | (tcpHdr.getRst() ? TCP_RST : 0));
+					StageProfiler.exit(StageProfiler.ANALYSIS);
 					return;
 				}
 				UdpPacket udpPkt = packet.get(UdpPacket.class);
@@ -217,7 +280,10 @@ public class NetPolicyRebuilder implements Runnable {
 					dstPort = udpDstPort.valueAsString();
 					if (dstPort == null || dstPort.equals(""))
 						return;
-					analyze(srcAddr, srcPort, proto, dstAddr, dstPort);
+					StageProfiler.enter(StageProfiler.ANALYSIS);
+					analyze(srcAddr, srcPort, proto, dstAddr, dstPort, micros(ph.getTimestamp()),
+							ipv4Hdr.getTotalLengthAsInt(), 0);
+					StageProfiler.exit(StageProfiler.ANALYSIS);
 					return;
 				}
 			}
@@ -240,13 +306,17 @@ public class NetPolicyRebuilder implements Runnable {
 	 *     there is no need to deal with it, just discard the packet.
 	 *  3. If only the source port does not match the initial policy, all other parts matched. It 
 	 *     means that it was not a two-way communication, and the initial strategy will be 
-	 *     converted to a convergence strategy, that is, modify the database record corresponding 
+	 *     converted to a convergence strategy, that is, modify the store record corresponding 
 	 *     to the initial strategy and update the source port to 0
 	 *  4. If it matches with convergency strategy, then discard this packet directly
 	 *  5. If not, then use sniffer to check which side is server side
 	 *  6. Normalize this packet in <client-ip>:<client-port>:<tcp|udp>:<server-ip>:<server-port> 
 	 *     format as initialized strategy
-	 *  7. Write this initialized strategy into database
+	 *  7. Write this initialized strategy into the policy store
+	 * 
+	 *  8. Record the capture time of the packet against the policy it matched or created
+	 *  9. Count the packet against the policy, and against its flow in the traffic sketch
+	 * 10. Time the TCP handshake of the policy from the SYN to the SYN-ACK or RST
 	 * 
 	 * Bug Fix:
 	 *  1. Ignore the port mode of FTP protocol, which is, if one end is 20 port, it will be ignored
@@ -255,221 +325,311 @@ public class NetPolicyRebuilder implements Runnable {
 	 * @param proto
 	 * @param dstAddr
 	 * @param dstPort
-	 * @throws SQLException 
+	 * @param us capture time in microseconds
+	 * @param len bytes of the IP packet
+	 * @param flags SYN, ACK and RST of a TCP packet
 	 */
 	// @formatter:on
-	private static void analyze(String srcAddr, String srcPort, String proto, String dstAddr, String dstPort) {
+	private static void analyze(String srcAddr, String srcPort, String proto, String dstAddr, String dstPort,
+			long us, int len, int flags) {
 		int status = STATUS_ERR;
 		boolean bSwap = false; // Whether the order of the initiator and the receiver is reversed
 		if (srcPort.equals("20") || dstPort.equals("20")) // Ignore the port mode of FTP protocol
 			return;
 		if (PortSniffer.isSameSubnet(srcAddr, dstAddr, mapInfAddrs)) // Ignore connections belonging to the same subnet
 			return;
-		try {
-			status = match(srcAddr, srcPort, proto, dstAddr, dstPort); // Try to match with hsql
-			if (status == STATUS_INIT_STRATEGY) { // If not match, then reverse the direction
-				status = match(dstAddr, dstPort, proto, srcAddr, srcPort);
-				bSwap = true; // reversed
-			}
-		} catch (SQLException e) {
-			logger.warning(e.getMessage());
-			return;
+		int src = Util.ipToInt(srcAddr);
+		int sPort = Integer.parseInt(srcPort);
+		int p = Util.protoNum(proto);
+		int dst = Util.ipToInt(dstAddr);
+		int dPort = Integer.parseInt(dstPort);
+		PolicyStore.Policy policy = store.get(src, p, dst, dPort); // Try to match with the policy store
+		status = match(policy, sPort);
+		if (status == STATUS_INIT_STRATEGY) { // If not match, then reverse the direction
+			policy = store.get(dst, p, src, sPort);
+			status = match(policy, dPort);
+			bSwap = true; // reversed
 		}
 		if (status == STATUS_MATCH_INIT || status == STATUS_MATCH_CONV) {
 			; // Do nothing
-		} else if (status == STATUS_PART_INIT) {
-			try {
-				if (bSwap) { // If already reverse the direction
-					converge(dstAddr, dstPort, proto, srcAddr, srcPort);
-				} else {
-					converge(srcAddr, srcPort, proto, dstAddr, dstPort);
-				}
-			} catch (SQLException e) {
-				logger.warning(e.getMessage());
-			}
+		} else if (status == STATUS_PART_INIT) { // matched with the sides as stored, reversed or not
+			if (store.countPort(policy, bSwap ? dPort : sPort, convergePorts) >= convergePorts)
+				converge(policy);
 		} else if (status == STATUS_INIT_STRATEGY) { // New strategy
-			if (Util.isOpen(srcAddr, srcPort)) { // Confirm the conversation direction
-				try {
-					append(dstAddr, dstPort, proto, srcAddr, srcPort); // Write to database hsql
-				} catch (SQLException e) {
-					logger.warning(e.getMessage());
-				}
-			} else if (Util.isOpen(dstAddr, dstPort)) {
-				try {
-					append(srcAddr, srcPort, proto, dstAddr, dstPort);
-				} catch (SQLException e) {
-					logger.warning(e.getMessage());
-				}
+			StageProfiler.enter(StageProfiler.PROBER);
+			boolean srcOpen = Util.isOpen(srcAddr, srcPort); // Confirm the conversation direction
+			boolean dstOpen = !srcOpen && Util.isOpen(dstAddr, dstPort);
+			StageProfiler.exit(StageProfiler.PROBER);
+			if (srcOpen) {
+				policy = append(dst, dPort, p, src, sPort); // Write to the policy store
+			} else if (dstOpen) {
+				policy = append(src, sPort, p, dst, dPort);
 			}
+			if (policy != null && processes != null)
+				own(policy, processes.inode(p, src, sPort, dst, dPort));
+		}
+		if (flags != 0 && handshakes != null)
+			handshake(policy, src, sPort, dst, dPort, flags, us);
+		if (policy == null)
+			return;
+		long ts = us / 1000;
+		store.see(policy, ts);
+		store.count(policy, len);
+		if (sketch != null) {
+			// A converged client is one flow over all its ephemeral ports
+			boolean fromClient = policy.srcAddr == src && policy.dstAddr == dst && policy.dstPort == dPort;
+			sketch.add(PolicyReader.packHi(policy.srcAddr, policy.isConverged() ? 0 : fromClient ? sPort : dPort, p),
+					PolicyReader.packLo(policy.dstAddr, policy.dstPort), len, ts);
 		}
 	}
 
 	/**
-	 * Execution strategy convergence
+	 * Pair the handshake packets of a TCP session: a SYN is kept pending, the
+	 * SYN-ACK or RST of the server times it into the policy, if there is one
+	 * for the server side of the packet
 	 * 
-	 * @param srcAddr
-	 * @param srcPort
-	 * @param proto
-	 * @param dstAddr
-	 * @param dstPort
-	 * @throws SQLException
+	 * @param policy of the session, or null
+	 * @param src
+	 * @param sPort
+	 * @param dst
+	 * @param dPort
+	 * @param flags
+	 * @param us     capture time in microseconds
 	 */
-	private static void converge(String srcAddr, String srcPort, String proto, String dstAddr, String dstPort)
-			throws SQLException {
-		if (conn == null || conn.isClosed()) {
-			logger.warning("Database connection is unavailable!");
+	private static void handshake(PolicyStore.Policy policy, int src, int sPort, int dst, int dPort, int flags,
+			long us) {
+		if ((flags & (TCP_SYN | TCP_ACK)) == TCP_SYN) {
+			handshakes.syn(src, sPort, dst, dPort, us);
 			return;
 		}
-		// @formatter:off
-		PreparedStatement pstmt = conn.prepareStatement(
-				"update network_policy set src_port = '0' "
-				+ "where src_addr=? and proto=? and "
-				+ "dst_addr=? and dst_port=?");
-		// @formatter:on
-		pstmt.setString(1, srcAddr);
-		pstmt.setString(2, proto);
-		pstmt.setString(3, dstAddr);
-		pstmt.setString(4, dstPort);
-		int rs = pstmt.executeUpdate();
-		if (rs == 1) {
-			logger.info("Updated successfully! " + "[" + srcAddr + ":0," + proto + "," + dstAddr + ":" + dstPort + "]");
+		boolean synAck = (flags & (TCP_SYN | TCP_ACK)) == (TCP_SYN | TCP_ACK);
+		if (!synAck && (flags & TCP_RST) == 0)
+			return;
+		long sent = handshakes.answer(dst, dPort, src, sPort, us); // the server answers the client
+		if (sent == 0 || policy == null || policy.dstAddr != src || policy.dstPort != sPort)
+			return;
+		if (synAck)
+			store.rtt(policy, us - sent);
+		else
+			store.reject(policy, us - sent);
+	}
+
+	/**
+	 * Capture time of pcap, whose nanoseconds carry the microseconds
+	 * 
+	 * @param t
+	 * @return microseconds
+	 */
+	private static long micros(Timestamp t) {
+		return Math.floorDiv(t.getTime(), 1000L) * 1000000L + t.getNanos() / 1000;
+	}
+
+	/**
+	 * The analyzing workflow for a session polled from the socket tables, whose
+	 * client side is known from the listener table: no probe is needed, only the
+	 * match with the store and the convergence. Sessions still open are handed
+	 * over again now and then, a known policy is only matched and seen.
+	 * 
+	 * @param src
+	 * @param sPort
+	 * @param p
+	 * @param dst
+	 * @param dPort
+	 * @param inode of the local socket
+	 * @param ts    time of the poll in milliseconds
+	 */
+	private static void observe(int src, int sPort, int p, int dst, int dPort, long inode, long ts) {
+		PolicyStore.Policy policy = store.get(src, p, dst, dPort);
+		int status = match(policy, sPort);
+		if (status == STATUS_PART_INIT) {
+			if (store.countPort(policy, sPort, convergePorts) >= convergePorts)
+				converge(policy);
+		} else if (status == STATUS_INIT_STRATEGY) {
+			if (sPort == 20 || dPort == 20) // Ignore the port mode of FTP protocol
+				return;
+			// 10.222.0.0/16 at both ends is the ip[] clause of the filter
+			if (filtered(src) || filtered(dst) || (src >>> 16) == 0x0ade && (dst >>> 16) == 0x0ade)
+				return;
+			if (PortSniffer.isSameSubnet(Util.intToIp(src), Util.intToIp(dst), mapInfAddrs))
+				return;
+			policy = append(src, sPort, p, dst, dPort);
+			if (policy != null)
+				own(policy, inode);
 		}
+		if (policy != null)
+			store.see(policy, ts);
 	}
 
-	private static void append(String srcAddr, String srcPort, String proto, String dstAddr, String dstPort)
-			throws SQLException {
-		if (conn == null || conn.isClosed()) {
-			logger.warning("Database connection is unavailable!");
+	/**
+	 * Tag a new policy with the process owning its local socket, if it can be
+	 * found
+	 * 
+	 * @param policy
+	 * @param inode
+	 */
+	private static void own(PolicyStore.Policy policy, long inode) {
+		if (processes == null)
 			return;
-		}
-		// @formatter:off
-		PreparedStatement pstmt = conn.prepareStatement(
-				"insert into network_policy(src_addr, "
-				+ "src_port, proto, dst_addr, dst_port) "
-				+ "values (?, ?, ?, ?, ?)");
-		// @formatter:on
-		pstmt.setString(1, srcAddr);
-		pstmt.setString(2, srcPort);
-		pstmt.setString(3, proto);
-		pstmt.setString(4, dstAddr);
-		pstmt.setString(5, dstPort);
-		int rs = pstmt.executeUpdate();
-		if (rs == 1) {
-			logger.info("Updated successfully! " + "[" + srcAddr + ":" + srcPort + "," + proto + "," + dstAddr + ":"
-					+ dstPort + "]");
+		ProcessIndex.Proc proc = processes.owner(inode);
+		if (proc != null)
+			policy.own(proc.pid, proc.name);
+	}
+
+	/**
+	 * The addresses the capture filter leaves out, for polled sessions
+	 * 
+	 * @param addr
+	 * @return
+	 */
+	private static boolean filtered(int addr) {
+		for (int i = 0; i < excludedNets.length; i++)
+			if ((addr & excludedMasks[i]) == excludedAddrs[i])
+				return true;
+		return false;
+	}
+
+	/**
+	 * Execution strategy convergence
+	 * 
+	 * @param policy
+	 */
+	private static void converge(PolicyStore.Policy policy) {
+		if (store.converge(policy)) {
+			logger.info("Updated successfully! " + "[" + Util.intToIp(policy.srcAddr) + ":0,"
+					+ Util.protoName(policy.proto) + "," + Util.intToIp(policy.dstAddr) + ":" + policy.dstPort + "]");
 		}
 	}
 
 	/**
-	 * Check whether it matches the existing strategy
+	 * Add a strategy, converged at once if the client port is an ephemeral one
 	 * 
 	 * @param srcAddr
 	 * @param srcPort
 	 * @param proto
 	 * @param dstAddr
 	 * @param dstPort
-	 * @return
-	 * @throws SQLException
-	 */
-	private static int match(String srcAddr, String srcPort, String proto, String dstAddr, String dstPort)
-			throws SQLException {
-		if (conn == null || conn.isClosed()) {
-			logger.warning("Database connection is unavailable!");
-			return STATUS_ERR;
-		}
-		// @formatter:off
-		PreparedStatement pstmt = conn.prepareStatement(
-				"select count(1) from network_policy "
-				+ "where src_addr=? and src_port=? and "
-				+ "proto=? and dst_addr=? and dst_port=?");
-		// @formatter:on
-		// Scene 1. If exactly match with the initial strategy
-		pstmt.setString(1, srcAddr);
-		pstmt.setString(2, srcPort);
-		pstmt.setString(3, proto);
-		pstmt.setString(4, dstAddr);
-		pstmt.setString(5, dstPort);
-		ResultSet rs = pstmt.executeQuery();
-		while (rs.next()) {
-			if (rs.getInt(1) > 0) {
-				rs.close();
-				rs = null;
-				return STATUS_MATCH_INIT;
-			}
-		}
-		rs.close();
-		rs = null;
-		pstmt.close();
-		pstmt = null;
-
-		// Scene 2. If partially match with the initial strategy
-		// @formatter:off
-		pstmt = conn.prepareStatement(
-				"select count(1) from network_policy "
-				+ "where src_addr=? and src_port<>'0' and "
-				+ "src_port<>? and proto=? and dst_addr=? "
-				+ "and dst_port=?");
-		// @formatter:on
-		pstmt.setString(1, srcAddr);
-		pstmt.setString(2, srcPort);
-		pstmt.setString(3, proto);
-		pstmt.setString(4, dstAddr);
-		pstmt.setString(5, dstPort);
-		rs = pstmt.executeQuery();
-		while (rs.next()) {
-			if (rs.getInt(1) > 0) {
-				rs.close();
-				rs = null;
-				return STATUS_PART_INIT;
-			}
+	 * @return the new policy, or null if it exists already
+	 */
+	private static PolicyStore.Policy append(int srcAddr, int srcPort, int proto, int dstAddr, int dstPort) {
+		boolean converged = ephemeral != null && srcPort >= ephemeral[0] && srcPort <= ephemeral[1];
+		PolicyStore.Policy policy = store.append(srcAddr, srcPort, proto, dstAddr, dstPort, converged);
+		if (policy != null) {
+			logger.info("Updated successfully! " + "[" + Util.intToIp(srcAddr) + ":" + (converged ? 0 : srcPort) + ","
+					+ Util.protoName(proto) + "," + Util.intToIp(dstAddr) + ":" + dstPort + "]");
 		}
-		rs.close();
-		rs = null;
-		pstmt.close();
-		pstmt = null;
+		return policy;
+	}
 
+	/**
+	 * Check whether it matches the existing strategy
+	 * 
+	 * @param policy  stored under the client address, proto, server address and
+	 *                port of the packet, or null
+	 * @param srcPort
+	 * @return
+	 */
+	private static int match(PolicyStore.Policy policy, int srcPort) {
+		// Scene 4. If it does not meet the other three situations, initialize a new
+		// strategy
+		if (policy == null)
+			return STATUS_INIT_STRATEGY;
 		// Scene 3. If match with convergence strategy
-		// @formatter:off
-		pstmt = conn.prepareStatement(
-				"select count(1) from network_policy "
-				+ "where src_addr=? and src_port=? and "
-				+ "proto=? and dst_addr=? and dst_port=?");
-		// @formatter:on
-		pstmt.setString(1, srcAddr);
-		pstmt.setString(2, "0");
-		pstmt.setString(3, proto);
-		pstmt.setString(4, dstAddr);
-		pstmt.setString(5, dstPort);
-		rs = pstmt.executeQuery();
-		while (rs.next()) {
-			if (rs.getInt(1) > 0) {
-				rs.close();
-				rs = null;
-				return STATUS_MATCH_CONV;
-			}
-		}
-		rs.close();
-		rs = null;
-		pstmt.close();
-		pstmt = null;
+		if (policy.isConverged())
+			return STATUS_MATCH_CONV;
+		// Scene 1. If exactly match with the initial strategy
+		if (policy.srcPort == srcPort)
+			return STATUS_MATCH_INIT;
+		// Scene 2. If partially match with the initial strategy
+		return STATUS_PART_INIT;
+	}
 
-		// Scene 4. If it does not meet the above three situations, initialize a new
-		// strategy
-		return STATUS_INIT_STRATEGY;
+	private static String serNum() {
+		if (serNum == null)
+			serNum = PortSniffer.getSerNum();
+		return serNum;
 	}
 
 	/**
-	 * Export the policy data in the memory library as a json file
+	 * Export a latency histogram as [name]_count and its p50, p99 and max in
+	 * microseconds
 	 * 
-	 * @throws SQLException
+	 * @param map
+	 * @param name
+	 * @param h    null if nothing was timed
 	 */
-	private static void dump() throws SQLException {
-		if (conn == null || conn.isClosed()) {
-			logger.warning("Database connection is unavailable!");
+	private static void latency(LinkedHashMap<String, String> map, String name, LatencyHistogram h) {
+		if (h == null || h.count() == 0)
 			return;
+		map.put(name + "_count", Long.toString(h.count()));
+		map.put(name + "_p50_us", Long.toString(h.percentile(0.5)));
+		map.put(name + "_p99_us", Long.toString(h.percentile(0.99)));
+		map.put(name + "_max_us", Long.toString(h.max()));
+	}
+
+	/**
+	 * A policy in the format of the policy json file
+	 * 
+	 * @param row the policy as of a snapshot or the moment it is read at
+	 * @return
+	 */
+	static LinkedHashMap<String, String> toMap(PolicyStore.Row row) {
+		PolicyStore.Policy policy = row.policy;
+		LinkedHashMap<String, String> map = new LinkedHashMap<String, String>();
+		map.put("src_addr", Util.intToIp(policy.srcAddr));
+		map.put("src_port", Integer.toString(row.srcPort));
+		map.put("proto", Util.protoName(policy.proto));
+		map.put("dst_addr", Util.intToIp(policy.dstAddr));
+		map.put("dst_port", Integer.toString(policy.dstPort));
+		if (row.process != null) {
+			map.put("pid", Integer.toString(row.pid));
+			map.put("process", row.process);
+		}
+		if (row.firstSeen != 0) {
+			map.put("first_seen", new DateTime(row.firstSeen).toString("yyyy/MM/dd HH:mm:ss"));
+			map.put("last_seen", new DateTime(row.lastSeen).toString("yyyy/MM/dd HH:mm:ss"));
+			map.put("windows", Integer.toString(row.windows));
 		}
+		if (row.packets != 0) {
+			map.put("packets", Long.toString(row.packets));
+			map.put("bytes", Long.toString(row.bytes));
+		}
+		latency(map, "rtt", row.rtt);
+		latency(map, "rst", row.rst);
+		return map;
+	}
+
+	/**
+	 * Policies of a snapshot in the format of the policy json file
+	 * 
+	 * @param snapshot
+	 * @return
+	 */
+	private static List<LinkedHashMap<String, String>> toList(PolicyStore.Snapshot snapshot) {
+		List<LinkedHashMap<String, String>> list = new ArrayList<LinkedHashMap<String, String>>();
+		for (PolicyStore.Row row : snapshot.rows)
+			list.add(toMap(row));
+		return list;
+	}
+
+	/**
+	 * Export the policy store as the json file, the snapshot closes the current
+	 * epoch so capture may go on while the file is written
+	 */
+	private static void dump() {
+		StageProfiler.enter(StageProfiler.DUMP);
+		try {
+			PolicyStore.Snapshot snapshot = store.snapshot();
+			if (uploader != null)
+				uploader.offer(snapshot);
+			dumpPolicies(snapshot);
+		} finally {
+			StageProfiler.exit(StageProfiler.DUMP);
+		}
+	}
+
+	private static void dumpPolicies(PolicyStore.Snapshot snapshot) {
 		String appPath = System.getProperty("user.dir");
-		Path dmpPath = Paths.get(appPath, "plc_" + PortSniffer.getSerNum() + ".json");
+		Path dmpPath = Paths.get(appPath, "plc_" + serNum() + ".json");
 		if (!Files.exists(dmpPath)) {
 			try {
 				Files.createFile(dmpPath);
@@ -490,27 +650,7 @@ public class NetPolicyRebuilder implements Runnable {
 				logger.severe("File emptying failed!");
 			}
 		}
-		// @formatter:off
-		PreparedStatement pstmt = conn.prepareStatement(
-				"select src_addr, src_port, proto, dst_addr, "
-				+ "dst_port from network_policy");
-		// @formatter:on
-		ResultSet rs = pstmt.executeQuery();
-		List<LinkedHashMap<String, String>> list = new ArrayList<LinkedHashMap<String, String>>();
-		while (rs.next()) {
-			LinkedHashMap<String, String> map = new LinkedHashMap<String, String>();
-			map.put("src_addr", rs.getString(1));
-			map.put("src_port", rs.getString(2));
-			map.put("proto", rs.getString(3));
-			map.put("dst_addr", rs.getString(4));
-			map.put("dst_port", rs.getString(5));
-			list.add(map);
-		}
-		rs.close();
-		rs = null;
-		pstmt.close();
-		pstmt = null;
-		String json = JSONObject.toJSONString(list, true);
+		String json = JSONObject.toJSONString(toList(snapshot), true);
 		try {
 			Files.write(dmpPath, json.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE);
 		} catch (IOException e) {
@@ -518,6 +658,114 @@ public class NetPolicyRebuilder implements Runnable {
 			logger.warning("Cannot dump connection table!");
 			return;
 		}
+		if (sketch == null)
+			return;
+		sketch.flush(1000); // the top flows of the last second, or of the end of the capture
+		if (sketch.top().isEmpty())
+			return;
+		Path topPath = Paths.get(appPath, "plc_" + serNum() + "_top.json");
+		try {
+			Files.write(topPath, JSONObject.toJSONString(sketch.toList(), true).getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			logger.warning(e.getMessage());
+			logger.warning("Cannot dump the top flows!");
+		}
+	}
+
+	/**
+	 * Rolling export of one epoch as plc_[serial]_epoch[n].json, carrying the
+	 * epoch, the time window it covers and how much the policy set changed in it
+	 */
+	private static void export() {
+		StageProfiler.enter(StageProfiler.DUMP);
+		try {
+			PolicyStore.Snapshot snapshot = store.snapshot();
+			if (uploader != null)
+				uploader.offer(snapshot);
+			JSONObject obj = new JSONObject(new LinkedHashMap<String, Object>());
+			obj.put("epoch", snapshot.epoch);
+			obj.put("from", new DateTime(snapshot.from).toString("yyyy/MM/dd HH:mm:ss"));
+			obj.put("to", new DateTime(snapshot.to).toString("yyyy/MM/dd HH:mm:ss"));
+			obj.put("count", snapshot.rows.size());
+			obj.put("added", snapshot.added);
+			obj.put("converged", snapshot.converged);
+			obj.put("policies", toList(snapshot));
+			String appPath = System.getProperty("user.dir");
+			Path tmpPath = Paths.get(appPath, "plc_" + serNum() + "_epoch" + snapshot.epoch + ".json.tmp");
+			Path dmpPath = Paths.get(appPath, "plc_" + serNum() + "_epoch" + snapshot.epoch + ".json");
+			try {
+				Files.write(tmpPath, JSONObject.toJSONString(obj, true).getBytes(StandardCharsets.UTF_8));
+				Files.move(tmpPath, dmpPath, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				logger.warning(e.getMessage());
+				logger.warning("Cannot export epoch " + snapshot.epoch + "!");
+				return;
+			}
+			prune(appPath);
+			if (snapshot.added == 0 && snapshot.converged == 0)
+				stableEpochs++;
+			else
+				stableEpochs = 0;
+			logger.info("Epoch " + snapshot.epoch + " exported: " + snapshot.rows.size() + " policies, "
+					+ snapshot.added + " added, " + snapshot.converged + " converged, unchanged for " + stableEpochs
+					+ " epochs.");
+		} finally {
+			StageProfiler.exit(StageProfiler.DUMP);
+		}
+	}
+
+	/**
+	 * Delete the epoch exports but the last prism.export.keep
+	 *
+	 * @param appPath
+	 */
+	private static void prune(String appPath) {
+		final String prefix = "plc_" + serNum() + "_epoch";
+		File[] files = new File(appPath).listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(prefix) && name.endsWith(".json")
+						&& name.substring(prefix.length(), name.length() - 5).matches("\\d{1,18}");
+			}
+		});
+		if (files == null || files.length <= exportKeep)
+			return;
+		long[] epochs = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			epochs[i] = Long.parseLong(name.substring(prefix.length(), name.length() - 5));
+		}
+		long[] sorted = epochs.clone();
+		Arrays.sort(sorted);
+		long oldestKept = sorted[sorted.length - exportKeep];
+		for (int i = 0; i < files.length; i++)
+			if (epochs[i] < oldestKept && !files[i].delete())
+				logger.warning("Cannot delete " + files[i].getName() + "!");
+	}
+
+	/**
+	 * Fields a policy may carry beyond the five of its identity, in their order
+	 */
+	private final static String[] optionalFields = { "pid", "process", "first_seen", "last_seen", "windows",
+			"packets", "bytes", "rtt_count", "rtt_p50_us", "rtt_p99_us", "rtt_max_us", "rst_count", "rst_p50_us",
+			"rst_p99_us", "rst_max_us" };
+
+	/**
+	 * Time of a policy field in the format of the policy json file
+	 * 
+	 * @param obj
+	 * @param key
+	 * @return milliseconds, 0 if it is missing or not valid
+	 */
+	private static long seen(JSONObject obj, String key) {
+		String s = obj.getString(key);
+		if (s == null)
+			return 0;
+		try {
+			return DateTimeFormat.forPattern("yyyy/MM/dd HH:mm:ss").parseMillis(s);
+		} catch (IllegalArgumentException e) {
+			return 0;
+		}
 	}
 
 	/**
@@ -550,14 +798,45 @@ public class NetPolicyRebuilder implements Runnable {
 		JSONArray jsonArr = JSONArray.parseArray(json);
 		logger.info("Policy Count: " + jsonArr.size());
 
-		// 2. Clean the transient policies: sniff the destination address & port, then
-		// delete the not opened ports
+		// 2. Clean the transient policies. A policy seen in -Dprism.clean.windows
+		// windows or more is kept, one seen in fewer over less than -Dprism.clean.age
+		// seconds, that long before the last policy seen, is dropped, and policies
+		// confirmed from both ends by PolicyConfirmer are kept: none of them is
+		// probed. The rest, and policies without seen times, are kept if the
+		// destination port is open, or kept unprobed with -Dprism.clean.probe=false
+		PolicyConfirmer.Confirmed confirmed = PolicyConfirmer.confirmed();
+		long end = 0; // the capture ended about when the last policy was seen
+		for (int i = 0; i < jsonArr.size(); i++)
+			end = Math.max(end, seen(jsonArr.getJSONObject(i), "last_seen"));
+		int skipped = 0;
+		int recurrent = 0;
+		int dropped = 0;
+		int probed = 0;
 		JSONArray result = new JSONArray();
 		for (int i = 0; i < jsonArr.size(); i++) {
 			JSONObject jsonOld = jsonArr.getJSONObject(i);
 			String dstAddr = jsonOld.getString("dst_addr");
 			String dstPort = jsonOld.getString("dst_port");
-			if (Util.isOpen(dstAddr, dstPort)) {
+			boolean keep;
+			long firstSeen = seen(jsonOld, "first_seen");
+			long lastSeen = seen(jsonOld, "last_seen");
+			if (confirmed != null && confirmed.contains(jsonOld)) {
+				keep = true;
+				skipped++;
+			} else if (lastSeen != 0 && jsonOld.getIntValue("windows") >= cleanWindows) {
+				keep = true;
+				recurrent++;
+			} else if (lastSeen != 0 && lastSeen - firstSeen < cleanAge * 1000L
+					&& end - lastSeen >= cleanAge * 1000L) {
+				keep = false;
+				dropped++;
+			} else if (lastSeen != 0 && !cleanProbe) {
+				keep = true;
+			} else {
+				keep = Util.isOpen(dstAddr, dstPort);
+				probed++;
+			}
+			if (keep) {
 				// To prevent properties disorder
 				JSONObject jsonNew = new JSONObject(new LinkedHashMap<String, Object>());
 				jsonNew.put("src_addr", jsonOld.getString("src_addr"));
@@ -565,11 +844,16 @@ public class NetPolicyRebuilder implements Runnable {
 				jsonNew.put("proto", jsonOld.getString("proto"));
 				jsonNew.put("dst_addr", dstAddr);
 				jsonNew.put("dst_port", dstPort);
+				for (String key : optionalFields)
+					if (jsonOld.containsKey(key))
+						jsonNew.put(key, jsonOld.getString(key));
 				result.add(jsonNew);
 			}
 		}
 
 		// 3. Write the new JSON to file
+		logger.info("Probes skipped for confirmed policies: " + skipped + ", for recurrent ones: " + recurrent
+				+ ", dropped as transient without a probe: " + dropped + ", probed: " + probed);
 		logger.info(
 				"The total number of strategies after the instantaneous strategy is cleaned up is: " + result.size());
 		String jsonResult = JSONArray.toJSONString(result, true);
@@ -608,14 +892,11 @@ public class NetPolicyRebuilder implements Runnable {
 	 * args[0] is continuous collection time in minutes
 	 * 
 	 * @param args
-	 * @throws ClassNotFoundException
-	 * @throws SQLException
 	 * @throws PcapNativeException
 	 * @throws NotOpenException
 	 * @throws InterruptedException
 	 */
-	public static void main(String[] args)
-			throws ClassNotFoundException, SQLException, PcapNativeException, NotOpenException, InterruptedException {
+	public static void main(String[] args) throws PcapNativeException, NotOpenException, InterruptedException {
 		long duration = 0; // continuous running time
 		if (args.length > 0 && (args[0].equals("-h") || args[0].equals("--h") || !Util.isInteger(args[0]))) {
 			logger.info("You can provide 1 parameter of continuous running time in minutes!");
@@ -625,23 +906,65 @@ public class NetPolicyRebuilder implements Runnable {
 		} else if (args.length == 1) {
 			duration = Integer.parseInt(args[0]) * 60000;
 		}
-		initDB();
+		if (polling && !initPoller())
+			return;
+		if (tagOwners) {
+			processes = new ProcessIndex();
+			if (!processes.available())
+				processes = null;
+		}
+		if (convergeEphemeral) {
+			ephemeral = new ProcNet().localPortRange();
+			if (ephemeral != null)
+				logger.info("Converging on client ports " + ephemeral[0] + "-" + ephemeral[1] + " at once.");
+		}
+		if (queryPort > 0) {
+			try {
+				new PolicyQuery(store, sketch, System.getProperty("prism.query.bind", "127.0.0.1"), queryPort).start();
+			} catch (IOException e) {
+				logger.warning(e.getMessage());
+				logger.warning("Cannot answer queries on port " + queryPort + "!");
+			}
+		}
+		if (System.getProperty("prism.collector") != null) {
+			uploader = new PolicyUploader(System.getProperty("prism.collector"), serNum());
+			uploader.start();
+		}
+		StageProfiler.start();
 		NetPolicyRebuilder npr = new NetPolicyRebuilder();
 		npr.start();
 		Runtime.getRuntime().addShutdownHook(new Thread() { // Unforeseen end occurred during execution
 			public void run() {
 				try {
 					logger.warning("Termination signal detected!");
-					ph.breakLoop(); // Stop collecting packets
+					stopCapture(); // Stop collecting packets
 					logger.warning("Stop collecting packets ...");
-					Thread.sleep(5000); // Wait for data writing complete
-					dump(); // Dump to file
+					dump(); // Dump a snapshot to file, no need to wait for the capture to drain
+					if (uploader != null)
+						uploader.stop(5000);
+					StageProfiler.flush();
 					logger.warning("Complete data dump!");
-				} catch (SQLException | NotOpenException | InterruptedException e) {
+				} catch (NotOpenException e) {
 					logger.severe(e.getMessage());
 				}
 			}
 		});
+		if (exportMinutes > 0) {
+			Thread exporter = new Thread("Exporter") {
+				public void run() {
+					while (true) {
+						try {
+							Thread.sleep(exportMinutes * 60000L);
+						} catch (InterruptedException e) {
+							return;
+						}
+						export();
+					}
+				}
+			};
+			exporter.setDaemon(true);
+			exporter.start();
+		}
 		long startMillis = System.currentTimeMillis();
 		long endMillis = startMillis + duration;
 		logger.info("Network strategy under reconstruction ...");
@@ -651,14 +974,53 @@ public class NetPolicyRebuilder implements Runnable {
 			logger.info("Analyzing packets ...");
 			Thread.sleep(60000);
 			if (System.currentTimeMillis() > endMillis) {
-				ph.breakLoop(); // Stop collecting packets
-				Thread.sleep(5000); // Wait for data writing complete
+				stopCapture(); // Stop collecting packets
 				dump(); // Dump to file
+				if (uploader != null)
+					uploader.stop(30000);
+				StageProfiler.flush();
 				break;
 			}
 		}
 	}
 
+	/**
+	 * Set up the socket poller, the listener table is refreshed by its own thread
+	 * 
+	 * @return whether the socket tables can be read
+	 */
+	private static boolean initPoller() {
+		ProcNet procNet = new ProcNet();
+		if (!procNet.available()) {
+			logger.severe("Cannot read the socket tables, pls capture packets instead!");
+			return false;
+		}
+		ListenerMonitor monitor = new ListenerMonitor(null); // a socket's local address is local
+		try {
+			monitor.refresh();
+		} catch (IOException e) {
+			logger.severe(e.getMessage());
+			return false;
+		}
+		monitor.start();
+		poller = new SocketPoller(procNet, monitor, new SocketPoller.Handler() {
+			@Override
+			public void session(int srcAddr, int srcPort, int proto, int dstAddr, int dstPort, long inode) {
+				StageProfiler.enter(StageProfiler.ANALYSIS);
+				observe(srcAddr, srcPort, proto, dstAddr, dstPort, inode, System.currentTimeMillis());
+				StageProfiler.exit(StageProfiler.ANALYSIS);
+			}
+		});
+		return true;
+	}
+
+	private static void stopCapture() throws NotOpenException {
+		if (poller != null)
+			poller.stop();
+		else if (ph != null)
+			ph.breakLoop();
+	}
+
 	public void start() {
 		if (thread == null) {
 			thread = new Thread(this, "main-1");
@@ -668,6 +1030,11 @@ public class NetPolicyRebuilder implements Runnable {
 
 	@Override
 	public void run() {
+		StageProfiler.register(StageProfiler.CAPTURE);
+		if (poller != null) {
+			poller.run();
+			return;
+		}
 		try {
 			NetPolicyRebuilder.capure();
 		} catch (PcapNativeException e) {
@@ -676,6 +1043,9 @@ public class NetPolicyRebuilder implements Runnable {
 			logger.warning(e.getMessage());
 		} catch (InterruptedException e) {
 			logger.warning("The traffic collection thread has been terminated.");
+		} finally {
+			if (sketch != null) // by the capture thread, the one writer of the sketch
+				sketch.publish(System.currentTimeMillis(), true);
 		}
 	}
 
@@ -30,7 +30,8 @@ public class NetPolicyVerifier {
 
 	public static void main(String[] args) {
 		String appPath = System.getProperty("user.dir");
-		Path oriPath = Paths.get(appPath, "plc_outbound_full.json");
+		// The full export, or the shard of this verifier, -Dprism.verify.file
+		Path oriPath = Paths.get(appPath, System.getProperty("prism.verify.file", "plc_outbound_full.json"));
 		if (!Files.exists(oriPath)) {
 			logger.warning("The outbound policy file could not be found!");
 			return;
@@ -52,11 +53,18 @@ public class NetPolicyVerifier {
 		JSONArray jsonArr = JSONArray.parseArray(json);
 		logger.info("Policy Count: " + jsonArr.size());
 		
+		// Ports which accepted a connection seen from both ends need no probe
+		PolicyConfirmer.Confirmed confirmed = PolicyConfirmer.confirmed();
+		int skipped = 0;
 		JSONArray result = new JSONArray();
 		for (int i = 0; i < jsonArr.size(); i++) {
 			JSONObject jsonOld = jsonArr.getJSONObject(i);
 			String dstAddr = jsonOld.getString("dst_addr");
 			String dstPort = jsonOld.getString("dst_port");
+			if (confirmed != null && confirmed.isOpen(dstAddr, dstPort)) {
+				skipped++;
+				continue;
+			}
 			if (!Util.isOpen(dstAddr, dstPort)) {
 				// To prevent properties disorder
 				JSONObject jsonNew = new JSONObject(new LinkedHashMap<String, Object>());
@@ -65,6 +73,7 @@ public class NetPolicyVerifier {
 				result.add(jsonNew);
 			}
 		}
+		logger.info("Probes skipped for confirmed ports: " + skipped);
 		logger.info("Unreachable policies count: " + result.size());
 		String jsonResult = JSONArray.toJSONString(result, true);
 		Path dmpPath = Paths.get(appPath, "plc_outbound_unreachable.json");
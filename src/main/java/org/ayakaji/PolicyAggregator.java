@@ -0,0 +1,300 @@
+/******************************************
+ * Aggregation of a policy set: clients   *
+ * into covering CIDR blocks, server      *
+ * ports into port sets and ranges        *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.alibaba.fastjson.JSONObject;
+
+public class PolicyAggregator {
+	private final static Logger logger = Logger.getLogger(PolicyAggregator.class.getName());
+	// Least share of a block's addresses which must be real clients, in (0, 1], -Dprism.agg.density, 1.0 for exact blocks
+	private final static double density = clamp(Double.parseDouble(System.getProperty("prism.agg.density", "1.0")));
+	// Shortest prefix a client block may have, -Dprism.agg.prefix
+	private final static int minPrefix = Math.max(0, Math.min(32, Integer.getInteger("prism.agg.prefix", 16)));
+	// Most ports of one port set, a range counting as two as in iptables multiport, -Dprism.agg.ports
+	private final static int maxPorts = Math.max(2, Integer.getInteger("prism.agg.ports", 15));
+
+	/**
+	 * Grouping key of two longs
+	 */
+	private final static class Key {
+		final long hi;
+		final long lo;
+
+		Key(long hi, long lo) {
+			this.hi = hi;
+			this.lo = lo;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = hi * 0x9e3779b97f4a7c15L ^ lo;
+			return (int) (h ^ h >>> 32);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return hi == k.hi && lo == k.lo;
+		}
+	}
+
+	/**
+	 * Growable list of longs
+	 */
+	private final static class Longs {
+		long[] a = new long[4];
+		int n = 0;
+
+		void add(long v) {
+			if (n == a.length)
+				a = Arrays.copyOf(a, n * 2);
+			a[n++] = v;
+		}
+	}
+
+	/**
+	 * A server port of a client block with the policies it covers
+	 */
+	private final static class Port {
+		final int port;
+		final Longs covers;
+
+		Port(int port, Longs covers) {
+			this.port = port;
+			this.covers = covers;
+		}
+	}
+
+	// Policies by proto, client port, server address and port: client address and policy index,
+	// the address with its sign bit flipped on top, so that the signed order of the longs is
+	// the unsigned order of the addresses
+	private final Map<Key, Longs> byServer = new HashMap<Key, Longs>();
+	private int policies = 0;
+	private int invalid = 0;
+
+	/**
+	 * Add all policies of a policy file, each known by its position in the file
+	 *
+	 * @param f
+	 * @throws Exception
+	 */
+	public void load(File f) throws Exception {
+		final int[] p = new int[5];
+		PolicyReader.read(f, new PolicyReader.Handler() {
+			@Override
+			public void policy(JSONObject plc) {
+				int idx = policies++;
+				if (!PolicyReader.parse(plc, p)) {
+					invalid++;
+					return;
+				}
+				Key k = new Key(PolicyReader.packHi(0, p[1], p[2]), PolicyReader.packLo(p[3], p[4]));
+				Longs l = byServer.get(k);
+				if (l == null) {
+					l = new Longs();
+					byServer.put(k, l);
+				}
+				l.add((long) (p[0] ^ Integer.MIN_VALUE) << 32 | idx);
+			}
+		});
+	}
+
+	private static int addr(long v) {
+		return (int) (v >> 32) ^ Integer.MIN_VALUE;
+	}
+
+	private static double clamp(double d) {
+		return d > 0 ? Math.min(1.0, d) : d <= 0 ? Double.MIN_VALUE : 1.0; // NaN as exact
+	}
+
+	/**
+	 * Cover the distinct addresses addrs[a, b), all inside base/len, by the
+	 * largest blocks no shorter than minPrefix of which at least density are
+	 * clients: the block itself if it qualifies, else the covers of its halves,
+	 * down to single addresses.
+	 * Every address is visited once per level, at most 33 levels.
+	 *
+	 * @param addrs unsigned order
+	 * @param a
+	 * @param b
+	 * @param base
+	 * @param len
+	 * @param out   address, prefix length, a, b of every block
+	 */
+	private static void cover(int[] addrs, int a, int b, int base, int len, List<int[]> out) {
+		if (len == 32 || len >= minPrefix && b - a >= density * (1L << 32 - len)) {
+			out.add(new int[] { base, len, a, b });
+			return;
+		}
+		int bit = 1 << 31 - len;
+		int s = a;
+		while (s < b && (addrs[s] & bit) == 0) // first address of the upper half
+			s++;
+		if (a < s)
+			cover(addrs, a, s, base, len + 1, out);
+		if (s < b)
+			cover(addrs, s, b, base | bit, len + 1, out);
+	}
+
+	/**
+	 * Aggregate the loaded policies and write them
+	 *
+	 * @param out
+	 * @return number of aggregated policies
+	 * @throws Exception
+	 */
+	public int aggregate(Path out) throws Exception {
+		long start = System.currentTimeMillis();
+		// 1. Clients of every server port into blocks, then the ports of every block together
+		Map<Key, List<Port>> byBlock = new HashMap<Key, List<Port>>();
+		int blocks = 0;
+		for (Map.Entry<Key, Longs> e : byServer.entrySet()) {
+			Longs l = e.getValue();
+			long[] v = Arrays.copyOf(l.a, l.n);
+			Arrays.sort(v);
+			int[] addrs = new int[v.length]; // distinct addresses
+			int[] first = new int[v.length + 1]; // first policy of each address in v
+			int n = 0;
+			for (int i = 0; i < v.length; i++) {
+				if (n == 0 || addrs[n - 1] != addr(v[i])) {
+					addrs[n] = addr(v[i]);
+					first[n++] = i;
+				}
+			}
+			first[n] = v.length;
+			List<int[]> cidrs = new ArrayList<int[]>();
+			cover(addrs, 0, n, 0, 0, cidrs);
+			blocks += cidrs.size();
+			Key server = e.getKey();
+			int dstAddr = (int) (server.lo >>> 16);
+			int dstPort = (int) server.lo & 0xffff;
+			for (int[] c : cidrs) {
+				Key k = new Key(server.hi | (c[0] & 0xffffffffL) << 32, (long) c[1] << 48 | (dstAddr & 0xffffffffL) << 16);
+				Longs covers = new Longs();
+				for (int i = first[c[2]]; i < first[c[3]]; i++)
+					covers.add(v[i] & 0xffffffffL);
+				List<Port> ports = byBlock.get(k);
+				if (ports == null) {
+					ports = new ArrayList<Port>();
+					byBlock.put(k, ports);
+				}
+				ports.add(new Port(dstPort, covers));
+			}
+		}
+		// 2. Write in the order of client block, client port, proto, server
+		List<Key> keys = new ArrayList<Key>(byBlock.keySet());
+		Collections.sort(keys, new Comparator<Key>() {
+			@Override
+			public int compare(Key a, Key b) {
+				int c = Long.compareUnsigned(a.hi, b.hi);
+				return c != 0 ? c : Long.compareUnsigned(a.lo, b.lo);
+			}
+		});
+		Comparator<Port> byPort = new Comparator<Port>() {
+			@Override
+			public int compare(Port a, Port b) {
+				return Integer.compare(a.port, b.port);
+			}
+		};
+		PolicyWriter writer = new PolicyWriter(out);
+		try {
+			for (Key k : keys) {
+				List<Port> ports = byBlock.get(k);
+				Collections.sort(ports, byPort);
+				int srcLen = (int) (k.lo >>> 48);
+				Map<String, Object> plc = PolicyReader.unpack(k.hi, k.lo & 0xffffffffffffL);
+				if (srcLen < 32)
+					plc.put("src_addr", plc.get("src_addr") + "/" + srcLen);
+				// ports into runs of consecutive ports, runs into sets of at most maxPorts
+				StringBuilder set = new StringBuilder();
+				List<Long> covers = new ArrayList<Long>();
+				int used = 0;
+				for (int i = 0; i < ports.size();) {
+					int j = i;
+					while (j + 1 < ports.size() && ports.get(j + 1).port == ports.get(j).port + 1)
+						j++;
+					int cost = j > i ? 2 : 1;
+					if (used + cost > maxPorts) {
+						write(writer, plc, set, covers);
+						used = 0;
+					}
+					if (set.length() > 0)
+						set.append(',');
+					set.append(ports.get(i).port);
+					if (j > i)
+						set.append('-').append(ports.get(j).port);
+					used += cost;
+					for (; i <= j; i++) {
+						Longs c = ports.get(i).covers;
+						for (int x = 0; x < c.n; x++)
+							covers.add(c.a[x]);
+					}
+				}
+				write(writer, plc, set, covers);
+			}
+			writer.commit();
+		} finally {
+			writer.close();
+		}
+		logger.info("Aggregated " + (policies - invalid) + " policies of " + byServer.size() + " server ports into "
+				+ blocks + " client blocks and " + writer.count() + " policies in " + (System.currentTimeMillis() - start)
+				+ "ms, " + invalid + " invalid.");
+		return writer.count();
+	}
+
+	private static void write(PolicyWriter writer, Map<String, Object> plc, StringBuilder set, List<Long> covers)
+			throws Exception {
+		Map<String, Object> row = new LinkedHashMap<String, Object>(plc);
+		row.put("dst_port", set.toString());
+		Collections.sort(covers);
+		row.put("covers", new ArrayList<Long>(covers));
+		writer.write(row);
+		set.setLength(0);
+		covers.clear();
+	}
+
+	/**
+	 * Usage: PolicyAggregator [policy file] [?output file], the output defaults to
+	 * the input name with _agg. covers lists the positions of the aggregated
+	 * policies in the input file, counted from 0. Merge node files with
+	 * PolicyMerger first to aggregate across nodes.
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			logger.warning("Usage: PolicyAggregator <policy file> [<output file>]");
+			return;
+		}
+		String appPath = System.getProperty("user.dir");
+		File in = Paths.get(appPath).resolve(args[0]).toFile();
+		Path out = args.length > 1 ? Paths.get(appPath).resolve(args[1])
+				: in.toPath().resolveSibling(in.getName().replaceFirst("(?i)\\.json$", "") + "_agg.json");
+		PolicyAggregator agg = new PolicyAggregator();
+		try {
+			agg.load(in);
+			agg.aggregate(out);
+		} catch (Exception e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot aggregate " + in.getName() + "!");
+		}
+	}
+}
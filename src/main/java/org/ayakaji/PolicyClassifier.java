@@ -0,0 +1,362 @@
+/******************************************
+ * Tuple space classifier answering which *
+ * policy, if any, allows a connection    *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.alibaba.fastjson.JSONObject;
+
+public class PolicyClassifier {
+	private final static Logger logger = Logger.getLogger(PolicyClassifier.class.getName());
+	private final static String[] fields = { "src_addr", "src_port", "proto", "dst_addr", "dst_port" };
+
+	/**
+	 * All policies of one shape: source prefix length, whether the client port is
+	 * a wildcard, destination prefix length. Within a tuple a connection is looked
+	 * up by one probe of an open addressing table keyed by the connection masked
+	 * to the shape.
+	 */
+	private final static class Tuple {
+		final int srcLen;
+		final boolean anyPort;
+		final int dstLen;
+		final int srcMask;
+		final int dstMask;
+		long[] his;
+		long[] los;
+		int[] ids; // policy of a slot, -1 when free
+		int size = 0;
+
+		Tuple(int srcLen, boolean anyPort, int dstLen) {
+			this.srcLen = srcLen;
+			this.anyPort = anyPort;
+			this.dstLen = dstLen;
+			this.srcMask = mask(srcLen);
+			this.dstMask = mask(dstLen);
+			alloc(16);
+		}
+
+		private void alloc(int cap) {
+			his = new long[cap];
+			los = new long[cap];
+			ids = new int[cap];
+			Arrays.fill(ids, -1);
+		}
+
+		long hi(int srcAddr, int srcPort, int proto) {
+			return PolicyReader.packHi(srcAddr & srcMask, anyPort ? 0 : srcPort, proto);
+		}
+
+		long lo(int dstAddr, int dstPort) {
+			return PolicyReader.packLo(dstAddr & dstMask, dstPort);
+		}
+
+		/**
+		 * @return the policy already holding the key, or -1 if added
+		 */
+		int put(long hi, long lo, int id) {
+			if (size * 2 >= ids.length) {
+				long[] oh = his;
+				long[] ol = los;
+				int[] oi = ids;
+				alloc(ids.length * 2);
+				for (int i = 0; i < oi.length; i++)
+					if (oi[i] >= 0)
+						insert(oh[i], ol[i], oi[i]);
+			}
+			int i = find(hi, lo);
+			if (ids[i] >= 0)
+				return ids[i];
+			his[i] = hi;
+			los[i] = lo;
+			ids[i] = id;
+			size++;
+			return -1;
+		}
+
+		private void insert(long hi, long lo, int id) {
+			int i = find(hi, lo);
+			his[i] = hi;
+			los[i] = lo;
+			ids[i] = id;
+		}
+
+		/**
+		 * Slot of the key, or the free slot it would go to
+		 */
+		int find(long hi, long lo) {
+			int m = ids.length - 1;
+			int i = hash(hi, lo) & m;
+			while (ids[i] >= 0 && (his[i] != hi || los[i] != lo))
+				i = i + 1 & m;
+			return i;
+		}
+	}
+
+	private final List<Tuple> tuples = new ArrayList<Tuple>();
+	private Tuple[] order = new Tuple[0]; // most specific first
+	private final List<int[]> policies = new ArrayList<int[]>(); // srcAddr, srcLen, srcPort, proto, dstAddr, dstLen, dstPort
+	private final List<String> nodes = new ArrayList<String>();
+	private int duplicates = 0;
+	private int invalid = 0;
+
+	private static int mask(int len) {
+		return len == 0 ? 0 : -1 << 32 - len;
+	}
+
+	private static int hash(long hi, long lo) {
+		long h = hi * 0x9e3779b97f4a7c15L ^ lo;
+		h *= 0xbf58476d1ce4e5b9L;
+		return (int) (h ^ h >>> 31);
+	}
+
+	/**
+	 * An address or a network, a.b.c.d or a.b.c.d/len
+	 *
+	 * @param s
+	 * @param out address and prefix length at off
+	 * @param off
+	 */
+	private static void prefix(String s, int[] out, int off) {
+		s = s.trim();
+		int slash = s.indexOf('/');
+		int len = 32;
+		if (slash >= 0) {
+			len = Integer.parseInt(s.substring(slash + 1));
+			if (len < 0 || len > 32)
+				throw new IllegalArgumentException("Invalid prefix length: " + s);
+			s = s.substring(0, slash);
+		}
+		out[off] = Util.ipToInt(s) & mask(len);
+		out[off + 1] = len;
+	}
+
+	/**
+	 * Add a policy, its src_addr and dst_addr may be networks, a src_port of 0
+	 * stands for any client port
+	 *
+	 * @param plc
+	 * @param node where the policy comes from
+	 * @return whether the policy was added
+	 */
+	public boolean add(JSONObject plc, String node) {
+		int[] p = new int[7];
+		try {
+			prefix(plc.getString("src_addr"), p, 0);
+			p[2] = plc.getIntValue("src_port");
+			p[3] = Util.protoNum(plc.getString("proto").trim());
+			prefix(plc.getString("dst_addr"), p, 4);
+			p[6] = plc.getIntValue("dst_port");
+		} catch (RuntimeException e) {
+			invalid++;
+			return false;
+		}
+		if (p[3] < 0 || (p[2] & ~0xffff) != 0 || (p[6] & ~0xffff) != 0) {
+			invalid++;
+			return false;
+		}
+		Tuple t = null;
+		for (Tuple x : tuples) {
+			if (x.srcLen == p[1] && x.anyPort == (p[2] == 0) && x.dstLen == p[5]) {
+				t = x;
+				break;
+			}
+		}
+		if (t == null) {
+			t = new Tuple(p[1], p[2] == 0, p[5]);
+			tuples.add(t);
+			order = tuples.toArray(new Tuple[0]);
+			Arrays.sort(order, new Comparator<Tuple>() {
+				@Override
+				public int compare(Tuple a, Tuple b) {
+					int c = (b.srcLen + b.dstLen) - (a.srcLen + a.dstLen);
+					return c != 0 ? c : Boolean.compare(a.anyPort, b.anyPort);
+				}
+			});
+		}
+		if (t.put(t.hi(p[0], p[2], p[3]), t.lo(p[4], p[6]), policies.size()) >= 0) {
+			duplicates++;
+			return false;
+		}
+		policies.add(p);
+		nodes.add(node);
+		return true;
+	}
+
+	/**
+	 * Add all policies of a policy file
+	 *
+	 * @param f
+	 * @throws Exception
+	 */
+	public void load(File f) throws Exception {
+		final String node = PolicyReader.serial(f);
+		PolicyReader.read(f, new PolicyReader.Handler() {
+			@Override
+			public void policy(JSONObject plc) {
+				add(plc, node);
+			}
+		});
+	}
+
+	/**
+	 * The most specific policy allowing a connection from a client to a server.
+	 * Lookups only read the tables, any number of threads can classify at once
+	 * once loading is done.
+	 *
+	 * @param srcAddr client address
+	 * @param srcPort client port
+	 * @param proto   IP protocol number
+	 * @param dstAddr server address
+	 * @param dstPort server port
+	 * @return the policy, or -1 if no policy allows the connection
+	 */
+	public int classify(int srcAddr, int srcPort, int proto, int dstAddr, int dstPort) {
+		for (Tuple t : order) {
+			long hi = t.hi(srcAddr, srcPort, proto);
+			long lo = t.lo(dstAddr, dstPort);
+			int id = t.ids[t.find(hi, lo)];
+			if (id >= 0)
+				return id;
+		}
+		return -1;
+	}
+
+	/**
+	 * A policy in the format of the policy files, with the node it comes from
+	 *
+	 * @param id
+	 * @return
+	 */
+	public Map<String, Object> policy(int id) {
+		int[] p = policies.get(id);
+		Map<String, Object> plc = new LinkedHashMap<String, Object>();
+		plc.put("src_addr", Util.intToIp(p[0]) + (p[1] < 32 ? "/" + p[1] : ""));
+		plc.put("src_port", Integer.toString(p[2]));
+		plc.put("proto", Util.protoName(p[3]));
+		plc.put("dst_addr", Util.intToIp(p[4]) + (p[5] < 32 ? "/" + p[5] : ""));
+		plc.put("dst_port", Integer.toString(p[6]));
+		plc.put("node", nodes.get(id));
+		return plc;
+	}
+
+	public int size() {
+		return policies.size();
+	}
+
+	/**
+	 * Annotate every connection of a file with the policy allowing it, looked up
+	 * as given and, failing that, with client and server swapped, as a captured
+	 * reply would be
+	 *
+	 * @param in
+	 * @param out
+	 * @throws Exception
+	 */
+	public void annotate(File in, Path out) throws Exception {
+		long start = System.currentTimeMillis();
+		final int[] cnt = new int[3]; // connections, allowed, invalid
+		final int[] c = new int[5];
+		final PolicyWriter writer = new PolicyWriter(out);
+		try {
+			PolicyReader.read(in, new PolicyReader.Handler() {
+				@Override
+				public void policy(JSONObject conn) throws Exception {
+					Map<String, Object> row = new LinkedHashMap<String, Object>();
+					for (String k : fields)
+						if (conn.containsKey(k))
+							row.put(k, conn.get(k));
+					row.putAll(conn); // anything else after the 5-tuple
+					cnt[0]++;
+					if (!PolicyReader.parse(conn, c)) {
+						cnt[2]++;
+						row.put("policy", null);
+						writer.write(row);
+						return;
+					}
+					int id = classify(c[0], c[1], c[2], c[3], c[4]);
+					boolean reverse = false;
+					if (id < 0) {
+						id = classify(c[3], c[4], c[2], c[0], c[1]);
+						reverse = id >= 0;
+					}
+					if (id >= 0) {
+						cnt[1]++;
+						Map<String, Object> plc = PolicyClassifier.this.policy(id);
+						if (reverse)
+							plc.put("reverse", true);
+						row.put("policy", plc);
+					} else {
+						row.put("policy", null);
+					}
+					writer.write(row);
+				}
+			});
+			writer.commit();
+		} finally {
+			writer.close();
+		}
+		logger.info("Classified " + cnt[0] + " connections against " + size() + " policies in " + tuples.size()
+				+ " tuples in " + (System.currentTimeMillis() - start) + "ms, " + cnt[1] + " allowed, "
+				+ (cnt[0] - cnt[1] - cnt[2]) + " not allowed, " + cnt[2] + " invalid.");
+	}
+
+	/**
+	 * Usage: PolicyClassifier [policy file or dir] [input file] [?output file],
+	 * the output defaults to the input name with _classified
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			logger.warning("Usage: PolicyClassifier <policy file or dir> <input file> [<output file>]");
+			return;
+		}
+		String appPath = System.getProperty("user.dir");
+		File src = Paths.get(appPath).resolve(args[0]).toFile();
+		File in = Paths.get(appPath).resolve(args[1]).toFile();
+		Path out = args.length > 2 ? Paths.get(appPath).resolve(args[2])
+				: in.toPath().resolveSibling(in.getName().replaceFirst("(?i)\\.json$", "") + "_classified.json");
+		List<File> files = new ArrayList<File>();
+		if (src.isDirectory()) {
+			File[] fs = src.listFiles(PolicyReader.ff);
+			if (fs != null)
+				Collections.addAll(files, fs);
+			Collections.sort(files);
+		} else {
+			files.add(src);
+		}
+		PolicyClassifier classifier = new PolicyClassifier();
+		long start = System.currentTimeMillis();
+		int failed = 0;
+		for (File f : files) {
+			try {
+				classifier.load(f);
+			} catch (Exception e) {
+				logger.warning(e.getMessage());
+				failed++;
+			}
+		}
+		logger.info("Loaded " + classifier.size() + " policies from " + (files.size() - failed) + "/"
+				+ files.size() + " files in " + (System.currentTimeMillis() - start) + "ms, " + classifier.duplicates
+				+ " duplicates, " + classifier.invalid + " invalid.");
+		try {
+			classifier.annotate(in, out);
+		} catch (Exception e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot classify " + in.getName() + "!");
+		}
+	}
+}
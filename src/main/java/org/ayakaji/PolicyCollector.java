@@ -0,0 +1,423 @@
+/******************************************
+ * Central collector of the policies of   *
+ * the nodes, pushed by their uploaders   *
+ * over one NIO selector, merged into a   *
+ * cluster wide store                     *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// @formatter:off
+/**
+ * The protocol, every frame being an int length of what follows, a byte type
+ * and the fields of the type, all big endian:
+ *  HELLO   node to collector: short version, long session, utf serial
+ *  WELCOME collector to node: long last sequence acknowledged for the session
+ *  BATCH   node to collector: long sequence, byte last, int count, int raw
+ *          length, then the deflated records of 13 bytes each: int client
+ *          address, short client port, byte proto, int server address, short
+ *          server port
+ *  ACK     collector to node: long sequence, sent for the last batch of it
+ * A node sends the policies added or converged since its acknowledged
+ * sequence, the epoch of its store; a new session, a restarted node, starts
+ * over from 0.
+ */
+// @formatter:on
+public class PolicyCollector implements Runnable {
+	private final static Logger logger = Logger.getLogger(PolicyCollector.class.getName());
+	final static byte HELLO = 1;
+	final static byte WELCOME = 2;
+	final static byte BATCH = 3;
+	final static byte ACK = 4;
+	final static short VERSION = 1;
+	final static int RECORD = 13; // bytes of a policy record
+	final static int maxRecords = 1 << 20; // of a batch
+	private final static int maxFrame = 16 << 20;
+	final static int defaultPort = Integer.getInteger("prism.collector.port", 7400);
+	// Seconds between two dumps of the store if it changed, -Dprism.collector.dump
+	private final static int dumpSeconds = Math.max(1, Integer.getInteger("prism.collector.dump", 60));
+
+	/**
+	 * A node with what it has reported
+	 */
+	private final static class Node {
+		final String serial;
+		long session = 0;
+		long seq = 0; // last sequence acknowledged
+		final BitSet ids = new BitSet(); // of the policies it reported
+		boolean dirty = false;
+
+		Node(String serial) {
+			this.serial = serial;
+		}
+	}
+
+	/**
+	 * A connection with its partial frame and unsent answers
+	 */
+	private final static class Conn {
+		final SocketChannel ch;
+		ByteBuffer in = ByteBuffer.allocate(65536);
+		ByteBuffer out = ByteBuffer.allocate(256);
+		Node node = null;
+
+		Conn(SocketChannel ch) {
+			this.ch = ch;
+		}
+	}
+
+	private final Path appPath;
+	private final Path nodeDir; // plc_[serial].json of every node, as PolicyConfirmer reads them
+	private final KeySet keys = new KeySet(); // cluster wide, the client port left out
+	private int[] ports = new int[1024]; // client port by id, 0 once converged
+	private final Map<String, Node> nodes = new HashMap<String, Node>();
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final Inflater inflater = new Inflater();
+	private byte[] raw = new byte[RECORD * 1024];
+	private boolean dirty = false;
+	private long batches = 0;
+	private long records = 0;
+	private volatile boolean running = true;
+
+	/**
+	 * @param port    to listen on, 0 for any
+	 * @param appPath where plc_cluster.json goes
+	 * @param nodeDir where the files of the nodes go
+	 * @throws IOException
+	 */
+	public PolicyCollector(int port, Path appPath, Path nodeDir) throws IOException {
+		this.appPath = appPath;
+		this.nodeDir = nodeDir;
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.bind(new InetSocketAddress(port), 1024);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public int port() {
+		return server.socket().getLocalPort();
+	}
+
+	@Override
+	public void run() {
+		logger.info("Collecting policies on port " + port() + ".");
+		long nextDump = System.currentTimeMillis() + dumpSeconds * 1000L;
+		while (running) {
+			try {
+				selector.select(Math.max(1, nextDump - System.currentTimeMillis()));
+			} catch (IOException e) {
+				logger.severe(e.getMessage());
+				break;
+			}
+			for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (!key.isValid())
+					continue;
+				try {
+					if (key.isAcceptable())
+						accept();
+					else
+						handle(key);
+				} catch (IOException e) {
+					close(key, e.getMessage());
+				}
+			}
+			if (System.currentTimeMillis() >= nextDump) {
+				dump();
+				nextDump = System.currentTimeMillis() + dumpSeconds * 1000L;
+			}
+		}
+		for (SelectionKey key : selector.keys())
+			close(key, null);
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.warning(e.getMessage());
+		}
+		dump();
+		logger.info("Stopped collecting after " + batches + " batches, " + records + " records.");
+	}
+
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel ch;
+		while ((ch = server.accept()) != null) {
+			ch.configureBlocking(false);
+			ch.socket().setTcpNoDelay(true);
+			ch.register(selector, SelectionKey.OP_READ, new Conn(ch));
+		}
+	}
+
+	private void close(SelectionKey key, String why) {
+		Object att = key.attachment();
+		if (why != null && att instanceof Conn)
+			logger.warning("Closed " + (((Conn) att).node == null ? "a node" : ((Conn) att).node.serial) + ": " + why);
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			; // closed anyway
+		}
+	}
+
+	/**
+	 * Read what came, handle the frames complete and send what is due
+	 *
+	 * @param key
+	 * @throws IOException
+	 */
+	private void handle(SelectionKey key) throws IOException {
+		Conn c = (Conn) key.attachment();
+		if (key.isReadable()) {
+			int r = c.ch.read(c.in);
+			if (r < 0) {
+				close(key, null);
+				return;
+			}
+			while (c.in.position() >= 4) {
+				int len = c.in.getInt(0);
+				if (len < 1 || len > maxFrame)
+					throw new IOException("Frame of " + len + " bytes");
+				if (c.in.capacity() < len + 4) { // a large batch
+					ByteBuffer in = ByteBuffer.allocate(len + 4);
+					c.in.flip();
+					in.put(c.in);
+					c.in = in;
+				}
+				if (c.in.position() < len + 4)
+					break;
+				c.in.flip();
+				ByteBuffer frame = c.in.duplicate();
+				frame.position(4).limit(len + 4);
+				try {
+					frame(c, frame);
+				} catch (BufferUnderflowException e) {
+					throw new IOException("Short frame");
+				}
+				c.in.position(len + 4);
+				c.in.compact();
+				if (c.in.capacity() > 65536 && c.in.position() <= 65536) { // back to the usual size
+					ByteBuffer in = ByteBuffer.allocate(65536);
+					c.in.flip();
+					in.put(c.in);
+					c.in = in;
+				}
+			}
+		}
+		c.out.flip();
+		c.ch.write(c.out);
+		c.out.compact();
+		key.interestOps(c.out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+	}
+
+	private void answer(Conn c, byte type, long seq) {
+		if (c.out.remaining() < 13)
+			c.out = ByteBuffer.allocate(c.out.capacity() * 2).put((ByteBuffer) c.out.flip());
+		c.out.putInt(9).put(type).putLong(seq);
+	}
+
+	private static boolean isSerial(String s) {
+		if (s.isEmpty() || s.length() > 128)
+			return false;
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			if (!(ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch >= '0' && ch <= '9' || ch == '.'
+					|| ch == '_' || ch == '-'))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Handle one frame
+	 *
+	 * @param c
+	 * @param f the type and fields
+	 * @throws IOException on a protocol violation
+	 */
+	private void frame(Conn c, ByteBuffer f) throws IOException {
+		byte type = f.get();
+		if (type == HELLO) {
+			short version = f.getShort();
+			long session = f.getLong();
+			byte[] b = new byte[f.getShort() & 0xffff];
+			f.get(b);
+			String serial = new String(b, StandardCharsets.UTF_8);
+			if (version != VERSION || !isSerial(serial))
+				throw new IOException("Bad hello of version " + version);
+			Node node = nodes.get(serial);
+			if (node == null) {
+				node = new Node(serial);
+				nodes.put(serial, node);
+			}
+			if (node.session != session) { // restarted, its epochs start over
+				node.session = session;
+				node.seq = 0;
+			}
+			c.node = node;
+			answer(c, WELCOME, node.seq);
+		} else if (type == BATCH) {
+			if (c.node == null)
+				throw new IOException("Batch before hello");
+			long seq = f.getLong();
+			boolean last = f.get() != 0;
+			int count = f.getInt();
+			int rawLen = f.getInt();
+			if (count < 0 || count > maxRecords || rawLen != count * RECORD)
+				throw new IOException("Bad batch of " + count + " records");
+			if (raw.length < rawLen)
+				raw = new byte[Math.max(rawLen, raw.length * 2)];
+			inflater.reset();
+			inflater.setInput(f.array(), f.arrayOffset() + f.position(), f.remaining());
+			try {
+				if (rawLen > 0 && (inflater.inflate(raw, 0, rawLen) != rawLen || !inflater.finished()))
+					throw new IOException("Bad batch data");
+			} catch (DataFormatException e) {
+				throw new IOException("Bad batch data: " + e.getMessage());
+			}
+			ByteBuffer rec = ByteBuffer.wrap(raw, 0, rawLen);
+			for (int i = 0; i < count; i++)
+				put(c.node, rec.getInt(), rec.getShort() & 0xffff, rec.get() & 0xff, rec.getInt(),
+						rec.getShort() & 0xffff);
+			batches++;
+			records += count;
+			if (last) {
+				c.node.seq = Math.max(c.node.seq, seq);
+				answer(c, ACK, seq);
+			}
+		} else {
+			throw new IOException("Frame of type " + type);
+		}
+	}
+
+	/**
+	 * Merge a policy of a node: one seen with two client ports, or converged by
+	 * any node, is converged
+	 */
+	private void put(Node node, int srcAddr, int srcPort, int proto, int dstAddr, int dstPort) {
+		int size = keys.size();
+		int id = keys.add(PolicyReader.packHi(srcAddr, 0, proto), PolicyReader.packLo(dstAddr, dstPort));
+		if (id == ports.length)
+			ports = Arrays.copyOf(ports, id * 2);
+		if (id == size)
+			ports[id] = srcPort;
+		else if (ports[id] != srcPort)
+			ports[id] = 0;
+		node.ids.set(id);
+		node.dirty = true;
+		dirty = true;
+	}
+
+	/**
+	 * A policy of the store in the format of the policy json file
+	 *
+	 * @param id
+	 * @return
+	 */
+	private Map<String, Object> policy(int id) {
+		long hi = keys.hi(id) | (long) ports[id] << 8;
+		return PolicyReader.unpack(hi, keys.lo(id));
+	}
+
+	/**
+	 * Write plc_cluster.json and the files of the nodes which reported since the
+	 * last dump
+	 */
+	private void dump() {
+		if (!dirty)
+			return;
+		dirty = false;
+		PolicyWriter w = null;
+		try {
+			w = new PolicyWriter(appPath.resolve("plc_cluster.json"));
+			for (int id = 0; id < keys.size(); id++)
+				w.write(policy(id));
+			w.commit();
+			Files.createDirectories(nodeDir);
+			int written = 0;
+			for (Node node : nodes.values()) {
+				if (!node.dirty)
+					continue;
+				w = new PolicyWriter(nodeDir.resolve("plc_" + node.serial + ".json"));
+				for (int id = node.ids.nextSetBit(0); id >= 0; id = node.ids.nextSetBit(id + 1))
+					w.write(policy(id));
+				w.commit();
+				node.dirty = false;
+				written++;
+			}
+			logger.info("Dumped " + keys.size() + " policies of " + nodes.size() + " nodes, " + written
+					+ " node files written.");
+		} catch (IOException e) {
+			logger.warning(e.getMessage());
+			logger.warning("Cannot dump collected policies!");
+			dirty = true;
+			try {
+				if (w != null)
+					w.close();
+			} catch (IOException e2) {
+				; // the temporary file is left behind
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		int port = defaultPort;
+		if (args.length > 0) {
+			if (!Util.isInteger(args[0])) {
+				logger.info("You can provide 1 parameter of the port to listen on!");
+				return;
+			}
+			port = Integer.parseInt(args[0]);
+		}
+		String appPath = System.getProperty("user.dir");
+		final PolicyCollector collector;
+		try {
+			collector = new PolicyCollector(port, Paths.get(appPath),
+					Paths.get(appPath, System.getProperty("prism.collector.dir", "plc")));
+		} catch (IOException e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot listen on port " + port + "!");
+			return;
+		}
+		final Thread thread = Thread.currentThread();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				collector.stop();
+				try {
+					thread.join(10000);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+		collector.run();
+	}
+}
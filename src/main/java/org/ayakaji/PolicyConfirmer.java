@@ -0,0 +1,260 @@
+/******************************************
+ * Confirms policies seen from both ends, *
+ * the client node's outbound policy and  *
+ * the server node's inbound policy, by a *
+ * hash join over the node policy files   *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.alibaba.fastjson.JSONObject;
+
+public class PolicyConfirmer {
+	private final static Logger logger = Logger.getLogger(PolicyConfirmer.class.getName());
+	public final static String confirmedFile = "plc_confirmed.json";
+	public final static String unconfirmedFile = "plc_unconfirmed.json";
+
+	/**
+	 * Confirmed policies as loaded from plc_confirmed.json
+	 */
+	public final static class Confirmed {
+		private final KeySet policies = new KeySet(); // client port 0
+		private final KeySet services = new KeySet(); // proto and server address and port
+
+		/**
+		 * Whether a policy, whatever its client port, was seen from both ends
+		 */
+		public boolean contains(int srcAddr, int proto, int dstAddr, int dstPort) {
+			return policies.find(PolicyReader.packHi(srcAddr, 0, proto), PolicyReader.packLo(dstAddr, dstPort)) >= 0;
+		}
+
+		/**
+		 * Whether a server port accepted a confirmed connection, so it is open
+		 */
+		public boolean isOpen(int proto, int dstAddr, int dstPort) {
+			return services.find(proto, PolicyReader.packLo(dstAddr, dstPort)) >= 0;
+		}
+
+		/**
+		 * Whether a policy of a policy file was seen from both ends
+		 */
+		public boolean contains(JSONObject plc) {
+			int[] p = new int[5];
+			return PolicyReader.parse(plc, p) && contains(p[0], p[2], p[3], p[4]);
+		}
+
+		/**
+		 * Whether a TCP server port, as probed by Util.isOpen, accepted a confirmed
+		 * connection
+		 */
+		public boolean isOpen(String dstAddr, String dstPort) {
+			try {
+				return isOpen(Util.PROTO_TCP, Util.ipToInt(dstAddr), Integer.parseInt(dstPort));
+			} catch (RuntimeException e) {
+				return false; // not valid, left to the probe
+			}
+		}
+
+		public int size() {
+			return policies.size();
+		}
+	}
+
+	/**
+	 * The confirmed policies of the working directory, or null if there is no
+	 * plc_confirmed.json or it cannot be read
+	 *
+	 * @return
+	 */
+	public static Confirmed confirmed() {
+		File f = Paths.get(System.getProperty("user.dir"), confirmedFile).toFile();
+		if (!f.isFile())
+			return null;
+		final Confirmed c = new Confirmed();
+		final int[] p = new int[5];
+		try {
+			PolicyReader.read(f, new PolicyReader.Handler() {
+				@Override
+				public void policy(JSONObject plc) {
+					if (!PolicyReader.parse(plc, p))
+						return;
+					c.policies.add(PolicyReader.packHi(p[0], 0, p[2]), PolicyReader.packLo(p[3], p[4]));
+					c.services.add(p[2], PolicyReader.packLo(p[3], p[4]));
+				}
+			});
+		} catch (Exception e) {
+			logger.warning(e.getMessage());
+			logger.warning("Cannot read " + confirmedFile + ", all policies will be probed.");
+			return null;
+		}
+		logger.info(c.size() + " policies confirmed from both ends will not be probed.");
+		return c;
+	}
+
+	private final List<String> nodes = new ArrayList<String>();
+	private final KeySet outs = new KeySet(); // policies seen by their client node, client port 0
+	private final KeySet ins = new KeySet(); // policies seen by their server node, client port 0
+	private int[] outNode = new int[16];
+	private int[] inNode = new int[16];
+	private int foreign = 0; // policies with neither end on their node
+	private int invalid = 0;
+
+	private static int[] put(int[] a, int id, int v) {
+		if (id == a.length)
+			a = Arrays.copyOf(a, id * 2);
+		a[id] = v;
+		return a;
+	}
+
+	/**
+	 * Add the policies of a node file to the outbound or the inbound side
+	 *
+	 * @param f
+	 * @throws Exception
+	 */
+	private void load(File f) throws Exception {
+		final int node = nodes.size();
+		nodes.add(PolicyReader.serial(f));
+		final Set<Integer> addrs = new HashSet<Integer>();
+		for (String a : PolicyReader.nodeAddresses(f)) {
+			try {
+				addrs.add(Util.ipToInt(a));
+			} catch (IllegalArgumentException e) {
+				continue;
+			}
+		}
+		final int[] p = new int[5];
+		PolicyReader.read(f, new PolicyReader.Handler() {
+			@Override
+			public void policy(JSONObject plc) {
+				if (!PolicyReader.parse(plc, p)) {
+					invalid++;
+					return;
+				}
+				long hi = PolicyReader.packHi(p[0], 0, p[2]);
+				long lo = PolicyReader.packLo(p[3], p[4]);
+				if (addrs.contains(p[0])) {
+					int size = outs.size();
+					int id = outs.add(hi, lo);
+					if (id == size)
+						outNode = put(outNode, id, node);
+				} else if (addrs.contains(p[3])) {
+					int size = ins.size();
+					int id = ins.add(hi, lo);
+					if (id == size)
+						inNode = put(inNode, id, node);
+				} else {
+					foreign++;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Join the outbound policies of all nodes with the inbound ones on client
+	 * address, proto, server address and port, and write the confirmed pairs and
+	 * the unconfirmed rest
+	 *
+	 * @param files
+	 * @param dir   where to write
+	 * @throws Exception
+	 */
+	public void confirm(List<File> files, Path dir) throws Exception {
+		long start = System.currentTimeMillis();
+		for (File f : files) {
+			try {
+				load(f);
+			} catch (IOException e) {
+				logger.warning(e.getMessage()); // a broken file, the others go on
+			}
+		}
+		final KeySet confirmed = new KeySet();
+		PolicyWriter writer = new PolicyWriter(dir.resolve(confirmedFile));
+		try {
+			for (int id = 0; id < outs.size(); id++) {
+				int in = ins.find(outs.hi(id), outs.lo(id));
+				if (in < 0)
+					continue;
+				confirmed.add(outs.hi(id), outs.lo(id));
+				Map<String, Object> row = PolicyReader.unpack(outs.hi(id), outs.lo(id));
+				row.put("client_node", nodes.get(outNode[id]));
+				row.put("server_node", nodes.get(inNode[in]));
+				writer.write(row);
+			}
+			writer.commit();
+		} finally {
+			writer.close();
+		}
+		// everything else, as found in the files, for the probes
+		final PolicyWriter rest = new PolicyWriter(dir.resolve(unconfirmedFile));
+		final int[] p = new int[5];
+		try {
+			for (File f : files) {
+				final String node = PolicyReader.serial(f);
+				try {
+					PolicyReader.read(f, new PolicyReader.Handler() {
+						@Override
+						public void policy(JSONObject plc) throws IOException {
+							if (!PolicyReader.parse(plc, p))
+								return;
+							if (confirmed.find(PolicyReader.packHi(p[0], 0, p[2]), PolicyReader.packLo(p[3], p[4])) >= 0)
+								return;
+							Map<String, Object> row = PolicyReader.unpack(PolicyReader.packHi(p[0], p[1], p[2]),
+									PolicyReader.packLo(p[3], p[4]));
+							row.put("node", node);
+							rest.write(row);
+						}
+					});
+				} catch (IOException e) {
+					logger.warning(e.getMessage());
+				}
+			}
+			rest.commit();
+		} finally {
+			rest.close();
+		}
+		logger.info("Joined " + outs.size() + " outbound with " + ins.size() + " inbound policies of " + nodes.size()
+				+ " nodes in " + (System.currentTimeMillis() - start) + "ms: " + confirmed.size() + " confirmed, "
+				+ rest.count() + " left to probe, " + foreign + " foreign, " + invalid + " invalid.");
+	}
+
+	/**
+	 * Usage: PolicyConfirmer [?dir], the directory of node files defaults to plc,
+	 * plc_confirmed.json and plc_unconfirmed.json are written to the working
+	 * directory
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String appPath = System.getProperty("user.dir");
+		File dir = Paths.get(appPath).resolve(args.length > 0 ? args[0] : "plc").toFile();
+		File[] fs = dir.listFiles(PolicyReader.ff);
+		List<File> files = new ArrayList<File>();
+		for (File f : fs == null ? new File[0] : fs)
+			if (!f.getName().equals(confirmedFile) && !f.getName().equals(unconfirmedFile))
+				files.add(f);
+		if (files.isEmpty()) {
+			logger.warning("No policy file found in " + dir + "!");
+			return;
+		}
+		Collections.sort(files);
+		try {
+			new PolicyConfirmer().confirm(files, Paths.get(appPath));
+		} catch (Exception e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot confirm policies!");
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/******************************************
+ * Diff of two policy sets: added,        *
+ * removed and converged policies         *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import com.alibaba.fastjson.JSONObject;
+
+public class PolicyDiff {
+	private final static Logger logger = Logger.getLogger(PolicyDiff.class.getName());
+	// Partitions of the streaming mode for sets larger than memory, -Dprism.diff.partitions, 0 in memory
+	private final static int partitions = Integer.getInteger("prism.diff.partitions", 0);
+	private final static long portMask = 0xffff00L; // client port in the high half of a packed key
+
+	/**
+	 * Receives packed policies
+	 */
+	private interface Handler {
+		void policy(long hi, long lo) throws Exception;
+	}
+
+	/**
+	 * A policy set which can be read once, in order
+	 */
+	private interface Source {
+		void read(Handler handler) throws Exception;
+	}
+
+	/**
+	 * The policies of a policy file
+	 */
+	private final class FileSource implements Source {
+		private final File f;
+
+		FileSource(File f) {
+			this.f = f;
+		}
+
+		@Override
+		public void read(final Handler handler) throws Exception {
+			if (f == null)
+				return; // a node on one side only
+			final int[] p = new int[5];
+			PolicyReader.read(f, new PolicyReader.Handler() {
+				@Override
+				public void policy(JSONObject plc) throws Exception {
+					if (!PolicyReader.parse(plc, p)) {
+						invalid++;
+						return;
+					}
+					handler.policy(PolicyReader.packHi(p[0], p[1], p[2]), PolicyReader.packLo(p[3], p[4]));
+				}
+			});
+		}
+	}
+
+	/**
+	 * A partition spilled to disk, hi and lo per policy
+	 */
+	private final static class PartSource implements Source {
+		private final Path path;
+
+		PartSource(Path path) {
+			this.path = path;
+		}
+
+		@Override
+		public void read(Handler handler) throws Exception {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 65536));
+			try {
+				while (true) {
+					long hi;
+					try {
+						hi = in.readLong();
+					} catch (EOFException e) {
+						break;
+					}
+					handler.policy(hi, in.readLong());
+				}
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	private final PolicyWriter out;
+	private String node = null; // set in directory mode
+	private int invalid = 0;
+	private final int[] total = new int[4]; // added, removed, converged, unchanged
+
+	public PolicyDiff(PolicyWriter out) {
+		this.out = out;
+	}
+
+	private void write(String change, long hi, long lo, int oldPort) throws IOException {
+		Map<String, Object> row = new LinkedHashMap<String, Object>();
+		row.put("change", change);
+		if (node != null)
+			row.put("node", node);
+		row.putAll(PolicyReader.unpack(hi, lo));
+		if (oldPort >= 0)
+			row.put("old_src_port", Integer.toString(oldPort));
+		out.write(row);
+	}
+
+	/**
+	 * Diff two sets in one pass over each: the old set is loaded into a hashed
+	 * set, the new one streamed against it. A removed policy with a fixed client
+	 * port whose converged form, client port 0, was added is reported as
+	 * converged, once per converged policy; the policies of its other old client
+	 * ports are reported as removed.
+	 *
+	 * @param a old set
+	 * @param b new set
+	 * @return added, removed, converged, unchanged
+	 * @throws Exception
+	 */
+	private int[] diff(Source a, Source b) throws Exception {
+		final KeySet olds = new KeySet();
+		a.read(new Handler() {
+			@Override
+			public void policy(long hi, long lo) {
+				olds.add(hi, lo);
+			}
+		});
+		final BitSet kept = new BitSet(olds.size());
+		final KeySet news = new KeySet();
+		b.read(new Handler() {
+			@Override
+			public void policy(long hi, long lo) {
+				int id = olds.find(hi, lo);
+				if (id >= 0)
+					kept.set(id);
+				else
+					news.add(hi, lo);
+			}
+		});
+		int[] cnt = new int[4];
+		BitSet converged = new BitSet(news.size());
+		for (int id = kept.nextClearBit(0); id < olds.size(); id = kept.nextClearBit(id + 1)) {
+			long hi = olds.hi(id);
+			long lo = olds.lo(id);
+			int port = (int) ((hi & portMask) >>> 8);
+			int to = port == 0 ? -1 : news.find(hi & ~portMask, lo);
+			if (to >= 0 && !converged.get(to)) {
+				converged.set(to);
+				write("converged", hi & ~portMask, lo, port);
+				cnt[2]++;
+			} else {
+				write("removed", hi, lo, -1);
+				cnt[1]++;
+			}
+		}
+		for (int id = converged.nextClearBit(0); id < news.size(); id = converged.nextClearBit(id + 1)) {
+			write("added", news.hi(id), news.lo(id), -1);
+			cnt[0]++;
+		}
+		cnt[3] = kept.cardinality();
+		for (int i = 0; i < 4; i++)
+			total[i] += cnt[i];
+		return cnt;
+	}
+
+	/**
+	 * Split a set into partitions by policy without its client port, so that a
+	 * policy and its converged form meet in the same partition
+	 *
+	 * @param src
+	 * @param dir
+	 * @param prefix
+	 * @return
+	 * @throws Exception
+	 */
+	private static Path[] partition(Source src, Path dir, String prefix) throws Exception {
+		final Path[] paths = new Path[partitions];
+		final DataOutputStream[] outs = new DataOutputStream[partitions];
+		try {
+			for (int i = 0; i < partitions; i++) {
+				paths[i] = dir.resolve(prefix + "-" + i + ".bin");
+				outs[i] = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(paths[i]), 16384));
+			}
+			src.read(new Handler() {
+				@Override
+				public void policy(long hi, long lo) throws IOException {
+					long h = ((hi & ~portMask) * 0x9e3779b97f4a7c15L ^ lo) * 0xbf58476d1ce4e5b9L;
+					DataOutputStream out = outs[(int) ((h >>> 33) % partitions)];
+					out.writeLong(hi);
+					out.writeLong(lo);
+				}
+			});
+		} finally {
+			for (DataOutputStream out : outs)
+				if (out != null)
+					out.close();
+		}
+		return paths;
+	}
+
+	/**
+	 * Diff two policy files, in memory or, with -Dprism.diff.partitions, one
+	 * partition at a time
+	 *
+	 * @param a    old file, null for none
+	 * @param b    new file, null for none
+	 * @param node written with every change, or null
+	 * @return added, removed, converged, unchanged
+	 * @throws Exception
+	 */
+	public int[] diff(File a, File b, String node) throws Exception {
+		this.node = node;
+		Source sa = new FileSource(a);
+		Source sb = new FileSource(b);
+		if (partitions <= 0)
+			return diff(sa, sb);
+		Path dir = Files.createTempDirectory(Paths.get(System.getProperty("user.dir")), "diff");
+		try {
+			Path[] pa = partition(sa, dir, "a");
+			Path[] pb = partition(sb, dir, "b");
+			int[] cnt = new int[4];
+			for (int i = 0; i < partitions; i++) {
+				int[] c = diff(new PartSource(pa[i]), new PartSource(pb[i]));
+				for (int j = 0; j < 4; j++)
+					cnt[j] += c[j];
+				Files.delete(pa[i]);
+				Files.delete(pb[i]);
+			}
+			return cnt;
+		} finally {
+			File[] left = dir.toFile().listFiles();
+			for (File f : left == null ? new File[0] : left)
+				f.delete();
+			dir.toFile().delete();
+		}
+	}
+
+	private static String summary(int[] cnt) {
+		return cnt[0] + " added, " + cnt[1] + " removed, " + cnt[2] + " converged, " + cnt[3] + " unchanged";
+	}
+
+	/**
+	 * Policy files of a directory by node serial
+	 *
+	 * @param dir
+	 * @return
+	 */
+	private static Map<String, File> byNode(File dir) {
+		Map<String, File> map = new TreeMap<String, File>();
+		File[] files = dir.listFiles(PolicyReader.ff);
+		for (File f : files == null ? new File[0] : files)
+			map.put(PolicyReader.serial(f), f);
+		return map;
+	}
+
+	/**
+	 * Usage: PolicyDiff [old file or dir] [new file or dir] [?output file]. Two
+	 * directories are diffed node by node, plc_[serial].json against
+	 * plc_[serial]_clean.json and the like. The changes go to plc_diff.json, one
+	 * row per change with change set to added, removed or converged.
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			logger.warning("Usage: PolicyDiff <old file or dir> <new file or dir> [<output file>]");
+			return;
+		}
+		String appPath = System.getProperty("user.dir");
+		File a = Paths.get(appPath).resolve(args[0]).toFile();
+		File b = Paths.get(appPath).resolve(args[1]).toFile();
+		Path outPath = Paths.get(appPath).resolve(args.length > 2 ? args[2] : "plc_diff.json");
+		long start = System.currentTimeMillis();
+		PolicyWriter out = null;
+		try {
+			out = new PolicyWriter(outPath);
+			PolicyDiff pd = new PolicyDiff(out);
+			if (a.isDirectory() && b.isDirectory()) {
+				Map<String, File> olds = byNode(a);
+				Map<String, File> news = byNode(b);
+				Map<String, File> all = new TreeMap<String, File>(olds);
+				all.putAll(news);
+				for (String node : all.keySet())
+					logger.info(node + ": " + summary(pd.diff(olds.get(node), news.get(node), node)));
+			} else {
+				pd.diff(a, b, null);
+			}
+			out.commit();
+			logger.info("Diff written to " + outPath.getFileName() + ": " + summary(pd.total) + " in "
+					+ (System.currentTimeMillis() - start) + "ms, " + pd.invalid + " invalid.");
+		} catch (Exception e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot diff " + a.getName() + " and " + b.getName() + "!");
+		} finally {
+			try {
+				if (out != null)
+					out.close();
+			} catch (IOException e) {
+				logger.warning(e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,544 @@
+/******************************************
+ * Offline merge of the policy files of   *
+ * all nodes into one sorted global set,  *
+ * with the nodes of every policy, in     *
+ * bounded memory by sorted runs spilled  *
+ * to disk and merged k-way               *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.alibaba.fastjson.JSONObject;
+
+public class PolicyMerger {
+	private final static Logger logger = Logger.getLogger(PolicyMerger.class.getName());
+	// Policies buffered per reader thread before a run is sorted and spilled, -Dprism.merge.buffer
+	private final static int bufSize = Integer.getInteger("prism.merge.buffer", 1 << 18);
+	// Reader threads, -Dprism.merge.threads
+	private final static int threads = Integer.getInteger("prism.merge.threads", Runtime.getRuntime().availableProcessors());
+	// Runs merged at once, and run files open at once, -Dprism.merge.fanIn
+	private final static int fanIn = Math.max(2, Integer.getInteger("prism.merge.fanIn", 64));
+
+	/**
+	 * A sorted run of distinct policies, each with its sorted distinct nodes
+	 */
+	private interface Run {
+		/**
+		 * Move to the next policy
+		 *
+		 * @return false at the end of the run
+		 * @throws IOException
+		 */
+		boolean next() throws IOException;
+
+		long hi();
+
+		long lo();
+
+		int[] nodes();
+
+		void close() throws IOException;
+	}
+
+	/**
+	 * The policies one reader thread buffered, as parallel arrays
+	 */
+	private final static class Buffer {
+		final long[] his = new long[bufSize];
+		final long[] los = new long[bufSize];
+		final int[] nodes = new int[bufSize];
+		int size = 0;
+
+		void add(long hi, long lo, int node) {
+			his[size] = hi;
+			los[size] = lo;
+			nodes[size] = node;
+			size++;
+		}
+
+		boolean isFull() {
+			return size == bufSize;
+		}
+
+		private int compare(int i, int j) {
+			int c = Long.compareUnsigned(his[i], his[j]);
+			if (c == 0)
+				c = Long.compareUnsigned(los[i], los[j]);
+			return c != 0 ? c : Integer.compare(nodes[i], nodes[j]);
+		}
+
+		private void swap(int i, int j) {
+			long t = his[i];
+			his[i] = his[j];
+			his[j] = t;
+			t = los[i];
+			los[i] = los[j];
+			los[j] = t;
+			int n = nodes[i];
+			nodes[i] = nodes[j];
+			nodes[j] = n;
+		}
+
+		/**
+		 * Quicksort of the three arrays together, median of three, insertion sort
+		 * for small ranges
+		 */
+		void sort(int from, int to) {
+			while (to - from > 16) {
+				int mid = (from + to) >>> 1;
+				if (compare(mid, from) < 0)
+					swap(mid, from);
+				if (compare(to - 1, from) < 0)
+					swap(to - 1, from);
+				if (compare(to - 1, mid) < 0)
+					swap(to - 1, mid);
+				swap(mid, to - 2); // pivot
+				int p = to - 2;
+				int i = from;
+				int j = to - 2;
+				while (true) {
+					while (compare(++i, p) < 0)
+						;
+					while (j > from && compare(--j, p) > 0)
+						;
+					if (i >= j)
+						break;
+					swap(i, j);
+				}
+				swap(i, to - 2);
+				if (i - from < to - i - 1) { // recurse into the smaller half
+					sort(from, i);
+					from = i + 1;
+				} else {
+					sort(i + 1, to);
+					to = i;
+				}
+			}
+			for (int i = from + 1; i < to; i++)
+				for (int j = i; j > from && compare(j, j - 1) < 0; j--)
+					swap(j, j - 1);
+		}
+	}
+
+	/**
+	 * A sorted buffer read as a run
+	 */
+	private final static class MemRun implements Run {
+		private final Buffer buf;
+		private int pos = 0;
+		private long hi;
+		private long lo;
+		private int[] nodes;
+
+		MemRun(Buffer buf) {
+			this.buf = buf;
+			buf.sort(0, buf.size);
+		}
+
+		@Override
+		public boolean next() {
+			if (pos == buf.size)
+				return false;
+			hi = buf.his[pos];
+			lo = buf.los[pos];
+			int end = pos;
+			while (end < buf.size && buf.his[end] == hi && buf.los[end] == lo)
+				end++;
+			int[] ns = new int[end - pos];
+			int n = 0;
+			for (int i = pos; i < end; i++)
+				if (n == 0 || ns[n - 1] != buf.nodes[i])
+					ns[n++] = buf.nodes[i];
+			nodes = n == ns.length ? ns : Arrays.copyOf(ns, n);
+			pos = end;
+			return true;
+		}
+
+		public long hi() {
+			return hi;
+		}
+
+		public long lo() {
+			return lo;
+		}
+
+		public int[] nodes() {
+			return nodes;
+		}
+
+		public void close() {
+		}
+	}
+
+	/**
+	 * A run spilled to disk: hi, lo, node count and nodes per policy. The file is
+	 * opened by the first next(), when the merge of the run starts, so that the
+	 * runs waiting hold no descriptor and no buffer.
+	 */
+	private final static class FileRun implements Run {
+		private final Path path;
+		private DataInputStream in = null;
+		private long hi;
+		private long lo;
+		private int[] nodes;
+
+		FileRun(Path path) {
+			this.path = path;
+		}
+
+		@Override
+		public boolean next() throws IOException {
+			if (in == null)
+				in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 65536));
+			try {
+				hi = in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+			lo = in.readLong();
+			nodes = new int[in.readInt()];
+			for (int i = 0; i < nodes.length; i++)
+				nodes[i] = in.readInt();
+			return true;
+		}
+
+		public long hi() {
+			return hi;
+		}
+
+		public long lo() {
+			return lo;
+		}
+
+		public int[] nodes() {
+			return nodes;
+		}
+
+		public void close() throws IOException {
+			if (in != null)
+				in.close();
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * Receives the merged policies in order
+	 */
+	private interface Sink {
+		void policy(long hi, long lo, int[] nodes) throws IOException;
+	}
+
+	private final List<String> serials = new ArrayList<String>();
+	private final Path tmpDir;
+	private final List<Run> runs = new ArrayList<Run>();
+	private final AtomicInteger spilled = new AtomicInteger();
+	private final AtomicLong read = new AtomicLong();
+	private final AtomicLong invalid = new AtomicLong();
+
+	public PolicyMerger(Path tmpDir) {
+		this.tmpDir = tmpDir;
+	}
+
+	/**
+	 * Sort a buffer and write it to disk as a run
+	 *
+	 * @param buf
+	 * @return
+	 * @throws IOException
+	 */
+	private Run spill(Buffer buf) throws IOException {
+		Path path = tmpDir.resolve("run-" + spilled.incrementAndGet() + ".bin");
+		write(Collections.<Run> singletonList(new MemRun(buf)), path);
+		buf.size = 0;
+		return new FileRun(path);
+	}
+
+	/**
+	 * Merge runs into a run on disk
+	 *
+	 * @param runs
+	 * @param path
+	 * @throws IOException
+	 */
+	private static void write(List<Run> runs, Path path) throws IOException {
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(path), 65536));
+		try {
+			merge(runs, new Sink() {
+				@Override
+				public void policy(long hi, long lo, int[] nodes) throws IOException {
+					out.writeLong(hi);
+					out.writeLong(lo);
+					out.writeInt(nodes.length);
+					for (int n : nodes)
+						out.writeInt(n);
+				}
+			});
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * K-way merge of sorted runs, the nodes of a policy found in several runs are
+	 * merged. The runs are closed.
+	 *
+	 * @param runs
+	 * @param sink
+	 * @throws IOException
+	 */
+	private static void merge(List<Run> runs, Sink sink) throws IOException {
+		PriorityQueue<Run> heap = new PriorityQueue<Run>(Math.max(1, runs.size()), new Comparator<Run>() {
+			@Override
+			public int compare(Run a, Run b) {
+				int c = Long.compareUnsigned(a.hi(), b.hi());
+				return c != 0 ? c : Long.compareUnsigned(a.lo(), b.lo());
+			}
+		});
+		try {
+			for (Run r : runs) {
+				if (r.next())
+					heap.add(r);
+			}
+			while (!heap.isEmpty()) {
+				Run r = heap.poll();
+				long hi = r.hi();
+				long lo = r.lo();
+				int[] nodes = r.nodes();
+				if (r.next())
+					heap.add(r);
+				while (!heap.isEmpty() && heap.peek().hi() == hi && heap.peek().lo() == lo) {
+					r = heap.poll();
+					nodes = union(nodes, r.nodes());
+					if (r.next())
+						heap.add(r);
+				}
+				sink.policy(hi, lo, nodes);
+			}
+		} finally {
+			for (Run r : runs)
+				r.close();
+		}
+	}
+
+	private static int[] union(int[] a, int[] b) {
+		int[] c = new int[a.length + b.length];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length || j < b.length) {
+			int v = j == b.length || i < a.length && a[i] <= b[j] ? a[i++] : b[j++];
+			if (n == 0 || c[n - 1] != v)
+				c[n++] = v;
+		}
+		return n == c.length ? c : Arrays.copyOf(c, n);
+	}
+
+	/**
+	 * Read all files in parallel, each reader thread filling its own buffer and
+	 * spilling it as a sorted run whenever full. What is left in the buffers at
+	 * the end stays in memory as the last runs.
+	 *
+	 * @param files
+	 * @throws Exception
+	 */
+	private void read(List<File> files) throws Exception {
+		final Map<String, Integer> nodeIdx = new LinkedHashMap<String, Integer>();
+		final ConcurrentLinkedQueue<Object[]> queue = new ConcurrentLinkedQueue<Object[]>();
+		for (File f : files) {
+			String serial = PolicyReader.serial(f);
+			Integer idx = nodeIdx.get(serial);
+			if (idx == null) {
+				idx = serials.size();
+				serials.add(serial);
+				nodeIdx.put(serial, idx);
+			}
+			queue.add(new Object[] { f, idx });
+		}
+		final AtomicInteger done = new AtomicInteger();
+		final int total = files.size();
+		final List<Exception> errors = new ArrayList<Exception>();
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int t = 0; t < Math.max(1, Math.min(threads, total)); t++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					final Buffer buf = new Buffer();
+					final int[] plc = new int[5];
+					try {
+						Object[] task;
+						while ((task = queue.poll()) != null) {
+							final File f = (File) task[0];
+							final int node = (Integer) task[1];
+							try {
+								PolicyReader.read(f, new PolicyReader.Handler() {
+									@Override
+									public void policy(JSONObject jsonObj) {
+										if (!PolicyReader.parse(jsonObj, plc)) {
+											invalid.incrementAndGet();
+											return;
+										}
+										buf.add(PolicyReader.packHi(plc[0], plc[1], plc[2]),
+												PolicyReader.packLo(plc[3], plc[4]), node);
+										read.incrementAndGet();
+										if (buf.isFull()) {
+											Run run;
+											try {
+												run = spill(buf);
+											} catch (IOException e) {
+												throw new UncheckedIOException(e); // not the file's fault
+											}
+											synchronized (runs) {
+												runs.add(run);
+											}
+										}
+									}
+								});
+							} catch (IOException e) {
+								logger.warning(e.getMessage()); // a broken file, the others go on
+							}
+							int n = done.incrementAndGet();
+							if (n % 100 == 0 || n == total)
+								logger.info("[" + n + "/" + total + "] files read.");
+						}
+						if (buf.size > 0) {
+							synchronized (runs) {
+								runs.add(new MemRun(buf));
+							}
+						}
+					} catch (Exception e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			}, "Merger-" + t);
+			worker.start();
+			workers.add(worker);
+		}
+		for (Thread worker : workers)
+			worker.join();
+		if (!errors.isEmpty())
+			throw errors.get(0);
+	}
+
+	/**
+	 * Merge all policy files found under the given directories into one file
+	 *
+	 * @param dirs
+	 * @param out
+	 * @return number of distinct policies
+	 * @throws Exception
+	 */
+	public int merge(List<File> dirs, Path out) throws Exception {
+		long start = System.currentTimeMillis();
+		List<File> files = new ArrayList<File>();
+		for (File dir : dirs)
+			list(dir, files);
+		if (files.isEmpty()) {
+			logger.warning("No policy file found!");
+			return 0;
+		}
+		read(files);
+		while (runs.size() > fanIn) { // bound the files open at once
+			List<Run> part = new ArrayList<Run>(runs.subList(0, fanIn));
+			runs.subList(0, fanIn).clear();
+			Path path = tmpDir.resolve("run-" + spilled.incrementAndGet() + ".bin");
+			write(part, path);
+			runs.add(new FileRun(path));
+		}
+		final PolicyWriter writer = new PolicyWriter(out);
+		try {
+			merge(runs, new Sink() {
+				@Override
+				public void policy(long hi, long lo, int[] nodes) throws IOException {
+					Map<String, Object> plc = PolicyReader.unpack(hi, lo);
+					List<String> names = new ArrayList<String>(nodes.length);
+					for (int n : nodes)
+						names.add(serials.get(n));
+					plc.put("nodes", names);
+					writer.write(plc);
+				}
+			});
+			writer.commit();
+		} finally {
+			writer.close();
+		}
+		logger.info("Merged " + read.get() + " policies of " + files.size() + " files from " + serials.size()
+				+ " nodes into " + writer.count() + " distinct policies in " + (System.currentTimeMillis() - start)
+				+ "ms, " + spilled.get() + " runs spilled, " + invalid.get() + " invalid.");
+		return writer.count();
+	}
+
+	/**
+	 * Policy files of a directory and its subdirectories
+	 *
+	 * @param dir
+	 * @param files
+	 */
+	private static void list(File dir, List<File> files) {
+		File[] subs = dir.listFiles();
+		if (subs == null)
+			return;
+		Arrays.sort(subs);
+		for (File f : subs) {
+			if (f.isDirectory())
+				list(f, files);
+			else if (PolicyReader.ff.accept(f))
+				files.add(f);
+		}
+	}
+
+	/**
+	 * Usage: PolicyMerger [dir ...], the directories default to plc and plc_clean,
+	 * the result is plc_merged.json
+	 *
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String appPath = System.getProperty("user.dir");
+		List<File> dirs = new ArrayList<File>();
+		for (String arg : args.length > 0 ? args : new String[] { "plc", "plc_clean" })
+			dirs.add(Paths.get(appPath).resolve(arg).toFile());
+		Path tmpDir;
+		try {
+			tmpDir = Files.createTempDirectory(Paths.get(System.getProperty("prism.merge.tmp", appPath)), "merge");
+		} catch (IOException e) {
+			logger.severe(e.getMessage());
+			logger.severe("Cannot create the directory for sorted runs!");
+			return;
+		}
+		try {
+			new PolicyMerger(tmpDir).merge(dirs, Paths.get(appPath, "plc_merged.json"));
+		} catch (Exception e) {
+			logger.severe(e.toString());
+			logger.severe("Cannot merge policies!");
+		} finally {
+			File[] left = tmpDir.toFile().listFiles();
+			for (File f : left == null ? new File[0] : left)
+				f.delete();
+			tmpDir.toFile().delete();
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/******************************************
+ * Live query endpoint on the policy      *
+ * store of a running rebuilder, reading  *
+ * the store without any lock             *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.alibaba.fastjson.JSON;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// @formatter:off
+/**
+ * GET /policies?host=&port=&proto=&cidr=&process=&limit=
+ *               matching policies as NDJSON, one json object a line, every
+ *               filter optional and all of them to match: host and cidr for
+ *               either end, port for the server port, process for the owner
+ * GET /stats    counts of the store
+ * GET /top?n=   heaviest flows of the traffic sketch and heaviest policies
+ */
+// @formatter:on
+public class PolicyQuery {
+	private final static Logger logger = Logger.getLogger(PolicyQuery.class.getName());
+	private final static int threads = 2; // queries at a time, never on the capture thread
+
+	/**
+	 * Filters of a policy query
+	 */
+	private final static class Filter {
+		Integer host = null;
+		int port = -1;
+		int proto = -1;
+		int net = 0;
+		int mask = 0; // 0 with net 0 matches any address
+		String process = null;
+		long limit = Long.MAX_VALUE;
+
+		boolean matches(PolicyStore.Policy p) {
+			if (host != null && p.srcAddr != host && p.dstAddr != host)
+				return false;
+			if (port >= 0 && p.dstPort != port)
+				return false;
+			if (proto >= 0 && p.proto != proto)
+				return false;
+			if ((p.srcAddr & mask) != net && (p.dstAddr & mask) != net)
+				return false;
+			return process == null || process.equals(p.process());
+		}
+	}
+
+	private final PolicyStore store;
+	private final TrafficSketch sketch; // null if not kept
+	private final HttpServer server;
+
+	/**
+	 * @param store
+	 * @param sketch null if not kept
+	 * @param bind   address to listen on
+	 * @param port
+	 * @throws IOException
+	 */
+	public PolicyQuery(PolicyStore store, TrafficSketch sketch, String bind, int port) throws IOException {
+		this.store = store;
+		this.sketch = sketch;
+		server = HttpServer.create(new InetSocketAddress(bind, port), 16);
+		server.createContext("/policies", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange ex) throws IOException {
+				policies(ex);
+			}
+		});
+		server.createContext("/stats", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange ex) throws IOException {
+				stats(ex);
+			}
+		});
+		server.createContext("/top", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange ex) throws IOException {
+				top(ex);
+			}
+		});
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int n = 0;
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Query-" + n++);
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+		server.setExecutor(pool);
+	}
+
+	public void start() {
+		server.start();
+		logger.info("Answering policy queries on " + server.getAddress() + ".");
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	public int port() {
+		return server.getAddress().getPort();
+	}
+
+	private static Map<String, String> params(HttpExchange ex) throws UnsupportedEncodingException {
+		Map<String, String> params = new HashMap<String, String>();
+		String q = ex.getRequestURI().getRawQuery();
+		if (q == null)
+			return params;
+		for (String kv : q.split("&")) {
+			int eq = kv.indexOf('=');
+			if (eq > 0)
+				params.put(URLDecoder.decode(kv.substring(0, eq), "UTF-8"),
+						URLDecoder.decode(kv.substring(eq + 1), "UTF-8"));
+		}
+		return params;
+	}
+
+	/**
+	 * The filters of a query
+	 *
+	 * @param params
+	 * @return
+	 * @throws IllegalArgumentException on a filter not valid
+	 */
+	private static Filter filter(Map<String, String> params) {
+		Filter f = new Filter();
+		if (params.containsKey("host"))
+			f.host = Util.ipToInt(params.get("host"));
+		if (params.containsKey("port")) {
+			f.port = Integer.parseInt(params.get("port"));
+			if (f.port < 0 || f.port > 65535)
+				throw new IllegalArgumentException("Invalid port: " + f.port);
+		}
+		if (params.containsKey("proto")) {
+			f.proto = Util.protoNum(params.get("proto"));
+			if (f.proto < 0)
+				throw new IllegalArgumentException("Invalid proto: " + params.get("proto"));
+		}
+		if (params.containsKey("cidr")) {
+			String cidr = params.get("cidr");
+			int slash = cidr.indexOf('/');
+			int bits = slash < 0 ? 32 : Integer.parseInt(cidr.substring(slash + 1));
+			if (bits < 0 || bits > 32)
+				throw new IllegalArgumentException("Invalid prefix: " + cidr);
+			f.mask = bits == 0 ? 0 : -1 << 32 - bits;
+			f.net = Util.ipToInt(slash < 0 ? cidr : cidr.substring(0, slash)) & f.mask;
+		}
+		f.process = params.get("process");
+		if (params.containsKey("limit"))
+			f.limit = Long.parseLong(params.get("limit"));
+		return f;
+	}
+
+	private static void send(HttpExchange ex, int code, String type, String body) throws IOException {
+		byte[] b = body.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", type);
+		ex.sendResponseHeaders(code, b.length);
+		ex.getResponseBody().write(b);
+		ex.close();
+	}
+
+	/**
+	 * Stream the matching policies, a policy is written as it is found so that
+	 * the answer takes no memory whatever the size of the store
+	 *
+	 * @param ex
+	 * @throws IOException
+	 */
+	private void policies(HttpExchange ex) throws IOException {
+		Filter f;
+		try {
+			f = filter(params(ex));
+		} catch (IllegalArgumentException e) {
+			send(ex, 400, "text/plain; charset=utf-8", e.getMessage() + "\n");
+			return;
+		}
+		ex.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+		ex.sendResponseHeaders(200, 0); // chunked
+		Writer out = new BufferedWriter(new OutputStreamWriter(ex.getResponseBody(), StandardCharsets.UTF_8), 65536);
+		try {
+			long n = 0;
+			for (PolicyStore.Policy p : store.live()) {
+				if (n >= f.limit)
+					break;
+				if (!f.matches(p))
+					continue;
+				out.write(JSON.toJSONString(NetPolicyRebuilder.toMap(PolicyStore.row(p))));
+				out.write('\n');
+				n++;
+			}
+		} finally {
+			out.close();
+			ex.close();
+		}
+	}
+
+	private void stats(HttpExchange ex) throws IOException {
+		int count = 0;
+		int converged = 0;
+		int tcp = 0;
+		int owned = 0;
+		int timed = 0;
+		long packets = 0;
+		long bytes = 0;
+		for (PolicyStore.Policy p : store.live()) {
+			count++;
+			if (p.isConverged())
+				converged++;
+			if (p.proto == Util.PROTO_TCP)
+				tcp++;
+			if (p.process() != null)
+				owned++;
+			if (p.rtt() != null)
+				timed++;
+			packets += p.packets();
+			bytes += p.bytes();
+		}
+		Map<String, Object> m = new LinkedHashMap<String, Object>();
+		m.put("epoch", store.epoch());
+		m.put("policies", count);
+		m.put("converged", converged);
+		m.put("initial", count - converged);
+		m.put("tcp", tcp);
+		m.put("udp", count - tcp);
+		m.put("with_process", owned);
+		m.put("with_rtt", timed);
+		m.put("packets", packets);
+		m.put("bytes", bytes);
+		send(ex, 200, "application/json; charset=utf-8", JSON.toJSONString(m, true) + "\n");
+	}
+
+	private void top(HttpExchange ex) throws IOException {
+		int n = 10;
+		String s = params(ex).get("n");
+		if (s != null) {
+			if (!Util.isInteger(s) || s.isEmpty() || Integer.parseInt(s) < 1) {
+				send(ex, 400, "text/plain; charset=utf-8", "Invalid n: " + s + "\n");
+				return;
+			}
+			n = Math.min(10000, Integer.parseInt(s));
+		}
+		// bytes as read once, the counters go on while the store is scanned
+		PriorityQueue<Map.Entry<Long, PolicyStore.Policy>> heap = new PriorityQueue<Map.Entry<Long, PolicyStore.Policy>>(
+				n + 1, new Comparator<Map.Entry<Long, PolicyStore.Policy>>() {
+					@Override
+					public int compare(Map.Entry<Long, PolicyStore.Policy> a, Map.Entry<Long, PolicyStore.Policy> b) {
+						return a.getKey().compareTo(b.getKey());
+					}
+				});
+		for (PolicyStore.Policy p : store.live()) {
+			long bytes = p.bytes();
+			if (bytes == 0 || heap.size() == n && bytes <= heap.peek().getKey())
+				continue;
+			heap.add(new AbstractMap.SimpleImmutableEntry<Long, PolicyStore.Policy>(bytes, p));
+			if (heap.size() > n)
+				heap.poll(); // the lightest
+		}
+		List<Map.Entry<Long, PolicyStore.Policy>> heaviest = new ArrayList<Map.Entry<Long, PolicyStore.Policy>>(heap);
+		Collections.sort(heaviest, Collections.reverseOrder(heap.comparator()));
+		List<Map<String, String>> policies = new ArrayList<Map<String, String>>();
+		for (Map.Entry<Long, PolicyStore.Policy> e : heaviest)
+			policies.add(NetPolicyRebuilder.toMap(PolicyStore.row(e.getValue())));
+		List<Map<String, Object>> flows = new ArrayList<Map<String, Object>>();
+		if (sketch != null)
+			for (TrafficSketch.Flow flow : sketch.top())
+				if (flows.size() < n)
+					flows.add(flow.toMap());
+		Map<String, Object> m = new LinkedHashMap<String, Object>();
+		m.put("flows", flows);
+		m.put("policies", policies);
+		send(ex, 200, "application/json; charset=utf-8", JSON.toJSONString(m, true) + "\n");
+	}
+}
@@ -0,0 +1,222 @@
+/******************************************
+ * Streaming reader of policy json files, *
+ * one policy at a time instead of the    *
+ * whole file as one String               *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.alibaba.fastjson.JSONException;
+import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.JSONReader;
+
+public class PolicyReader {
+	private final static int maxNodeAddrs = 16; // bound of the inferred node addresses
+
+	/**
+	 * Policy json files, plc_*.json
+	 */
+	public final static FileFilter ff = new FileFilter() {
+		@Override
+		public boolean accept(File file) {
+			String s = file.getName().toLowerCase();
+			if (file.isFile() && s.startsWith("plc_") && s.endsWith(".json")) {
+				return true;
+			}
+			return false;
+		}
+	};
+
+	/**
+	 * Receives the policies of a file in order
+	 */
+	public interface Handler {
+		void policy(JSONObject plc) throws Exception;
+	}
+
+	/**
+	 * Stream all policies of a file to the handler. An empty file holds no
+	 * policy, anything else which is not a json array is an error.
+	 *
+	 * @param f
+	 * @param handler
+	 * @return number of policies read
+	 * @throws Exception from the handler, or IOException / JSONException from the
+	 *                   file
+	 */
+	public static int read(File f, Handler handler) throws Exception {
+		if (f.length() == 0)
+			return 0;
+		int cnt = 0;
+		JSONReader reader = new JSONReader(new BufferedReader(
+				new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8), 65536));
+		try {
+			reader.startArray();
+			while (reader.hasNext()) {
+				handler.policy(reader.readObject(JSONObject.class));
+				cnt++;
+			}
+			reader.endArray();
+		} catch (JSONException e) {
+			throw new IOException(f.getName() + ": " + e.getMessage(), e);
+		} finally {
+			reader.close();
+		}
+		return cnt;
+	}
+
+	/**
+	 * Infer the addresses of the node a policy file was captured on. Every policy
+	 * of a node file has the node on one side, so the node addresses are a small
+	 * set of addresses covering all policies: pick the address found in most of
+	 * the policies not covered yet, until all are covered.
+	 *
+	 * @param f
+	 * @return
+	 * @throws Exception
+	 */
+	public static Set<String> nodeAddresses(File f) throws Exception {
+		final Map<String, List<Integer>> rowsByAddr = new HashMap<String, List<Integer>>();
+		int rows = read(f, new Handler() {
+			private int row = 0;
+
+			@Override
+			public void policy(JSONObject plc) {
+				for (String addr : new String[] { plc.getString("src_addr"), plc.getString("dst_addr") }) {
+					List<Integer> list = rowsByAddr.get(addr);
+					if (list == null) {
+						list = new ArrayList<Integer>();
+						rowsByAddr.put(addr, list);
+					}
+					list.add(row);
+				}
+				row++;
+			}
+		});
+		Set<String> addrs = new LinkedHashSet<String>();
+		boolean[] covered = new boolean[rows];
+		int left = rows;
+		while (left > 0 && addrs.size() < maxNodeAddrs) {
+			String best = null;
+			int bestCnt = 0;
+			for (Map.Entry<String, List<Integer>> e : rowsByAddr.entrySet()) {
+				int cnt = 0;
+				for (int i : e.getValue())
+					if (!covered[i])
+						cnt++;
+				if (cnt > bestCnt) {
+					best = e.getKey();
+					bestCnt = cnt;
+				}
+			}
+			addrs.add(best);
+			for (int i : rowsByAddr.remove(best)) {
+				if (!covered[i]) {
+					covered[i] = true;
+					left--;
+				}
+			}
+		}
+		return addrs;
+	}
+
+	/**
+	 * Normalize a policy into src_addr, src_port, proto, dst_addr, dst_port as
+	 * ints, proto as its IP protocol number
+	 *
+	 * @param plc
+	 * @param out five ints
+	 * @return false if the policy is not a valid IPv4 tcp or udp policy
+	 */
+	public static boolean parse(JSONObject plc, int[] out) {
+		String srcAddr = plc.getString("src_addr");
+		String dstAddr = plc.getString("dst_addr");
+		String proto = plc.getString("proto");
+		if (srcAddr == null || dstAddr == null || proto == null)
+			return false;
+		try {
+			out[0] = Util.ipToInt(srcAddr.trim());
+			out[1] = plc.getIntValue("src_port");
+			out[2] = Util.protoNum(proto.trim());
+			out[3] = Util.ipToInt(dstAddr.trim());
+			out[4] = plc.getIntValue("dst_port");
+		} catch (RuntimeException e) {
+			return false;
+		}
+		return out[2] > 0 && (out[1] & ~0xffff) == 0 && (out[4] & ~0xffff) == 0;
+	}
+
+	/**
+	 * High half of the packed key of a policy, packed keys compared unsigned,
+	 * high half first, order policies by src_addr, src_port, proto, dst_addr,
+	 * dst_port
+	 *
+	 * @param srcAddr
+	 * @param srcPort
+	 * @param proto
+	 * @return
+	 */
+	public static long packHi(int srcAddr, int srcPort, int proto) {
+		return (srcAddr & 0xffffffffL) << 32 | srcPort << 8 | proto;
+	}
+
+	/**
+	 * Low half of the packed key of a policy
+	 *
+	 * @param dstAddr
+	 * @param dstPort
+	 * @return
+	 */
+	public static long packLo(int dstAddr, int dstPort) {
+		return (dstAddr & 0xffffffffL) << 16 | dstPort;
+	}
+
+	/**
+	 * A packed key back as a policy in the format of the policy files
+	 *
+	 * @param hi
+	 * @param lo
+	 * @return
+	 */
+	public static Map<String, Object> unpack(long hi, long lo) {
+		Map<String, Object> plc = new LinkedHashMap<String, Object>();
+		plc.put("src_addr", Util.intToIp((int) (hi >>> 32)));
+		plc.put("src_port", Integer.toString((int) hi >>> 8 & 0xffff));
+		plc.put("proto", Util.protoName((int) hi & 0xff));
+		plc.put("dst_addr", Util.intToIp((int) (lo >>> 16)));
+		plc.put("dst_port", Integer.toString((int) lo & 0xffff));
+		return plc;
+	}
+
+	/**
+	 * Node serial number of a policy file, plc_[serial].json or
+	 * plc_[serial]_clean.json
+	 *
+	 * @param f
+	 * @return
+	 */
+	public static String serial(File f) {
+		String s = f.getName();
+		if (s.toLowerCase().endsWith(".json"))
+			s = s.substring(0, s.length() - 5);
+		if (s.startsWith("plc_"))
+			s = s.substring(4);
+		if (s.endsWith("_clean"))
+			s = s.substring(0, s.length() - 6);
+		return s;
+	}
+}
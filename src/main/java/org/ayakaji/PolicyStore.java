@@ -0,0 +1,425 @@
+/******************************************
+ * In-memory policy store of the          *
+ * rebuilder, with epoch stamped          *
+ * consistent snapshots that hold writers *
+ * up only while the epoch is switched    *
+ ******************************************/
+package org.ayakaji;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class PolicyStore {
+	// Length of an observation window in seconds, -Dprism.policy.window
+	private final static long windowMillis = Math.max(1, Integer.getInteger("prism.policy.window", 60)) * 1000L;
+
+	/**
+	 * Identity of a policy: client address, protocol, server address and port.
+	 * The client port is not part of it, it is either the fixed port of an
+	 * initial strategy or 0 once converged.
+	 */
+	public static class Key {
+		public final int srcAddr;
+		public final int proto;
+		public final int dstAddr;
+		public final int dstPort;
+
+		public Key(int srcAddr, int proto, int dstAddr, int dstPort) {
+			this.srcAddr = srcAddr;
+			this.proto = proto;
+			this.dstAddr = dstAddr;
+			this.dstPort = dstPort;
+		}
+
+		@Override
+		public int hashCode() {
+			int h = srcAddr * 0x9e3779b1 + dstAddr;
+			h = h * 0x9e3779b1 + (proto << 16 | dstPort);
+			return h ^ h >>> 16;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return srcAddr == k.srcAddr && dstAddr == k.dstAddr && dstPort == k.dstPort && proto == k.proto;
+		}
+	}
+
+	/**
+	 * A policy with the epochs of its changes, a policy visible in epoch e was
+	 * added in an epoch <= e, and it is converged in e if it converged in an epoch
+	 * <= e
+	 */
+	public final static class Policy extends Key {
+		public final int srcPort; // fixed client port of the initial strategy
+		public final long addedEpoch;
+		private volatile long convergedEpoch = 0; // 0 while still an initial strategy
+		private volatile int pid = 0; // owning process, 0 if not known
+		private volatile long firstSeen = 0; // capture times in milliseconds, 0 if never seen
+		private volatile long lastSeen = 0;
+		private volatile int windows = 0; // distinct observation windows the policy was seen in
+		private volatile String process = null;
+		private int[] ports = null; // other client ports seen while initial, capture thread only
+		private final LongAdder packets = new LongAdder(); // traffic of all its clients
+		private final LongAdder bytes = new LongAdder();
+		private volatile LatencyHistogram rtt = null; // SYN to SYN-ACK, once timed
+		private volatile LatencyHistogram rst = null; // SYN to RST, once rejected
+
+		private Policy(int srcAddr, int srcPort, int proto, int dstAddr, int dstPort, long epoch) {
+			super(srcAddr, proto, dstAddr, dstPort);
+			this.srcPort = srcPort;
+			this.addedEpoch = epoch;
+		}
+
+		public boolean isConverged() {
+			return convergedEpoch != 0;
+		}
+
+		/**
+		 * Tag the policy with the local process owning its socket. The pid is
+		 * written first, a reader which sees the process sees its pid.
+		 *
+		 * @param pid
+		 * @param process
+		 */
+		public void own(int pid, String process) {
+			this.pid = pid;
+			this.process = process;
+		}
+
+		public int pid() {
+			return pid;
+		}
+
+		public long firstSeen() {
+			return firstSeen;
+		}
+
+		public long lastSeen() {
+			return lastSeen;
+		}
+
+		public int windows() {
+			return windows;
+		}
+
+		public String process() {
+			return process;
+		}
+
+		public long packets() {
+			return packets.sum();
+		}
+
+		public long bytes() {
+			return bytes.sum();
+		}
+
+		public LatencyHistogram rtt() {
+			return rtt;
+		}
+
+		public LatencyHistogram rejects() {
+			return rst;
+		}
+
+		/**
+		 * Whether the policy was added or converged after one epoch, as seen by a
+		 * later one
+		 *
+		 * @param since
+		 * @param asOf
+		 * @return
+		 */
+		public boolean changedAfter(long since, long asOf) {
+			long c = convergedEpoch;
+			return addedEpoch > since || c > since && c <= asOf;
+		}
+
+		/**
+		 * Client port as of the given epoch
+		 *
+		 * @param epoch
+		 * @return
+		 */
+		public int srcPortAt(long epoch) {
+			long c = convergedEpoch;
+			return c != 0 && c <= epoch ? 0 : srcPort;
+		}
+	}
+
+	/**
+	 * One policy as seen by a snapshot, its counters and observations copied when
+	 * the snapshot is taken while the capture goes on
+	 */
+	public final static class Row {
+		public final Policy policy;
+		public final int srcPort;
+		public final String process; // read before the pid, see Policy.own
+		public final int pid;
+		public final long firstSeen;
+		public final long lastSeen;
+		public final int windows;
+		public final long packets;
+		public final long bytes;
+		public final LatencyHistogram rtt;
+		public final LatencyHistogram rst;
+
+		private Row(Policy policy, int srcPort) {
+			this.policy = policy;
+			this.srcPort = srcPort;
+			this.process = policy.process;
+			this.pid = policy.pid;
+			this.lastSeen = policy.lastSeen; // firstSeen is written before lastSeen
+			this.firstSeen = lastSeen == 0 ? 0 : policy.firstSeen;
+			this.windows = policy.windows;
+			this.packets = policy.packets.sum();
+			this.bytes = policy.bytes.sum();
+			LatencyHistogram h = policy.rtt;
+			this.rtt = h == null ? null : h.copy();
+			h = policy.rst;
+			this.rst = h == null ? null : h.copy();
+		}
+	}
+
+	/**
+	 * Internally consistent view of the store as of the end of one epoch
+	 */
+	public final static class Snapshot {
+		public final long epoch;
+		public final long from; // start of the epoch in milliseconds
+		public final long to; // end of the epoch in milliseconds
+		public final List<Row> rows;
+		public final int added; // policies added during this epoch
+		public final int converged; // policies converged during this epoch
+
+		private Snapshot(long epoch, long from, long to, List<Row> rows, int added, int converged) {
+			this.epoch = epoch;
+			this.from = from;
+			this.to = to;
+			this.rows = rows;
+			this.added = added;
+			this.converged = converged;
+		}
+	}
+
+	private final ConcurrentHashMap<Key, Policy> policies = new ConcurrentHashMap<Key, Policy>();
+
+	/**
+	 * Writers hold the read lock for the few instructions of an append or a
+	 * convergence, only the epoch switch takes the write lock. Once the switch is
+	 * done no write can be stamped with the closed epoch any more, so the closed
+	 * epoch can be read without any lock while writers carry on in the next one.
+	 * Counting and observations take no lock at all.
+	 */
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private volatile long epoch = 1;
+	private volatile long epochStart = System.currentTimeMillis();
+
+	public Policy get(int srcAddr, int proto, int dstAddr, int dstPort) {
+		return policies.get(new Key(srcAddr, proto, dstAddr, dstPort));
+	}
+
+	/**
+	 * Add an initial strategy
+	 *
+	 * @return the new policy, or null if the policy already exists
+	 */
+	public Policy append(int srcAddr, int srcPort, int proto, int dstAddr, int dstPort) {
+		return append(srcAddr, srcPort, proto, dstAddr, dstPort, false);
+	}
+
+	/**
+	 * Add a strategy, converged from the start if its client port is known to be
+	 * an ephemeral one
+	 *
+	 * @param converged
+	 * @return the new policy, or null if the policy already exists
+	 */
+	public Policy append(int srcAddr, int srcPort, int proto, int dstAddr, int dstPort, boolean converged) {
+		lock.readLock().lock();
+		try {
+			Policy p = new Policy(srcAddr, srcPort, proto, dstAddr, dstPort, epoch);
+			if (converged)
+				p.convergedEpoch = epoch;
+			return policies.putIfAbsent(p, p) == null ? p : null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Converge an initial strategy, its client port becomes 0
+	 *
+	 * @return whether the policy changed
+	 */
+	public boolean converge(Policy p) {
+		lock.readLock().lock();
+		try {
+			if (p.convergedEpoch != 0)
+				return false;
+			p.convergedEpoch = epoch;
+			p.ports = null;
+			return true;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Count a client port of an initial strategy. The distinct ports are kept in
+	 * a small exact set, only as many as needed to tell whether the limit is
+	 * reached. Called by the one capture thread only.
+	 *
+	 * @param p
+	 * @param srcPort
+	 * @param limit   distinct ports the caller converges at
+	 * @return distinct client ports seen so far, at most limit
+	 */
+	public int countPort(Policy p, int srcPort, int limit) {
+		int[] ports = p.ports;
+		int n = ports == null ? 1 : ports.length + 1;
+		if (srcPort == p.srcPort)
+			return n;
+		for (int i = 0; ports != null && i < ports.length; i++)
+			if (ports[i] == srcPort)
+				return n;
+		if (n + 1 < limit) {
+			ports = ports == null ? new int[1] : Arrays.copyOf(ports, n);
+			ports[n - 1] = srcPort;
+			p.ports = ports;
+		}
+		return n + 1;
+	}
+
+	/**
+	 * Record an observation of a policy at a capture time. A window is counted
+	 * when the policy is seen in a later window than it was last seen in, so a
+	 * burst counts once however many packets it has. Called by the one capture
+	 * thread only.
+	 *
+	 * @param p
+	 * @param ts capture time in milliseconds
+	 */
+	public void see(Policy p, long ts) {
+		long last = p.lastSeen;
+		if (last == 0) {
+			p.firstSeen = ts;
+			p.windows = 1;
+			p.lastSeen = ts;
+		} else if (ts > last) {
+			if (ts / windowMillis != last / windowMillis)
+				p.windows++;
+			p.lastSeen = ts;
+		}
+	}
+
+	/**
+	 * Count a packet of a policy, without any lock
+	 *
+	 * @param p
+	 * @param len bytes of the packet
+	 */
+	public void count(Policy p, int len) {
+		p.packets.increment();
+		p.bytes.add(len);
+	}
+
+	/**
+	 * Record the handshake latency of a policy, the time from the SYN of a client
+	 * to the SYN-ACK of the server. Called by the one capture thread only.
+	 *
+	 * @param p
+	 * @param micros
+	 */
+	public void rtt(Policy p, long micros) {
+		if (p.rtt == null)
+			p.rtt = new LatencyHistogram();
+		p.rtt.record(micros);
+	}
+
+	/**
+	 * Record a rejected connection of a policy, the time from the SYN of a client
+	 * to the RST of the server. Called by the one capture thread only.
+	 *
+	 * @param p
+	 * @param micros
+	 */
+	public void reject(Policy p, long micros) {
+		if (p.rst == null)
+			p.rst = new LatencyHistogram();
+		p.rst.record(micros);
+	}
+
+	/**
+	 * The policies as they are now, for queries which must not close an epoch.
+	 * The view is weakly consistent: it takes no lock and sees changes made
+	 * while it is iterated or not.
+	 *
+	 * @return
+	 */
+	public Collection<Policy> live() {
+		return Collections.unmodifiableCollection(policies.values());
+	}
+
+	/**
+	 * A policy as it is now, for queries which must not close an epoch
+	 *
+	 * @param p
+	 * @return
+	 */
+	public static Row row(Policy p) {
+		return new Row(p, p.isConverged() ? 0 : p.srcPort);
+	}
+
+	public int size() {
+		return policies.size();
+	}
+
+	public long epoch() {
+		return epoch;
+	}
+
+	/**
+	 * Close the current epoch and return the store as of its end. Writers are
+	 * held up only while the epoch number is switched.
+	 *
+	 * @return
+	 */
+	public Snapshot snapshot() {
+		long e;
+		long from;
+		long to;
+		lock.writeLock().lock();
+		try {
+			e = epoch;
+			from = epochStart;
+			to = System.currentTimeMillis();
+			epochStart = to;
+			epoch = e + 1;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		List<Row> rows = new ArrayList<Row>(policies.size());
+		int added = 0;
+		int converged = 0;
+		for (Policy p : policies.values()) {
+			if (p.addedEpoch > e)
+				continue; // added after the snapshot
+			rows.add(new Row(p, p.srcPortAt(e)));
+			if (p.addedEpoch == e)
+				added++;
+			if (p.convergedEpoch == e)
+				converged++;
+		}
+		return new Snapshot(e, from, to, rows, added, converged);
+	}
+}
@@ -0,0 +1,242 @@
+/******************************************
+ * Node side of the policy collector:     *
+ * pushes the policies added or converged *
+ * since the last acknowledged epoch      *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+public class PolicyUploader implements Runnable {
+	private final static Logger logger = Logger.getLogger(PolicyUploader.class.getName());
+	// Policies of a batch, -Dprism.upload.batch
+	private final static int batchRecords = Math.max(1,
+			Math.min(PolicyCollector.maxRecords, Integer.getInteger("prism.upload.batch", 8192)));
+	private final static int timeoutMillis = 30000; // to connect, and for an answer
+	private final static long retryMillis = 10000; // after a failed upload
+
+	private final String host;
+	private final int port;
+	private final String serial;
+	private final long session = System.currentTimeMillis(); // epochs of this run only
+	private final AtomicReference<PolicyStore.Snapshot> pending = new AtomicReference<PolicyStore.Snapshot>();
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private final ByteBuffer raw = ByteBuffer.allocate(batchRecords * PolicyCollector.RECORD);
+	private byte[] packed = new byte[raw.capacity() + 64];
+	private Socket socket = null;
+	private DataInputStream in = null;
+	private DataOutputStream out = null;
+	private volatile long acked = 0; // last epoch the collector has
+	private volatile boolean stopping = false;
+	private Thread thread = null;
+
+	/**
+	 * @param collector host:port of the collector, the default port if left out
+	 * @param serial    of this node
+	 */
+	public PolicyUploader(String collector, String serial) {
+		int colon = collector.lastIndexOf(':');
+		if (colon > 0 && Util.isInteger(collector.substring(colon + 1))) {
+			this.host = collector.substring(0, colon);
+			this.port = Integer.parseInt(collector.substring(colon + 1));
+		} else {
+			this.host = collector;
+			this.port = PolicyCollector.defaultPort;
+		}
+		this.serial = serial;
+	}
+
+	public void start() {
+		if (thread == null) {
+			thread = new Thread(this, "Uploader");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Hand over a snapshot of the store, a newer one replaces one not uploaded
+	 * yet, since it carries all its changes too
+	 *
+	 * @param snapshot
+	 */
+	public void offer(PolicyStore.Snapshot snapshot) {
+		pending.set(snapshot);
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Upload what is pending and stop
+	 *
+	 * @param millis to wait for the upload at most
+	 */
+	public void stop(long millis) {
+		stopping = true;
+		synchronized (this) {
+			notifyAll();
+		}
+		try {
+			if (thread != null)
+				thread.join(millis);
+		} catch (InterruptedException e) {
+			; // give up on it
+		}
+	}
+
+	@Override
+	public void run() {
+		logger.info("Uploading policies to " + host + ":" + port + ".");
+		while (true) {
+			PolicyStore.Snapshot snapshot = pending.getAndSet(null);
+			if (snapshot == null) {
+				if (stopping)
+					break;
+				synchronized (this) {
+					try {
+						wait(5000);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+				continue;
+			}
+			try {
+				upload(snapshot);
+			} catch (IOException e) {
+				logger.warning(e.getMessage());
+				logger.warning("Cannot upload epoch " + snapshot.epoch + ", retrying later.");
+				disconnect();
+				pending.compareAndSet(null, snapshot);
+				if (stopping)
+					break;
+				try {
+					Thread.sleep(retryMillis);
+				} catch (InterruptedException e1) {
+					break;
+				}
+			}
+		}
+		disconnect();
+	}
+
+	/**
+	 * Last epoch the collector has acknowledged, 0 right after a hello of a new
+	 * session
+	 *
+	 * @return
+	 */
+	long acked() {
+		return acked;
+	}
+
+	private void connect() throws IOException {
+		socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+		socket.setSoTimeout(timeoutMillis);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+		byte[] b = serial.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(1 + 2 + 8 + 2 + b.length);
+		out.writeByte(PolicyCollector.HELLO);
+		out.writeShort(PolicyCollector.VERSION);
+		out.writeLong(session);
+		out.writeShort(b.length);
+		out.write(b);
+		out.flush();
+		acked = expect(PolicyCollector.WELCOME);
+	}
+
+	private void disconnect() {
+		try {
+			if (socket != null)
+				socket.close();
+		} catch (IOException e) {
+			; // closed anyway
+		}
+		socket = null;
+	}
+
+	/**
+	 * Read an answer of the collector
+	 *
+	 * @param type expected
+	 * @return its sequence
+	 * @throws IOException
+	 */
+	private long expect(byte type) throws IOException {
+		int len = in.readInt();
+		byte t = in.readByte();
+		if (len != 9 || t != type)
+			throw new IOException("Unexpected answer of type " + t);
+		return in.readLong();
+	}
+
+	/**
+	 * Send the policies changed after the acknowledged epoch, in batches, the
+	 * last one of which is acknowledged
+	 *
+	 * @param snapshot
+	 * @throws IOException
+	 */
+	private void upload(PolicyStore.Snapshot snapshot) throws IOException {
+		if (socket == null)
+			connect();
+		long since = acked;
+		int sent = 0;
+		raw.clear();
+		for (PolicyStore.Row row : snapshot.rows) {
+			if (!row.policy.changedAfter(since, snapshot.epoch))
+				continue;
+			if (!raw.hasRemaining()) {
+				batch(snapshot.epoch, false);
+				raw.clear();
+			}
+			raw.putInt(row.policy.srcAddr).putShort((short) row.srcPort).put((byte) row.policy.proto)
+					.putInt(row.policy.dstAddr).putShort((short) row.policy.dstPort);
+			sent++;
+		}
+		batch(snapshot.epoch, true);
+		long seq = expect(PolicyCollector.ACK);
+		if (seq != snapshot.epoch)
+			throw new IOException("Acknowledged " + seq + " for epoch " + snapshot.epoch);
+		acked = seq;
+		logger.info("Uploaded epoch " + snapshot.epoch + ": " + sent + " policies changed since epoch " + since + ".");
+	}
+
+	private void batch(long seq, boolean last) throws IOException {
+		int rawLen = raw.position();
+		deflater.reset();
+		deflater.setInput(raw.array(), 0, rawLen);
+		deflater.finish();
+		int len = 0;
+		while (!deflater.finished()) {
+			if (len == packed.length)
+				packed = Arrays.copyOf(packed, len * 2);
+			len += deflater.deflate(packed, len, packed.length - len);
+		}
+		out.writeInt(1 + 8 + 1 + 4 + 4 + len);
+		out.writeByte(PolicyCollector.BATCH);
+		out.writeLong(seq);
+		out.writeByte(last ? 1 : 0);
+		out.writeInt(rawLen / PolicyCollector.RECORD);
+		out.writeInt(rawLen);
+		out.write(packed, 0, len);
+		if (last)
+			out.flush();
+	}
+}
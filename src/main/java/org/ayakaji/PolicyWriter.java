@@ -0,0 +1,123 @@
+/******************************************
+ * Streaming writer of policy json files, *
+ * in the pretty format of fastjson, into *
+ * a temporary file moved into place once *
+ * complete                               *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import com.alibaba.fastjson.JSON;
+
+public class PolicyWriter implements Closeable {
+	private final Path path;
+	private final Path tmp;
+	private Writer out; // null while suspended
+	private int cnt = 0;
+	private boolean done = false;
+
+	/**
+	 * Start writing a policy file, the file itself is replaced on commit only
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	public PolicyWriter(Path path) throws IOException {
+		this.path = path;
+		this.tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		this.out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp), StandardCharsets.UTF_8),
+				65536);
+	}
+
+	/**
+	 * The stream, opened again after the end of the temporary file if suspended
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	private Writer out() throws IOException {
+		if (out == null)
+			out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tmp, StandardOpenOption.APPEND),
+					StandardCharsets.UTF_8), 65536);
+		return out;
+	}
+
+	/**
+	 * Close the stream, giving back its descriptor and buffer, until the next
+	 * policy is written
+	 *
+	 * @throws IOException
+	 */
+	public void suspend() throws IOException {
+		if (out != null)
+			out.close();
+		out = null;
+	}
+
+	/**
+	 * Append one policy, its entries in the order of the map
+	 *
+	 * @param plc
+	 * @throws IOException
+	 */
+	public void write(Map<String, ?> plc) throws IOException {
+		Writer out = out();
+		out.write(cnt++ == 0 ? "[\n\t{" : ",\n\t{");
+		boolean first = true;
+		for (Map.Entry<String, ?> e : plc.entrySet()) {
+			out.write(first ? "\n\t\t" : ",\n\t\t");
+			out.write(JSON.toJSONString(e.getKey()));
+			out.write(':');
+			out.write(JSON.toJSONString(e.getValue()));
+			first = false;
+		}
+		out.write("\n\t}");
+	}
+
+	/**
+	 * @return number of policies written
+	 */
+	public int count() {
+		return cnt;
+	}
+
+	public Path path() {
+		return path;
+	}
+
+	/**
+	 * Finish the array and move the file into place atomically
+	 *
+	 * @throws IOException
+	 */
+	public void commit() throws IOException {
+		out().write(cnt == 0 ? "[]" : "\n]");
+		out.close();
+		out = null;
+		done = true;
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Abandon the file unless committed, the previous file is left as it was
+	 */
+	@Override
+	public void close() throws IOException {
+		if (done)
+			return;
+		done = true;
+		suspend();
+		Files.deleteIfExists(tmp);
+	}
+}
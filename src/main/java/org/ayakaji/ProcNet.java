@@ -0,0 +1,260 @@
+/******************************************
+ * Parser of the /proc/net socket tables, *
+ * in place over a reused buffer, the     *
+ * tables kept open between two reads     *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public class ProcNet {
+	// Root of the proc file system, -Dprism.proc.root, a copy of its net tables will do
+	public final static String procRoot = System.getProperty("prism.proc.root", "/proc");
+	private final static String[] tables = { "tcp", "tcp6", "udp", "udp6" };
+	public final static int TCP_ESTABLISHED = 0x01; // a connected UDP socket shows the same state
+	public final static int TCP_LISTEN = 0x0a;
+	// /proc prints every 32 bit word of an address as the host reads it
+	private final static boolean swap = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+	private final static byte[] hex = new byte[256]; // value of a hex digit, -1 for any other byte
+	static {
+		Arrays.fill(hex, (byte) -1);
+		for (int i = 0; i < 10; i++)
+			hex['0' + i] = (byte) i;
+		for (int i = 0; i < 6; i++)
+			hex['A' + i] = hex['a' + i] = (byte) (10 + i);
+	}
+
+	/**
+	 * Receives the sockets of the tables, IPv6 ones only if their addresses are ::
+	 * or map IPv4 addresses
+	 */
+	public interface Handler {
+		void socket(int proto, int localAddr, int localPort, int remoteAddr, int remotePort, int state, long inode);
+	}
+
+	private final Path root;
+	private final RandomAccessFile[] files = new RandomAccessFile[tables.length];
+	private final boolean[] missing = new boolean[tables.length]; // no IPv6 or no UDP here
+	private byte[] buf = new byte[65536]; // reused by every read
+	private final ByteBuffer chunk = ByteBuffer.allocateDirect(65536); // no native copy buffer per read
+
+	public ProcNet(Path root) {
+		this.root = root;
+	}
+
+	public ProcNet() {
+		this(Paths.get(procRoot));
+	}
+
+	/**
+	 * Whether the tables can be read at all, not on Linux they cannot
+	 *
+	 * @return
+	 */
+	public boolean available() {
+		return Files.isReadable(root.resolve("net").resolve("tcp"));
+	}
+
+	/**
+	 * Read a whole table into buf from its start, proc files have no size to go by
+	 * but regenerate on a seek to 0
+	 *
+	 * @param t
+	 * @return length read
+	 * @throws IOException
+	 */
+	private int fill(int t) throws IOException {
+		if (files[t] == null)
+			files[t] = new RandomAccessFile(root.resolve("net").resolve(tables[t]).toFile(), "r");
+		RandomAccessFile in = files[t];
+		try {
+			FileChannel ch = in.getChannel();
+			ch.position(0);
+			int len = 0;
+			while (true) {
+				chunk.clear();
+				int r = ch.read(chunk);
+				if (r < 0)
+					return len;
+				if (len + r > buf.length)
+					buf = Arrays.copyOf(buf, Math.max(len + r, buf.length * 2));
+				chunk.flip();
+				chunk.get(buf, len, r);
+				len += r;
+			}
+		} catch (IOException e) {
+			files[t] = null; // reopen next time
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param pos
+	 * @param n   hex digits
+	 * @return value of the digits, or -1 if they are not all hex
+	 */
+	private long hexAt(int pos, int n) {
+		long v = 0;
+		for (int i = pos; i < pos + n; i++) {
+			int d = hex[buf[i] & 0xff];
+			if (d < 0)
+				return -1;
+			v = v << 4 | d;
+		}
+		return v;
+	}
+
+	private int word(int pos) {
+		int v = (int) hexAt(pos, 8);
+		return swap ? Integer.reverseBytes(v) : v;
+	}
+
+	/**
+	 * IPv4 address of an IPv6 one in buf
+	 *
+	 * @param pos
+	 * @return the mapped address, 0 for ::, or -1 if it is neither
+	 */
+	private long v4(int pos) {
+		int w0 = word(pos), w1 = word(pos + 8), w2 = word(pos + 16), w3 = word(pos + 24);
+		if (w0 != 0 || w1 != 0 || w2 != 0xffff && (w2 != 0 || w3 != 0))
+			return -1;
+		return w3 & 0xffffffffL;
+	}
+
+	/**
+	 * Parse one table in place. The kernel prints the fields up to uid at fixed
+	 * widths: sl, local address:port, remote address:port, st, tx:rx queue,
+	 * tr:when, retrnsmt, then uid, timeout and inode, so only the line ends and
+	 * the last three fields are searched for.
+	 *
+	 * @param len     of the table in buf
+	 * @param proto
+	 * @param words   1 for IPv4, 4 for IPv6
+	 * @param handler
+	 * @return sockets handed over
+	 */
+	private int parse(int len, int proto, int words, Handler handler) {
+		int found = 0;
+		int pos = 0;
+		int alen = words * 8;
+		while (pos < len && buf[pos] != '\n') // the header
+			pos++;
+		while (++pos < len) {
+			int eol = pos;
+			while (eol < len && buf[eol] != '\n')
+				eol++;
+			int i = pos;
+			while (i < eol && buf[i] == ' ')
+				i++;
+			while (i < eol && buf[i] != ' ') // sl
+				i++;
+			while (i < eol && buf[i] == ' ')
+				i++;
+			int local = i;
+			int remote = local + alen + 6;
+			int st = remote + alen + 6;
+			i = st + 3 + 18 + 12 + 9; // past st, tx:rx queue, tr:when and retrnsmt
+			if (i < eol && buf[local + alen] == ':' && buf[remote + alen] == ':' && buf[st - 1] == ' ') {
+				for (int k = 0; k < 2; k++) { // uid and timeout
+					while (i < eol && buf[i] == ' ')
+						i++;
+					while (i < eol && buf[i] != ' ')
+						i++;
+				}
+				while (i < eol && buf[i] == ' ')
+					i++;
+				long inode = 0;
+				for (; i < eol && buf[i] >= '0' && buf[i] <= '9'; i++)
+					inode = inode * 10 + buf[i] - '0';
+				long localAddr = words == 1 ? word(local) & 0xffffffffL : v4(local);
+				long remoteAddr = words == 1 ? word(remote) & 0xffffffffL : v4(remote);
+				if (localAddr >= 0 && remoteAddr >= 0) {
+					handler.socket(proto, (int) localAddr, (int) hexAt(local + alen + 1, 4), (int) remoteAddr,
+							(int) hexAt(remote + alen + 1, 4), (int) hexAt(st, 2), inode);
+					found++;
+				}
+			}
+			pos = eol;
+		}
+		return found;
+	}
+
+	/**
+	 * Read the tcp, tcp6, udp and udp6 tables
+	 *
+	 * @param handler
+	 * @return sockets handed over
+	 * @throws IOException if not even the tcp table can be read
+	 */
+	public int read(Handler handler) throws IOException {
+		int found = 0;
+		for (int t = 0; t < tables.length; t++) {
+			if (missing[t])
+				continue;
+			int len;
+			try {
+				len = fill(t);
+			} catch (IOException e) {
+				if (t == 0)
+					throw e;
+				missing[t] = files[t] == null && !Files.exists(root.resolve("net").resolve(tables[t]));
+				continue;
+			}
+			found += parse(len, tables[t].startsWith("tcp") ? Util.PROTO_TCP : Util.PROTO_UDP,
+					tables[t].endsWith("6") ? 4 : 1, handler);
+		}
+		return found;
+	}
+
+	/**
+	 * Range the host picks the client ports of its connections from
+	 *
+	 * @return lowest and highest port, or null if it cannot be read
+	 */
+	public int[] localPortRange() {
+		try {
+			BufferedReader in = Files.newBufferedReader(root.resolve("sys/net/ipv4/ip_local_port_range"),
+					StandardCharsets.US_ASCII); // no size to read all bytes by
+			String line;
+			try {
+				line = in.readLine();
+			} finally {
+				in.close();
+			}
+			if (line == null)
+				return null;
+			String[] range = line.trim().split("\\s+");
+			int lo = Integer.parseInt(range[0]);
+			int hi = Integer.parseInt(range[range.length - 1]);
+			return lo > 0 && lo <= hi && hi <= 65535 ? new int[] { lo, hi } : null;
+		} catch (IOException e) {
+			return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public void close() {
+		for (int t = 0; t < files.length; t++) {
+			try {
+				if (files[t] != null)
+					files[t].close();
+			} catch (IOException e) {
+				continue;
+			}
+			files[t] = null;
+		}
+	}
+}
@@ -0,0 +1,289 @@
+/******************************************
+ * Index of socket inodes to the process  *
+ * owning them, from /proc/[pid]/fd, kept *
+ * up to date by scanning new processes   *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+public class ProcessIndex {
+	private final static Logger logger = Logger.getLogger(ProcessIndex.class.getName());
+	// Least milliseconds between two scans for new processes, -Dprism.proc.rescan, every
+	// tenth of them a miss rescans the known processes as well
+	private final static long rescanMillis = Long.getLong("prism.proc.rescan", 1000);
+	// Least milliseconds between two reads of the socket tables, -Dprism.proc.sockets
+	private final static long socketMillis = Long.getLong("prism.proc.sockets", 1000);
+
+	/**
+	 * A process with the sockets it held when last scanned
+	 */
+	public final static class Proc {
+		public final int pid;
+		public final String name;
+		private final long[] inodes;
+
+		private Proc(int pid, String name, long[] inodes) {
+			this.pid = pid;
+			this.name = name;
+			this.inodes = inodes;
+		}
+	}
+
+	private final Path root;
+	private final ProcNet procNet;
+	private final Map<Long, Integer> owners = new HashMap<Long, Integer>(); // socket inode to pid
+	private final Map<Integer, Proc> procs = new HashMap<Integer, Proc>();
+	private KeySet sockets = new KeySet(); // local address, port, proto / remote address, port, 0:0 for a listener
+	private long[] socketInodes = new long[0];
+	private long lastSockets = 0;
+	private long lastScan = 0;
+	private long lastFullScan = 0;
+	private int scanned = 0; // fd directories read, for the log
+
+	public ProcessIndex(Path root) {
+		this.root = root;
+		this.procNet = new ProcNet(root);
+	}
+
+	public ProcessIndex() {
+		this(Paths.get(ProcNet.procRoot));
+	}
+
+	/**
+	 * Read the name and the sockets of a process
+	 *
+	 * @param pid
+	 * @return null if it is gone
+	 */
+	private Proc read(int pid) {
+		Path dir = root.resolve(Integer.toString(pid));
+		String name;
+		try {
+			name = new String(Files.readAllBytes(dir.resolve("comm")), StandardCharsets.UTF_8).trim();
+		} catch (IOException e) {
+			return null;
+		}
+		long[] inodes = new long[8];
+		int n = 0;
+		scanned++;
+		try {
+			DirectoryStream<Path> fds = Files.newDirectoryStream(dir.resolve("fd"));
+			try {
+				for (Path fd : fds) {
+					String link;
+					try {
+						link = Files.readSymbolicLink(fd).toString();
+					} catch (IOException e) {
+						continue; // closed meanwhile
+					}
+					if (!link.startsWith("socket:[") || !link.endsWith("]"))
+						continue;
+					if (n == inodes.length)
+						inodes = Arrays.copyOf(inodes, n * 2);
+					try {
+						inodes[n] = Long.parseLong(link.substring(8, link.length() - 1));
+						n++;
+					} catch (NumberFormatException e) {
+						continue;
+					}
+				}
+			} finally {
+				fds.close();
+			}
+		} catch (IOException e) {
+			; // not ours to read, the process is known by its name only
+		}
+		return new Proc(pid, name, Arrays.copyOf(inodes, n));
+	}
+
+	private void index(Proc p) {
+		procs.put(p.pid, p);
+		for (long inode : p.inodes)
+			owners.put(inode, p.pid);
+	}
+
+	private void unindex(Proc p) {
+		for (long inode : p.inodes) {
+			Integer pid = owners.get(inode);
+			if (pid != null && pid == p.pid)
+				owners.remove(inode);
+		}
+	}
+
+	private static boolean isPid(String s) {
+		if (s.isEmpty() || s.length() > 9)
+			return false;
+		for (int i = 0; i < s.length(); i++)
+			if (s.charAt(i) < '0' || s.charAt(i) > '9')
+				return false;
+		return true;
+	}
+
+	/**
+	 * Scan /proc for processes: new ones are read, gone ones dropped, and with
+	 * known the others are read again
+	 *
+	 * @param known
+	 */
+	private void scan(boolean known) {
+		String[] names = root.toFile().list();
+		Set<Integer> alive = new HashSet<Integer>();
+		for (String s : names == null ? new String[0] : names) {
+			if (!isPid(s))
+				continue;
+			int pid = Integer.parseInt(s);
+			alive.add(pid);
+			Proc p = procs.get(pid);
+			if (p != null && !known)
+				continue;
+			if (p != null) {
+				unindex(p);
+				procs.remove(pid);
+			}
+			p = read(pid);
+			if (p != null)
+				index(p);
+		}
+		for (Iterator<Map.Entry<Integer, Proc>> it = procs.entrySet().iterator(); it.hasNext();) {
+			Proc p = it.next().getValue();
+			if (alive.contains(p.pid))
+				continue;
+			unindex(p);
+			it.remove();
+		}
+	}
+
+	/**
+	 * Owner of a socket. A miss scans the processes started since the last scan,
+	 * at most every -Dprism.proc.rescan milliseconds; if the socket is still not
+	 * found, and the last full scan is ten such intervals ago, the known
+	 * processes are read again, for sockets they opened after their scan.
+	 *
+	 * @param inode
+	 * @return null if not known
+	 */
+	public synchronized Proc owner(long inode) {
+		if (inode <= 0)
+			return null;
+		Integer pid = owners.get(inode);
+		long now = System.currentTimeMillis();
+		if (pid == null && now - lastScan >= rescanMillis) {
+			int before = scanned;
+			scan(false);
+			lastScan = now;
+			pid = owners.get(inode);
+			if (pid == null && now - lastFullScan >= rescanMillis * 10) {
+				scan(true);
+				lastFullScan = now;
+				pid = owners.get(inode);
+			}
+			logger.fine("Read " + (scanned - before) + " processes, " + procs.size() + " known, " + owners.size()
+					+ " sockets.");
+		}
+		return pid == null ? null : procs.get(pid);
+	}
+
+	/**
+	 * Read the socket tables into a new table of inodes
+	 *
+	 * @throws IOException
+	 */
+	private void readSockets() throws IOException {
+		final KeySet keys = new KeySet(Math.max(1024, sockets.size()));
+		final long[][] inodes = { new long[Math.max(1024, socketInodes.length)] };
+		procNet.read(new ProcNet.Handler() {
+			@Override
+			public void socket(int proto, int localAddr, int localPort, int remoteAddr, int remotePort, int state,
+					long inode) {
+				if (inode == 0)
+					return;
+				boolean listening = proto == Util.PROTO_TCP ? state == ProcNet.TCP_LISTEN
+						: remoteAddr == 0 && remotePort == 0;
+				if (!listening && (remoteAddr == 0 || remotePort == 0))
+					return; // neither a listener nor a session
+				int id = keys.add(PolicyReader.packHi(localAddr, localPort, proto),
+						listening ? 0 : PolicyReader.packLo(remoteAddr, remotePort));
+				if (id == inodes[0].length)
+					inodes[0] = Arrays.copyOf(inodes[0], id * 2);
+				if (inodes[0][id] == 0) // the first socket of a key, as listed
+					inodes[0][id] = inode;
+			}
+		});
+		sockets = keys;
+		socketInodes = inodes[0];
+	}
+
+	private long socket(int proto, int localAddr, int localPort, long remote) {
+		int id = sockets.find(PolicyReader.packHi(localAddr, localPort, proto), remote);
+		return id < 0 ? 0 : socketInodes[id];
+	}
+
+	/**
+	 * Look a session up in the table of sockets: an established socket of the
+	 * two ends, else the listener of one of them
+	 */
+	private long lookup(int proto, int aAddr, int aPort, int bAddr, int bPort) {
+		long inode = socket(proto, aAddr, aPort, PolicyReader.packLo(bAddr, bPort));
+		if (inode == 0)
+			inode = socket(proto, bAddr, bPort, PolicyReader.packLo(aAddr, aPort));
+		if (inode == 0)
+			inode = socket(proto, aAddr, aPort, 0);
+		if (inode == 0)
+			inode = socket(proto, 0, aPort, 0);
+		if (inode == 0)
+			inode = socket(proto, bAddr, bPort, 0);
+		if (inode == 0)
+			inode = socket(proto, 0, bPort, 0);
+		return inode;
+	}
+
+	/**
+	 * Inode of the socket of a session seen on the wire, from either end: an
+	 * established socket of the two ends, else the listener of one of them. The
+	 * socket tables are read again on a miss, at most every
+	 * -Dprism.proc.sockets milliseconds, so that a flow costs a lookup only.
+	 *
+	 * @param proto
+	 * @param aAddr
+	 * @param aPort
+	 * @param bAddr
+	 * @param bPort
+	 * @return 0 if none
+	 */
+	public synchronized long inode(int proto, int aAddr, int aPort, int bAddr, int bPort) {
+		long inode = lookup(proto, aAddr, aPort, bAddr, bPort);
+		long now = System.currentTimeMillis();
+		if (inode != 0 || now - lastSockets < socketMillis)
+			return inode;
+		lastSockets = now;
+		try {
+			readSockets();
+		} catch (IOException e) {
+			logger.warning(e.getMessage());
+			return 0;
+		}
+		return lookup(proto, aAddr, aPort, bAddr, bPort);
+	}
+
+	/**
+	 * Whether processes can be read at all
+	 *
+	 * @return
+	 */
+	public boolean available() {
+		return procNet.available();
+	}
+}
@@ -0,0 +1,171 @@
+/******************************************
+ * Capture free source of sessions: polls *
+ * the established sockets of /proc/net   *
+ * and tells client from server by the    *
+ * listener table                         *
+ ******************************************/
+package org.ayakaji;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+public class SocketPoller implements Runnable {
+	private final static Logger logger = Logger.getLogger(SocketPoller.class.getName());
+	// Milliseconds between two polls, -Dprism.poll.millis
+	private final static int pollMillis = Math.max(10, Integer.getInteger("prism.poll.millis", 100));
+	// Polls between two hand overs of a socket still open, -Dprism.poll.refresh, so
+	// that a long lived session is seen in every window of its policy
+	private final static int refreshPolls = Math.max(1, Integer.getInteger("prism.poll.refresh", 300));
+
+	/**
+	 * Receives every new session, the client side first, with the inode of its
+	 * local socket, and again every -Dprism.poll.refresh polls while it is open
+	 */
+	public interface Handler {
+		void session(int srcAddr, int srcPort, int proto, int dstAddr, int dstPort, long inode);
+	}
+
+	/**
+	 * Socket inodes with the last poll which saw them, open addressing over
+	 * inode and poll pairs side by side, one probe per socket. Sockets gone are
+	 * dropped when the table is rehashed.
+	 */
+	private final static class InodeTable {
+		private long[] slots = new long[2048]; // inode, poll; inode 0 marks a free slot
+		private int used = 0;
+
+		/**
+		 * @param inode
+		 * @param poll
+		 * @return the poll which saw the inode before this one, 0 if none
+		 */
+		long see(long inode, long poll) {
+			int m = (slots.length >> 1) - 1;
+			long h = inode * 0x9e3779b97f4a7c15L;
+			int i = (int) (h ^ h >>> 32) & m;
+			while (slots[i << 1] != 0 && slots[i << 1] != inode)
+				i = i + 1 & m;
+			long last = slots[i << 1 | 1];
+			slots[i << 1 | 1] = poll;
+			if (slots[i << 1] == 0) {
+				slots[i << 1] = inode;
+				if (++used * 4 > slots.length) // half full
+					rehash(poll);
+			}
+			return last;
+		}
+
+		/**
+		 * Keep the sockets of this and the last poll, a quarter full at most
+		 *
+		 * @param poll
+		 */
+		private void rehash(long poll) {
+			long[] old = slots;
+			int live = 0;
+			for (int i = 0; i < old.length; i += 2)
+				if (old[i] != 0 && old[i + 1] >= poll - 1)
+					live++;
+			int cap = old.length >> 1;
+			while (live * 4 > cap)
+				cap <<= 1;
+			slots = new long[cap << 1];
+			used = 0;
+			for (int i = 0; i < old.length; i += 2)
+				if (old[i] != 0 && old[i + 1] >= poll - 1)
+					see(old[i], old[i + 1]);
+		}
+	}
+
+	private final ProcNet procNet;
+	private final ListenerMonitor monitor;
+	private final Handler handler;
+	private final InodeTable inodes = new InodeTable();
+	private long polls = 1; // the first poll is 2, so that 0 is before any poll
+	private ListenerMonitor.Listeners listeners = null; // as of this poll
+	private int sessions = 0; // new sessions of this poll
+	private volatile boolean running = true;
+
+	/**
+	 * A socket of a poll: only one not seen by the last poll, or due for a
+	 * refresh, is looked at, the rest costs a hash lookup. Refreshes are spread
+	 * over the polls by inode.
+	 */
+	private final ProcNet.Handler sampler = new ProcNet.Handler() {
+		@Override
+		public void socket(int proto, int localAddr, int localPort, int remoteAddr, int remotePort, int state,
+				long inode) {
+			if (state != ProcNet.TCP_ESTABLISHED || inode == 0 || remoteAddr == 0 || remotePort == 0)
+				return;
+			if (inodes.see(inode, polls) < polls - 1)
+				sessions++;
+			else if ((inode + polls) % refreshPolls != 0)
+				return; // seen by the last poll, or twice in this one
+			if (listeners.isListening(proto, localAddr, localPort))
+				handler.session(remoteAddr, remotePort, proto, localAddr, localPort, inode); // accepted here
+			else
+				handler.session(localAddr, localPort, proto, remoteAddr, remotePort, inode); // connected from here
+		}
+	};
+
+	/**
+	 * @param procNet tables to poll
+	 * @param monitor listener table to classify the sessions with, refreshed by
+	 *                its own thread
+	 * @param handler
+	 */
+	public SocketPoller(ProcNet procNet, ListenerMonitor monitor, Handler handler) {
+		this.procNet = procNet;
+		this.monitor = monitor;
+		this.handler = handler;
+	}
+
+	/**
+	 * Read the tables once and hand over the sessions not seen by the last poll,
+	 * and those due for a refresh
+	 *
+	 * @return new sessions
+	 * @throws IOException
+	 */
+	public int poll() throws IOException {
+		listeners = monitor.listeners();
+		sessions = 0;
+		polls++;
+		procNet.read(sampler);
+		return sessions;
+	}
+
+	@Override
+	public void run() {
+		logger.info("Polling sockets every " + pollMillis + "ms.");
+		long count = 0;
+		long total = 0;
+		long deadline = System.currentTimeMillis();
+		while (running) {
+			try {
+				total += poll();
+				count++;
+			} catch (IOException e) {
+				logger.warning(e.getMessage());
+				logger.warning("Cannot poll sockets!");
+			}
+			deadline += pollMillis;
+			long wait = deadline - System.currentTimeMillis();
+			if (wait < 0) { // fell behind, do not try to catch up
+				deadline -= wait;
+				wait = 0;
+			}
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		procNet.close();
+		logger.info("Stopped polling after " + count + " polls, " + total + " sessions.");
+	}
+
+	public void stop() {
+		running = false;
+	}
+}
@@ -0,0 +1,340 @@
+/*************************************
+ * Self-profiling of the capture     *
+ * pipeline: CPU time and allocated  *
+ * bytes per stage, per packet       *
+ ************************************/
+package org.ayakaji;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.joda.time.DateTime;
+
+import com.alibaba.fastjson.JSONObject;
+
+public final class StageProfiler implements Runnable {
+	private final static Logger logger = Logger.getLogger(StageProfiler.class.getName());
+
+	/**
+	 * Pipeline stages. A stage either owns a thread (registered with
+	 * {@link #register(int)}), or runs inline on some other thread between
+	 * {@link #enter(int)} and {@link #exit(int)}. Inline sections are exclusive:
+	 * entering the prober from inside the analysis pauses the analysis clock. On
+	 * the packet path only one packet in -Dprism.prof.sample (default 16) is
+	 * measured and its figures are scaled up, the clocks are not free.
+	 */
+	public final static int CAPTURE = 0;
+	public final static int ANALYSIS = 1;
+	public final static int PROBER = 2;
+	public final static int DUMP = 3;
+	private final static String[] stageNames = { "capture", "analysis", "prober", "dump" };
+	private final static int maxDepth = 8; // nesting depth of inline sections
+	private final static int maxHistory = 1440; // one day of one-minute intervals
+
+	private final static int sampleRate = Math.max(1, Integer.getInteger("prism.prof.sample", 16));
+
+	private final static java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+	private final static com.sun.management.ThreadMXBean tmx;
+	private final static boolean cpuSupported;
+	private final static boolean allocSupported;
+	static {
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			tmx = (com.sun.management.ThreadMXBean) bean;
+			if (tmx.isThreadAllocatedMemorySupported() && !tmx.isThreadAllocatedMemoryEnabled())
+				tmx.setThreadAllocatedMemoryEnabled(true);
+			allocSupported = tmx.isThreadAllocatedMemorySupported();
+		} else {
+			tmx = null;
+			allocSupported = false;
+		}
+		if (bean.isThreadCpuTimeSupported() && !bean.isThreadCpuTimeEnabled())
+			bean.setThreadCpuTimeEnabled(true);
+		cpuSupported = bean.isThreadCpuTimeSupported();
+	}
+
+	/**
+	 * CPU cost of reading both clocks once, which every measured section pays and
+	 * must not be charged for
+	 */
+	private final static long clockCost = calibrate();
+
+	/**
+	 * Inline section totals, charged on exit, and the share of them that ran on a
+	 * registered thread (which must be subtracted from that thread's own stage)
+	 */
+	private final static AtomicLongArray sectionCpu = new AtomicLongArray(stageNames.length);
+	private final static AtomicLongArray sectionAlloc = new AtomicLongArray(stageNames.length);
+	private final static AtomicLongArray nestedCpu = new AtomicLongArray(stageNames.length);
+	private final static AtomicLongArray nestedAlloc = new AtomicLongArray(stageNames.length);
+	private final static LongAdder packets = new LongAdder();
+
+	/**
+	 * Registered stage threads by thread id
+	 */
+	private final static Map<Long, Section> threads = new ConcurrentHashMap<Long, Section>();
+
+	private final static ThreadLocal<Section> sections = new ThreadLocal<Section>() {
+		@Override
+		protected Section initialValue() {
+			return new Section();
+		}
+	};
+
+	private static StageProfiler profiler = null;
+
+	/**
+	 * Per-thread clock of the inline section currently running
+	 */
+	private final static class Section {
+		private int owner = -1; // stage of a registered thread, -1 otherwise
+		private final int[] stack = new int[maxDepth];
+		private int depth = 0;
+		private long cpuMark = 0;
+		private long allocMark = 0;
+		private int weight = 1; // scale of the current packet, 0 if not sampled
+		private int countdown = 0; // packets until the next sampled one
+		private volatile long lastCpu = 0; // thread totals seen by the thread itself,
+		private volatile long lastAlloc = 0; // kept for when the thread has died
+	}
+
+	private final long interval; // report interval in milliseconds
+	private final String serNum;
+	private final List<LinkedHashMap<String, Object>> history = new ArrayList<LinkedHashMap<String, Object>>();
+	private final long[] lastCpu = new long[stageNames.length];
+	private final long[] lastAlloc = new long[stageNames.length];
+	private long lastPackets = 0;
+	private long lastMillis = System.currentTimeMillis();
+
+	private StageProfiler(long interval, String serNum) {
+		this.interval = interval;
+		this.serNum = serNum;
+	}
+
+	private static long cpuNow() {
+		return cpuSupported ? bean.getCurrentThreadCpuTime() : 0;
+	}
+
+	private static long allocNow() {
+		return allocSupported ? tmx.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+	}
+
+	private static long calibrate() {
+		int rounds = 10000;
+		long sink = 0;
+		long begin = cpuNow();
+		for (int i = 0; i < rounds; i++)
+			sink += cpuNow() + allocNow();
+		long cost = (cpuNow() - begin) / rounds;
+		return sink == 0 ? 0 : cost;
+	}
+
+	/**
+	 * Declare the calling thread as the dedicated thread of a stage
+	 *
+	 * @param stage
+	 */
+	public static void register(int stage) {
+		Section s = sections.get();
+		s.owner = stage;
+		threads.put(Thread.currentThread().getId(), s);
+	}
+
+	/**
+	 * Count one captured packet, and decide whether the sections run for it on
+	 * the calling thread are measured
+	 */
+	public static void packet() {
+		packets.increment();
+		Section s = sections.get();
+		if (s.depth > 0)
+			return;
+		if (--s.countdown > 0) {
+			s.weight = 0;
+			return;
+		}
+		s.countdown = sampleRate;
+		s.weight = sampleRate;
+		if (s.owner >= 0) {
+			s.lastCpu = cpuNow();
+			s.lastAlloc = allocNow();
+		}
+	}
+
+	/**
+	 * Start an inline section of the given stage on the calling thread
+	 *
+	 * @param stage
+	 */
+	public static void enter(int stage) {
+		Section s = sections.get();
+		if (s.weight == 0)
+			return;
+		long cpu = cpuNow();
+		long alloc = allocNow();
+		if (s.depth > 0)
+			charge(s, s.stack[s.depth - 1], cpu, alloc);
+		if (s.depth < maxDepth)
+			s.stack[s.depth] = stage;
+		s.depth++;
+		s.cpuMark = cpu;
+		s.allocMark = alloc;
+	}
+
+	/**
+	 * Leave the inline section started by the matching {@link #enter(int)}
+	 *
+	 * @param stage
+	 */
+	public static void exit(int stage) {
+		Section s = sections.get();
+		if (s.weight == 0 || s.depth == 0)
+			return;
+		long cpu = cpuNow();
+		long alloc = allocNow();
+		charge(s, s.depth <= maxDepth ? s.stack[s.depth - 1] : stage, cpu, alloc);
+		s.depth--;
+		s.cpuMark = cpu;
+		s.allocMark = alloc;
+	}
+
+	private static void charge(Section s, int stage, long cpu, long alloc) {
+		long dCpu = Math.max(0, cpu - s.cpuMark - clockCost) * s.weight;
+		long dAlloc = (alloc - s.allocMark) * s.weight;
+		sectionCpu.addAndGet(stage, dCpu);
+		sectionAlloc.addAndGet(stage, dAlloc);
+		if (s.owner >= 0 && s.owner != stage) {
+			nestedCpu.addAndGet(s.owner, dCpu);
+			nestedAlloc.addAndGet(s.owner, dAlloc);
+		}
+	}
+
+	/**
+	 * Cumulative CPU nanoseconds and allocated bytes of every stage
+	 *
+	 * @param cpu
+	 * @param alloc
+	 */
+	private static void totals(long[] cpu, long[] alloc) {
+		for (Map.Entry<Long, Section> e : threads.entrySet()) {
+			long id = e.getKey();
+			Section s = e.getValue();
+			long c = cpuSupported ? bean.getThreadCpuTime(id) : -1;
+			long a = allocSupported ? tmx.getThreadAllocatedBytes(id) : -1;
+			cpu[s.owner] += c >= 0 ? c : s.lastCpu;
+			alloc[s.owner] += a >= 0 ? a : s.lastAlloc;
+		}
+		for (int i = 0; i < stageNames.length; i++) {
+			cpu[i] += sectionCpu.get(i) - nestedCpu.get(i);
+			alloc[i] += sectionAlloc.get(i) - nestedAlloc.get(i);
+		}
+	}
+
+	/**
+	 * Log the figures of the elapsed interval and rewrite the report file
+	 */
+	public synchronized void report() {
+		long[] cpu = new long[stageNames.length];
+		long[] alloc = new long[stageNames.length];
+		totals(cpu, alloc);
+		long pkts = packets.sum();
+		long now = System.currentTimeMillis();
+		long dPkts = pkts - lastPackets;
+		LinkedHashMap<String, Object> record = new LinkedHashMap<String, Object>();
+		record.put("from", new DateTime(lastMillis).toString("yyyy/MM/dd HH:mm:ss"));
+		record.put("to", new DateTime(now).toString("yyyy/MM/dd HH:mm:ss"));
+		record.put("packets", dPkts);
+		StringBuilder sb = new StringBuilder("Profile of last " + (now - lastMillis) / 1000 + "s, " + dPkts + " packets:");
+		for (int i = 0; i < stageNames.length; i++) {
+			long dCpu = Math.max(0, cpu[i] - lastCpu[i]);
+			long dAlloc = Math.max(0, alloc[i] - lastAlloc[i]);
+			LinkedHashMap<String, Object> stage = new LinkedHashMap<String, Object>();
+			stage.put("cpu_ns", dCpu);
+			stage.put("alloc_bytes", dAlloc);
+			stage.put("cpu_ns_per_pkt", dPkts > 0 ? dCpu / dPkts : 0);
+			stage.put("bytes_per_pkt", dPkts > 0 ? dAlloc / dPkts : 0);
+			record.put(stageNames[i], stage);
+			sb.append(" ").append(stageNames[i]).append("=").append(dCpu / 1000000).append("ms/")
+					.append(dAlloc >> 10).append("kB");
+			if (dPkts > 0)
+				sb.append("(").append(dCpu / dPkts).append("ns,").append(dAlloc / dPkts).append("B/pkt)");
+			lastCpu[i] = cpu[i];
+			lastAlloc[i] = alloc[i];
+		}
+		lastPackets = pkts;
+		lastMillis = now;
+		logger.info(sb.toString());
+		history.add(record);
+		if (history.size() > maxHistory)
+			history.remove(0);
+		write();
+	}
+
+	/**
+	 * Write the report as plc_[serial]_prof.json next to the policy file, through
+	 * a temporary file so a reader never sees a half written report
+	 */
+	private void write() {
+		String appPath = System.getProperty("user.dir");
+		Path dmpPath = Paths.get(appPath, "plc_" + serNum + "_prof.json");
+		Path tmpPath = Paths.get(appPath, "plc_" + serNum + "_prof.json.tmp");
+		String json = JSONObject.toJSONString(history, true);
+		try {
+			Files.write(tmpPath, json.getBytes(StandardCharsets.UTF_8));
+			Files.move(tmpPath, dmpPath, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			logger.warning(e.getMessage());
+			logger.warning("Cannot dump profile report!");
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			report();
+		}
+	}
+
+	/**
+	 * Start the reporting thread, the interval in seconds is taken from
+	 * -Dprism.prof.seconds (default 60)
+	 */
+	public static synchronized void start() {
+		if (profiler != null)
+			return;
+		if (!cpuSupported)
+			logger.warning("Thread CPU time is not supported by this JVM!");
+		if (!allocSupported)
+			logger.warning("Thread allocation accounting is not supported by this JVM!");
+		profiler = new StageProfiler(Integer.getInteger("prism.prof.seconds", 60) * 1000L, PortSniffer.getSerNum());
+		Thread thread = new Thread(profiler, "Profiler");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Report the figures since the last interval immediately, e.g. at shutdown
+	 */
+	public static void flush() {
+		StageProfiler p = profiler;
+		if (p != null)
+			p.report();
+	}
+}
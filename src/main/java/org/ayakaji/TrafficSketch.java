@@ -0,0 +1,226 @@
+/******************************************
+ * Bounded traffic accounting of flows: a *
+ * count-min sketch of their packets and  *
+ * bytes, the heaviest ones kept aside    *
+ ******************************************/
+package org.ayakaji;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+public class TrafficSketch {
+	private final static int depth = 4; // rows of the sketch
+	// Counters per row, rounded up to a power of 2, -Dprism.sketch.width
+	private final static int defaultWidth = Integer.getInteger("prism.sketch.width", 16384);
+	// Heaviest flows kept, -Dprism.sketch.top
+	private final static int defaultTop = Integer.getInteger("prism.sketch.top", 64);
+	private final static long publishMillis = 1000; // the top flows are handed out at most a second late
+
+	/**
+	 * A heavy flow with its estimated volume, the client side first. The sketch
+	 * overestimates only, by hash collisions.
+	 */
+	public final static class Flow {
+		public final long hi; // packed as by PolicyReader
+		public final long lo;
+		public final long packets;
+		public final long bytes;
+
+		private Flow(long hi, long lo, long packets, long bytes) {
+			this.hi = hi;
+			this.lo = lo;
+			this.packets = packets;
+			this.bytes = bytes;
+		}
+
+		public Map<String, Object> toMap() {
+			Map<String, Object> map = PolicyReader.unpack(hi, lo);
+			map.put("packets", Long.toString(packets));
+			map.put("bytes", Long.toString(bytes));
+			return map;
+		}
+	}
+
+	private final int mask;
+	private final long[] cells; // depth rows of width packet and byte counter pairs, a pair shares a cache line
+	private final int[] index = new int[depth]; // cells of the flow being added
+	private final long[] topHi; // the heaviest flows, by estimated bytes
+	private final long[] topLo;
+	private final long[] topPackets;
+	private final long[] topBytes;
+	private int topCount = 0;
+	private int lightest = 0; // slot of the lightest heavy flow
+	private long lastPublish = 0;
+	private volatile List<Flow> published = Collections.emptyList();
+	private volatile long publishes = 0; // copies handed out, written by the capture thread only
+	private volatile boolean requested = false; // a reader waits for a fresh copy
+
+	/**
+	 * @param width counters per row
+	 * @param top   heavy flows kept
+	 */
+	public TrafficSketch(int width, int top) {
+		int w = 64;
+		while (w < width && w < 1 << 24)
+			w <<= 1;
+		mask = w - 1;
+		cells = new long[depth * w * 2];
+		topHi = new long[Math.max(1, top)];
+		topLo = new long[topHi.length];
+		topPackets = new long[topHi.length];
+		topBytes = new long[topHi.length];
+	}
+
+	public TrafficSketch() {
+		this(defaultWidth, defaultTop);
+	}
+
+	/**
+	 * Whether the sketch is wanted at all
+	 *
+	 * @return
+	 */
+	public static boolean enabled() {
+		return defaultTop > 0;
+	}
+
+	/**
+	 * Conservative update: every cell of the flow is raised to its estimate plus
+	 * the increment at most, which keeps the overestimate of light flows down
+	 *
+	 * @param off 0 for the packets, 1 for the bytes
+	 * @param inc
+	 * @return the new estimate
+	 */
+	private long raise(int off, long inc) {
+		long min = Long.MAX_VALUE;
+		for (int r = 0; r < depth; r++)
+			min = Math.min(min, cells[index[r] + off]);
+		long est = min + inc;
+		for (int r = 0; r < depth; r++)
+			if (cells[index[r] + off] < est)
+				cells[index[r] + off] = est;
+		return est;
+	}
+
+	/**
+	 * Count a packet of a flow. Called by the one capture thread only, the top
+	 * flows are handed out through a published copy.
+	 *
+	 * @param hi  client address, port and proto, packed by PolicyReader
+	 * @param lo  server address and port, packed by PolicyReader
+	 * @param len bytes of the packet
+	 * @param ts  capture time in milliseconds
+	 */
+	public void add(long hi, long lo, int len, long ts) {
+		long h = (hi * 0x9e3779b97f4a7c15L ^ lo) * 0xc2b2ae3d27d4eb4fL;
+		int h1 = (int) (h >>> 32);
+		int h2 = (int) h | 1;
+		for (int r = 0; r < depth; r++)
+			index[r] = (r * (mask + 1) + (h1 + r * h2 & mask)) << 1;
+		long p = raise(0, 1);
+		long b = raise(1, len);
+		if (topCount == topHi.length && b < topBytes[lightest]) { // estimates only grow, so it is not a heavy one
+			publish(ts, requested);
+			return;
+		}
+		int slot = -1;
+		for (int i = 0; i < topCount; i++) {
+			if (topHi[i] == hi && topLo[i] == lo) {
+				slot = i;
+				break;
+			}
+		}
+		if (slot < 0) {
+			if (topCount < topHi.length) {
+				slot = topCount++;
+			} else if (b > topBytes[lightest]) {
+				slot = lightest; // the lightest heavy flow makes room
+			} else {
+				publish(ts, requested);
+				return;
+			}
+			topHi[slot] = hi;
+			topLo[slot] = lo;
+		}
+		topPackets[slot] = p;
+		topBytes[slot] = b;
+		if (slot == lightest) { // grew, another one may be the lightest now
+			for (int i = 0; i < topCount; i++)
+				if (topBytes[i] < topBytes[lightest])
+					lightest = i;
+		} else if (b < topBytes[lightest]) { // new while the top is not full yet
+			lightest = slot;
+		}
+		publish(ts, requested);
+	}
+
+	/**
+	 * Hand out a copy of the top flows, ordered by bytes. Called by the capture
+	 * thread only, forced on a request and once more when the capture ends.
+	 *
+	 * @param ts
+	 * @param force even if the last copy is recent
+	 */
+	public void publish(long ts, boolean force) {
+		if (!force && ts - lastPublish < publishMillis)
+			return;
+		lastPublish = ts;
+		requested = false;
+		List<Flow> flows = new ArrayList<Flow>(topCount);
+		for (int i = 0; i < topCount; i++)
+			flows.add(new Flow(topHi[i], topLo[i], topPackets[i], topBytes[i]));
+		Collections.sort(flows, new Comparator<Flow>() {
+			@Override
+			public int compare(Flow a, Flow b) {
+				return Long.compare(b.bytes, a.bytes);
+			}
+		});
+		published = Collections.unmodifiableList(flows);
+		publishes++;
+	}
+
+	/**
+	 * Ask the capture thread for a fresh copy, handed out with its next packet or
+	 * when the capture ends, and wait for it, e.g. before a dump
+	 *
+	 * @param millis longest wait, the last copy stays if no packet comes
+	 * @return whether a fresh copy was handed out
+	 */
+	public boolean flush(long millis) {
+		long before = publishes;
+		requested = true;
+		long deadline = System.currentTimeMillis() + millis;
+		try {
+			while (publishes == before && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return publishes != before;
+	}
+
+	/**
+	 * The heaviest flows as of the last copy handed out, lock free
+	 *
+	 * @return
+	 */
+	public List<Flow> top() {
+		return published;
+	}
+
+	/**
+	 * The top flows in the format of the policy json file
+	 *
+	 * @return
+	 */
+	public List<Map<String, Object>> toList() {
+		List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+		for (Flow f : published)
+			list.add(f.toMap());
+		return list;
+	}
+}
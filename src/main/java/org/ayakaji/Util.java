@@ -33,6 +33,8 @@ public class Util {
 	public static List<LinkedHashMap<String, String>> listeners = new ArrayList<LinkedHashMap<String, String>>();
 	public static List<String> localAddresses = new ArrayList<String>();
 	private static boolean IPv6_Support = false;
+	public final static int PROTO_TCP = 6;
+	public final static int PROTO_UDP = 17;
 
 	/**
 	 * Use Sigar to get all listeners. For a listener that listens to any
@@ -154,6 +156,65 @@ public class Util {
 		}
 	}
 	
+	/**
+	 * Convert a dotted IPv4 address into its integer form. Every int is a valid
+	 * address, so invalid input throws instead of returning a marker
+	 * 
+	 * @param ip
+	 * @return
+	 */
+	public static int ipToInt(String ip) {
+		int addr = 0;
+		int octet = 0;
+		int dots = 0;
+		int digits = 0;
+		for (int i = 0; i < ip.length(); i++) {
+			char c = ip.charAt(i);
+			if (c >= '0' && c <= '9') {
+				octet = octet * 10 + (c - '0');
+				if (++digits > 3 || octet > 255)
+					throw new IllegalArgumentException("Invalid IPv4 address: " + ip);
+			} else if (c == '.' && digits > 0 && dots < 3) {
+				addr = addr << 8 | octet;
+				octet = 0;
+				digits = 0;
+				dots++;
+			} else {
+				throw new IllegalArgumentException("Invalid IPv4 address: " + ip);
+			}
+		}
+		if (dots != 3 || digits == 0)
+			throw new IllegalArgumentException("Invalid IPv4 address: " + ip);
+		return addr << 8 | octet;
+	}
+
+	public static int ipToInt(Inet4Address ia) {
+		byte[] b = ia.getAddress();
+		return (b[0] & 0xff) << 24 | (b[1] & 0xff) << 16 | (b[2] & 0xff) << 8 | (b[3] & 0xff);
+	}
+
+	public static String intToIp(int ip) {
+		return (ip >>> 24) + "." + (ip >>> 16 & 0xff) + "." + (ip >>> 8 & 0xff) + "." + (ip & 0xff);
+	}
+
+	/**
+	 * IP protocol numbers of the two protocols the policies are made of
+	 * 
+	 * @param proto
+	 * @return
+	 */
+	public static int protoNum(String proto) {
+		if (proto.equalsIgnoreCase("tcp"))
+			return PROTO_TCP;
+		if (proto.equalsIgnoreCase("udp"))
+			return PROTO_UDP;
+		return -1;
+	}
+
+	public static String protoName(int proto) {
+		return proto == PROTO_TCP ? "tcp" : proto == PROTO_UDP ? "udp" : Integer.toString(proto);
+	}
+
 	public static boolean isInteger(String str) {
 		Pattern pattern = Pattern.compile("^[-\\+]?[\\d]*$");
 		return pattern.matcher(str).matches();
@@ -0,0 +1,64 @@
+/******************************************
+ * FirewallExporter output of a fixture   *
+ * policy file against the expected       *
+ * ipset and iptables-restore input       *
+ ******************************************/
+package org.ayakaji;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FirewallExporterTest {
+	private final static String stem = "plc_TEST0001";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static Path resource(String name) throws Exception {
+		return Paths.get(FirewallExporterTest.class.getResource("/firewall/" + name).toURI());
+	}
+
+	private static String read(Path p) throws Exception {
+		return new String(Files.readAllBytes(p), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The fixture has inbound and outbound policies, a fixed client port, a port
+	 * set, packet counts, and policies to skip: a /0 and a /33 source, port 0 and
+	 * icmp
+	 */
+	@Test
+	public void export() throws Exception {
+		FirewallExporter fe = new FirewallExporter();
+		fe.load(resource(stem + ".json").toFile());
+		Path out = tmp.getRoot().toPath().resolve(stem);
+		fe.export(out);
+		assertEquals(read(resource(stem + ".ipset")), read(out.resolveSibling(stem + ".ipset")));
+		assertEquals(read(resource(stem + ".iptables")), read(out.resolveSibling(stem + ".iptables")));
+		assertEquals("", read(out.resolveSibling(stem + ".cleanup")));
+	}
+
+	/**
+	 * A set of the last export no rule matches any more is destroyed, the sets
+	 * kept keep their names
+	 */
+	@Test
+	public void stale() throws Exception {
+		Path out = tmp.getRoot().toPath().resolve(stem);
+		Files.write(out.resolveSibling(stem + ".ipset"), ("swap prism_in_tcp_25_abcdef_n prism_in_tcp_25_abcdef\n"
+				+ "swap prism_in_tcp_22_m0upt2_n prism_in_tcp_22_m0upt2\n").getBytes(StandardCharsets.UTF_8));
+		FirewallExporter fe = new FirewallExporter();
+		fe.load(resource(stem + ".json").toFile());
+		fe.export(out);
+		assertEquals(read(resource(stem + ".ipset")), read(out.resolveSibling(stem + ".ipset")));
+		assertEquals("destroy prism_in_tcp_25_abcdef\n", read(out.resolveSibling(stem + ".cleanup")));
+	}
+}
@@ -0,0 +1,93 @@
+/******************************************
+ * ListenerMonitor against copies of the  *
+ * /proc/net tables, found through        *
+ * -Dprism.proc.root                      *
+ ******************************************/
+package org.ayakaji;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ListenerMonitorTest {
+	private final static int tcp = Util.PROTO_TCP;
+	private final static int udp = Util.PROTO_UDP;
+	private final static int node = Util.ipToInt("10.0.0.5");
+	private final static int lo = Util.ipToInt("127.0.0.1");
+	private final static int other = Util.ipToInt("10.0.0.7");
+
+	@Before
+	public void setUp() {
+		// The tables were taken on a little endian host, every word of them reads
+		// the other way round elsewhere
+		assumeTrue(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+		// Set by surefire to src/test/resources/proc, not the tables of this host
+		assumeTrue(System.getProperty("prism.proc.root") != null);
+	}
+
+	@Test
+	public void ipv4Listeners() throws IOException {
+		ListenerMonitor lm = new ListenerMonitor(Arrays.asList("10.0.0.5", "127.0.0.1"));
+		assertTrue(lm.refresh());
+		ListenerMonitor.Listeners l = lm.listeners();
+		assertTrue(l.isListening(tcp, node, 8080));
+		assertEquals(20103, l.inode(tcp, node, 8080));
+		assertTrue(l.isListening(tcp, lo, 5432));
+		assertFalse(l.isListening(tcp, node, 5432));
+		assertTrue(l.isListening(udp, node, 123));
+		assertFalse(l.isListening(udp, lo, 123));
+		assertFalse(lm.refresh()); // nothing changed
+	}
+
+	@Test
+	public void ipv6Listeners() throws IOException {
+		ListenerMonitor lm = new ListenerMonitor(Arrays.asList("10.0.0.5"));
+		lm.refresh();
+		ListenerMonitor.Listeners l = lm.listeners();
+		assertEquals(20201, l.inode(tcp, node, 80)); // ::
+		assertEquals(20202, l.inode(tcp, node, 8443)); // ::ffff:10.0.0.5
+		assertEquals(20401, l.inode(udp, node, 5353));
+		assertFalse(l.isListening(tcp, node, 9090)); // fe80::1
+		assertFalse(l.isListening(tcp, lo, 631)); // ::1
+	}
+
+	@Test
+	public void wildcards() throws IOException {
+		ListenerMonitor lm = new ListenerMonitor(Arrays.asList("10.0.0.5", "127.0.0.1"));
+		lm.refresh();
+		ListenerMonitor.Listeners l = lm.listeners();
+		assertEquals(20101, l.inode(tcp, node, 22));
+		assertEquals(20101, l.inode(tcp, lo, 22));
+		assertEquals(20101, l.inode(tcp, 0, 22));
+		assertFalse(l.isListening(tcp, other, 22)); // not a local address
+		assertTrue(l.isListening(udp, node, 68));
+		assertFalse(l.isListening(tcp, node, 68));
+
+		lm = new ListenerMonitor(null);
+		lm.refresh();
+		assertTrue(lm.listeners().isListening(tcp, other, 22)); // any address is local
+		assertFalse(lm.listeners().isListening(tcp, other, 8080));
+	}
+
+	@Test
+	public void states() throws IOException {
+		ListenerMonitor lm = new ListenerMonitor(null);
+		lm.refresh();
+		ListenerMonitor.Listeners l = lm.listeners();
+		assertEquals("[tcp 0.0.0.0:22, tcp 0.0.0.0:80, tcp 127.0.0.1:5432, tcp 10.0.0.5:8080, tcp 10.0.0.5:8443, "
+				+ "udp 0.0.0.0:68, udp 10.0.0.5:123, udp 0.0.0.0:5353]", l.toString());
+		assertEquals(8, l.size());
+		assertFalse(l.isListening(tcp, node, 40000)); // established
+		assertFalse(l.isListening(tcp, node, 40001)); // time wait
+		assertFalse(l.isListening(tcp, node, 9000)); // bound, not listening
+		assertFalse(l.isListening(udp, node, 45000)); // connected
+	}
+}
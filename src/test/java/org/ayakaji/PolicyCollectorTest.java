@@ -0,0 +1,107 @@
+/******************************************
+ * PolicyUploader against a collector on  *
+ * a local port: two epochs, a converged  *
+ * policy and a restarted node            *
+ ******************************************/
+package org.ayakaji;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.alibaba.fastjson.JSONObject;
+
+public class PolicyCollectorTest {
+	private final static String serial = "TEST0001";
+	private final static int tcp = Util.PROTO_TCP;
+	private final static int udp = Util.PROTO_UDP;
+	private final static int node = Util.ipToInt("10.0.0.5");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	private Path dir;
+	private PolicyCollector collector;
+	private Thread thread;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = tmp.getRoot().toPath();
+		collector = new PolicyCollector(0, dir, dir.resolve("plc"));
+		thread = new Thread(collector, "Collector");
+		thread.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		collector.stop();
+		thread.join(10000);
+	}
+
+	private PolicyUploader uploader() {
+		PolicyUploader u = new PolicyUploader("127.0.0.1:" + collector.port(), serial);
+		u.start();
+		return u;
+	}
+
+	/**
+	 * Offer a snapshot and wait for the collector to acknowledge it
+	 */
+	private static void upload(PolicyUploader u, PolicyStore.Snapshot snapshot) throws InterruptedException {
+		u.offer(snapshot);
+		long deadline = System.currentTimeMillis() + 10000;
+		while (u.acked() != snapshot.epoch && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertEquals(snapshot.epoch, u.acked());
+	}
+
+	private static Set<String> read(File f) throws Exception {
+		final Set<String> set = new TreeSet<String>();
+		PolicyReader.read(f, new PolicyReader.Handler() {
+			@Override
+			public void policy(JSONObject plc) {
+				set.add(plc.getString("src_addr") + ":" + plc.getString("src_port") + " " + plc.getString("proto") + " "
+						+ plc.getString("dst_addr") + ":" + plc.getString("dst_port"));
+			}
+		});
+		return set;
+	}
+
+	@Test
+	public void roundTrip() throws Exception {
+		PolicyStore store = new PolicyStore();
+		PolicyStore.Policy ssh = store.append(Util.ipToInt("10.0.0.9"), 51234, tcp, node, 22);
+		store.append(node, 123, udp, Util.ipToInt("10.0.0.53"), 123);
+		PolicyUploader u = uploader();
+		upload(u, store.snapshot()); // epoch 1, both policies
+		store.converge(ssh);
+		store.append(node, 40000, tcp, Util.ipToInt("10.0.0.7"), 3306);
+		upload(u, store.snapshot()); // epoch 2, what changed since 1
+		u.stop(10000);
+
+		// The node restarts with an empty store: a new session, its epochs from 1 again
+		Thread.sleep(5);
+		store = new PolicyStore();
+		store.append(node, 40001, tcp, Util.ipToInt("10.0.0.8"), 443);
+		u = uploader();
+		upload(u, store.snapshot());
+		u.stop(10000);
+
+		collector.stop();
+		thread.join(10000);
+		Set<String> expected = new TreeSet<String>(Arrays.asList("10.0.0.9:0 tcp 10.0.0.5:22",
+				"10.0.0.5:123 udp 10.0.0.53:123", "10.0.0.5:40000 tcp 10.0.0.7:3306",
+				"10.0.0.5:40001 tcp 10.0.0.8:443"));
+		assertEquals(expected, read(dir.resolve("plc_cluster.json").toFile()));
+		assertEquals(expected, read(dir.resolve("plc").resolve("plc_" + serial + ".json").toFile()));
+	}
+}
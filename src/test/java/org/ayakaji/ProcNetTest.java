@@ -0,0 +1,62 @@
+/******************************************
+ * ProcNet against copies of the          *
+ * /proc/net tables, found through        *
+ * -Dprism.proc.root                      *
+ ******************************************/
+package org.ayakaji;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProcNetTest {
+	@Before
+	public void setUp() {
+		// The tables were taken on a little endian host, every word of them reads
+		// the other way round elsewhere
+		assumeTrue(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+		// Set by surefire to src/test/resources/proc, not the tables of this host
+		assumeTrue(System.getProperty("prism.proc.root") != null);
+	}
+
+	private static List<String> sockets() throws IOException {
+		final List<String> list = new ArrayList<String>();
+		ProcNet pn = new ProcNet();
+		try {
+			int found = pn.read(new ProcNet.Handler() {
+				@Override
+				public void socket(int proto, int localAddr, int localPort, int remoteAddr, int remotePort, int state,
+						long inode) {
+					list.add(Util.protoName(proto) + " " + Util.intToIp(localAddr) + ":" + localPort + " "
+							+ Util.intToIp(remoteAddr) + ":" + remotePort + " " + state + " " + inode);
+				}
+			});
+			assertEquals(list.size(), found);
+		} finally {
+			pn.close();
+		}
+		return list;
+	}
+
+	@Test
+	public void parse() throws IOException {
+		List<String> list = sockets();
+		assertEquals(Arrays.asList("tcp 0.0.0.0:22 0.0.0.0:0 10 20101", "tcp 127.0.0.1:5432 0.0.0.0:0 10 20102",
+				"tcp 10.0.0.5:8080 0.0.0.0:0 10 20103", "tcp 10.0.0.5:22 10.0.0.9:51234 1 20104",
+				"tcp 10.0.0.5:40000 10.0.0.9:443 1 20105", "tcp 10.0.0.5:40001 10.0.0.9:443 6 0",
+				"tcp 10.0.0.5:9000 0.0.0.0:0 7 20106", "tcp 0.0.0.0:80 0.0.0.0:0 10 20201",
+				"tcp 10.0.0.5:8443 0.0.0.0:0 10 20202", "tcp 10.0.0.5:8443 10.0.0.9:50000 1 20205",
+				"udp 0.0.0.0:68 0.0.0.0:0 7 20301", "udp 10.0.0.5:123 0.0.0.0:0 7 20302",
+				"udp 10.0.0.5:45000 10.0.0.53:53 1 20303", "udp 0.0.0.0:5353 0.0.0.0:0 7 20401"), list);
+		// the tables are kept open and read again from their start
+		assertEquals(list, sockets());
+	}
+}
@@ -0,0 +1,119 @@
+/******************************************
+ * ProcessIndex against a fake proc tree: *
+ * socket tables, comm and fd links       *
+ ******************************************/
+package org.ayakaji;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ProcessIndexTest {
+	private final static String header = "  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode\n";
+	private final static int tcp = Util.PROTO_TCP;
+	private final static int udp = Util.PROTO_UDP;
+	private final static int node = Util.ipToInt("10.0.0.5");
+	private final static int peer = Util.ipToInt("10.0.0.9");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+	private Path root;
+
+	/**
+	 * An IPv4 address and port as /proc prints them, every word in host order
+	 */
+	private static String v4(String addr, int port) {
+		int a = Util.ipToInt(addr);
+		if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)
+			a = Integer.reverseBytes(a);
+		return String.format("%08X:%04X", a, port);
+	}
+
+	private static String v6(String addr, int port) {
+		int a = Util.ipToInt(addr);
+		int ffff = 0xffff;
+		if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+			a = Integer.reverseBytes(a);
+			ffff = Integer.reverseBytes(ffff);
+		}
+		return String.format("0000000000000000%08X%08X:%04X", ffff, a, port);
+	}
+
+	private static String line(int sl, String local, String remote, int state, long inode) {
+		return String.format("%4d: %s %s %02X 00000000:00000000 00:00000000 00000000 %5d %8d %d 1 0000000000000000 100 0 0 10 0\n",
+				sl, local, remote, state, 1000, 0, inode);
+	}
+
+	private void table(String name, String... lines) throws IOException {
+		StringBuilder sb = new StringBuilder(header);
+		for (String l : lines)
+			sb.append(l);
+		Files.write(root.resolve("net").resolve(name), sb.toString().getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private void process(int pid, String name, long... inodes) throws IOException {
+		Path dir = Files.createDirectories(root.resolve(Integer.toString(pid)).resolve("fd"));
+		Files.write(dir.resolveSibling("comm"), (name + "\n").getBytes(StandardCharsets.UTF_8));
+		Files.createSymbolicLink(dir.resolve("0"), Paths.get("/dev/null"));
+		int fd = 3;
+		for (long inode : inodes)
+			Files.createSymbolicLink(dir.resolve(Integer.toString(fd++)), Paths.get("socket:[" + inode + "]"));
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		root = tmp.getRoot().toPath();
+		Files.createDirectories(root.resolve("net"));
+		table("tcp", line(0, v4("0.0.0.0", 22), v4("0.0.0.0", 0), ProcNet.TCP_LISTEN, 1001),
+				line(1, v4("10.0.0.5", 40000), v4("10.0.0.9", 443), ProcNet.TCP_ESTABLISHED, 2002),
+				line(2, v4("10.0.0.5", 40001), v4("10.0.0.9", 443), 0x06, 0), // TIME_WAIT, owned by no one
+				line(3, v4("10.0.0.5", 3306), v4("0.0.0.0", 0), 0x07, 5005)); // bound, not listening
+		table("tcp6", line(0, v6("10.0.0.5", 8080), v6("0.0.0.0", 0), ProcNet.TCP_LISTEN, 4004));
+		table("udp", line(0, v4("0.0.0.0", 53), v4("0.0.0.0", 0), 0x07, 3003));
+		process(100, "sshd", 1001);
+		process(200, "curl", 2002);
+		process(300, "named", 3003);
+		process(400, "java", 4004, 5005);
+	}
+
+	@Test
+	public void established() {
+		ProcessIndex pi = new ProcessIndex(root);
+		assertEquals(2002, pi.inode(tcp, node, 40000, peer, 443));
+		assertEquals(2002, pi.inode(tcp, peer, 443, node, 40000));
+	}
+
+	@Test
+	public void listeners() {
+		ProcessIndex pi = new ProcessIndex(root);
+		assertEquals(1001, pi.inode(tcp, peer, 50000, node, 22)); // on any address
+		assertEquals(4004, pi.inode(tcp, peer, 50000, node, 8080)); // IPv4 mapped
+		assertEquals(3003, pi.inode(udp, node, 53, peer, 50000));
+		assertEquals(0, pi.inode(udp, peer, 50000, node, 22));
+		assertEquals(0, pi.inode(tcp, peer, 50000, node, 3306));
+		assertEquals(0, pi.inode(tcp, node, 40001, peer, 443));
+	}
+
+	@Test
+	public void owners() {
+		ProcessIndex pi = new ProcessIndex(root);
+		ProcessIndex.Proc p = pi.owner(pi.inode(tcp, peer, 50000, node, 22));
+		assertEquals(100, p.pid);
+		assertEquals("sshd", p.name);
+		assertEquals("java", pi.owner(5005).name);
+		assertEquals("java", pi.owner(4004).name);
+		assertNull(pi.owner(0));
+		assertNull(pi.owner(9999));
+	}
+}